@@ -17,6 +17,7 @@
 package examples.eliza;
 
 import mindroid.os.Binder;
+import mindroid.os.Bundle;
 import mindroid.os.IBinder;
 import mindroid.os.IInterface;
 import mindroid.os.Parcel;
@@ -85,6 +86,38 @@ public interface IEliza extends IInterface {
             }
         }
 
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void onTransact(int what, int num, Object obj, Bundle data, Promise<?> result) throws RemoteException {
+            switch (what) {
+            case MSG_ASK1: {
+                String _reply = ask1((String) obj);
+                ((Promise<String>) result).complete(_reply);
+                break;
+            }
+            case MSG_ASK2: {
+                Future<String> _reply = ask2((String) obj);
+                _reply.then((value, exception) -> {
+                    if (exception == null) {
+                        ((Promise<String>) result).complete(value);
+                    } else {
+                        result.completeWith(exception);
+                    }
+                });
+                break;
+            }
+            case MSG_ASK3: {
+                Object[] _args = (Object[]) obj;
+                IElizaListener _listener = IElizaListener.Stub.asInterface((IBinder) _args[1]);
+                ask3((String) _args[0], _listener);
+                break;
+            }
+            default:
+                super.onTransact(what, num, obj, data, result);
+                break;
+            }
+        }
+
         private static class Proxy implements IEliza {
             private final IBinder mRemote;
 
@@ -211,6 +244,10 @@ public interface IEliza extends IInterface {
         public String ask1(String question) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.ask1(question);
+            } else if (mStub != null) {
+                Promise<String> _promise = new Promise<>();
+                mStub.transact(Stub.MSG_ASK1, 0, question, null, _promise, 0);
+                return Binder.get(_promise);
             } else {
                 return mProxy.ask1(question);
             }
@@ -220,6 +257,10 @@ public interface IEliza extends IInterface {
         public Future<String> ask2(String question) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.ask2(question);
+            } else if (mStub != null) {
+                Promise<String> _promise = new Promise<>();
+                mStub.transact(Stub.MSG_ASK2, 0, question, null, _promise, 0);
+                return _promise;
             } else {
                 return mProxy.ask2(question);
             }
@@ -228,7 +269,9 @@ public interface IEliza extends IInterface {
         @Override
         public void ask3(String question, IElizaListener listener) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
-                mStub.ask3(question, IElizaListener.Stub.asInterface(listener.asBinder()));
+                mStub.ask3(question, (listener != null) ? IElizaListener.Stub.asInterface(listener.asBinder()) : null);
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_ASK3, 0, new Object[] { question, (listener != null) ? listener.asBinder() : null }, null, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.ask3(question, listener);
             }
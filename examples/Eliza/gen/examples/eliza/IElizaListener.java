@@ -17,6 +17,7 @@
 package examples.eliza;
 
 import mindroid.os.Binder;
+import mindroid.os.Bundle;
 import mindroid.os.IBinder;
 import mindroid.os.IInterface;
 import mindroid.os.Parcel;
@@ -58,6 +59,19 @@ public interface IElizaListener extends IInterface {
             }
         }
 
+        @Override
+        protected void onTransact(int what, int num, Object obj, Bundle data, Promise<?> result) throws RemoteException {
+            switch (what) {
+            case MSG_ON_REPLY: {
+                onReply((String) obj);
+                break;
+            }
+            default:
+                super.onTransact(what, num, obj, data, result);
+                break;
+            }
+        }
+
         private static class Proxy implements IElizaListener {
             private final IBinder mRemote;
 
@@ -139,11 +153,49 @@ public interface IElizaListener extends IInterface {
         public void onReply(String reply) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.onReply(reply);
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_ON_REPLY, 0, reply, null, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.onReply(reply);
             }
         }
     }
 
+    /**
+     * Collects oneway calls and sends them to the binder as one batch on {@link #flush()}.
+     */
+    public static class Batch implements IElizaListener {
+        private final IBinder mBinder;
+        private final IBinder.Batch mBatch = new IBinder.Batch();
+
+        public Batch(IBinder binder) {
+            mBinder = binder;
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return mBinder;
+        }
+
+        @Override
+        public void onReply(String reply) throws RemoteException {
+            Parcel _data = Parcel.obtain();
+            _data.putString(reply);
+            mBatch.add(Stub.MSG_ON_REPLY, _data);
+        }
+
+        public int size() {
+            return mBatch.size();
+        }
+
+        public void flush() throws RemoteException {
+            try {
+                mBinder.transactBatch(mBatch);
+            } finally {
+                mBatch.clear();
+            }
+        }
+    }
+
     public void onReply(String reply) throws RemoteException;
 }
@@ -34,7 +34,6 @@ import mindroid.content.pm.PackageManager;
 import mindroid.os.Bundle;
 import mindroid.os.Environment;
 import mindroid.os.Handler;
-import mindroid.os.HandlerThread;
 import mindroid.os.IBinder;
 import mindroid.os.IServiceManager;
 import mindroid.os.Looper;
@@ -52,16 +51,16 @@ import mindroid.util.concurrent.Promise;
 public class ContextImpl extends Context {
     private final static String LOG_TAG = "ContextImpl";
     private final IServiceManager mServiceManager;
-    private final HandlerThread mMainThread;
+    private final Looper mMainLooper;
     private final Handler mHandler;
     private ComponentName mComponent;
     private HashMap<ServiceConnection, Intent> mServiceConnections = new HashMap<>();
     private PackageManager mPackageManager;
 
-    public ContextImpl(HandlerThread mainThread, ComponentName component) {
+    public ContextImpl(Looper mainLooper, ComponentName component) {
         mServiceManager = ServiceManager.getServiceManager();
-        mMainThread = mainThread;
-        mHandler = new Handler(mainThread.getLooper());
+        mMainLooper = mainLooper;
+        mHandler = new Handler(mainLooper);
         mComponent = component;
     }
 
@@ -76,7 +75,7 @@ public class ContextImpl extends Context {
 
     @Override
     public Looper getMainLooper() {
-        return mMainThread.getLooper();
+        return mMainLooper;
     }
 
     @Override
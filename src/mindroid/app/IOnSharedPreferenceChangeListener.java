@@ -146,6 +146,8 @@ public interface IOnSharedPreferenceChangeListener extends IInterface {
         public void onSharedPreferenceChanged(String key) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.onSharedPreferenceChanged(key);
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_ON_SHARED_PREFERENCE_CHANGED_WITH_KEY, 0, key, null, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.onSharedPreferenceChanged(key);
             }
@@ -155,6 +157,8 @@ public interface IOnSharedPreferenceChangeListener extends IInterface {
         public void onSharedPreferenceChanged() throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.onSharedPreferenceChanged();
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_ON_SHARED_PREFERENCE_CHANGED, 0, null, null, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.onSharedPreferenceChanged();
             }
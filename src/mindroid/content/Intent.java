@@ -427,7 +427,8 @@ public class Intent {
     }
 
     /**
-     * Retrieves a map of extended data from the intent.
+     * Retrieves a map of extended data from the intent. The returned Bundle is a copy that shares
+     * the extras of the intent until either of them is modified.
      * 
      * @return the map of all extras previously added with putExtra(), or null if none have been
      * added.
@@ -45,6 +45,12 @@ public class ApplicationInfo {
      */
     public boolean enabled = true;
 
+    /**
+     * When true, the process of this application runs its main thread on a virtual thread if
+     * supported by the Java VM. From the "virtualThreads" attribute.
+     */
+    public boolean virtualThreads = false;
+
     /**
      * Paths to all shared libraries this application is linked against.
      */
@@ -153,6 +153,12 @@ public interface IPackageInstaller extends IInterface {
         public void install(File file) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.install(file);
+            } else if (mStub != null) {
+                Promise<Void> promise = new Promise<>();
+                Bundle data = new Bundle();
+                data.putString("file", file.getAbsolutePath());
+                mStub.transact(Stub.MSG_INSTALL, 0, 0, data, promise, 0);
+                Binder.get(promise);
             } else {
                 mProxy.install(file);
             }
@@ -162,6 +168,8 @@ public interface IPackageInstaller extends IInterface {
         public void uninstall(String packageName) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.uninstall(packageName);
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_UNINSTALL, 0, packageName, null, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.uninstall(packageName);
             }
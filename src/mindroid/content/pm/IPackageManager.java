@@ -205,6 +205,10 @@ public interface IPackageManager extends IInterface {
         public List<PackageInfo> getInstalledPackages(int flags) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.getInstalledPackages(flags);
+            } else if (mStub != null) {
+                Promise<List<PackageInfo>> promise = new Promise<>();
+                mStub.transact(Stub.MSG_GET_INSTALLED_PACKAGES, flags, null, null, promise, 0);
+                return Binder.get(promise);
             } else {
                 return mProxy.getInstalledPackages(flags);
             }
@@ -214,6 +218,10 @@ public interface IPackageManager extends IInterface {
         public PackageInfo getPackageInfo(String packageName, int flags) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.getPackageInfo(packageName, flags);
+            } else if (mStub != null) {
+                Promise<PackageInfo> promise = new Promise<>();
+                mStub.transact(Stub.MSG_GET_PACKAGE_INFO, flags, packageName, null, promise, 0);
+                return Binder.get(promise);
             } else {
                 return mProxy.getPackageInfo(packageName, flags);
             }
@@ -223,6 +231,10 @@ public interface IPackageManager extends IInterface {
         public PackageInfo getPackageArchiveInfo(String archiveFilePath, int flags) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.getPackageArchiveInfo(archiveFilePath, flags);
+            } else if (mStub != null) {
+                Promise<PackageInfo> promise = new Promise<>();
+                mStub.transact(Stub.MSG_GET_PACKAGE_ARCHIVE_INFO, flags, archiveFilePath, null, promise, 0);
+                return Binder.get(promise);
             } else {
                 return mProxy.getPackageArchiveInfo(archiveFilePath, flags);
             }
@@ -232,6 +244,10 @@ public interface IPackageManager extends IInterface {
         public ResolveInfo resolveService(Intent intent, int flags) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.resolveService(intent, flags);
+            } else if (mStub != null) {
+                Promise<ResolveInfo> promise = new Promise<>();
+                mStub.transact(Stub.MSG_RESOLVE_SERVICE, flags, intent, null, promise, 0);
+                return Binder.get(promise);
             } else {
                 return mProxy.resolveService(intent, flags);
             }
@@ -241,6 +257,10 @@ public interface IPackageManager extends IInterface {
         public int checkPermission(String permissionName, int pid) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.checkPermission(permissionName, pid);
+            } else if (mStub != null) {
+                Promise<Integer> promise = new Promise<>();
+                mStub.transact(Stub.MSG_CHECK_PERMISSION, pid, permissionName, null, promise, 0);
+                return Binder.get(promise);
             } else {
                 return mProxy.checkPermission(permissionName, pid);
             }
@@ -250,6 +270,10 @@ public interface IPackageManager extends IInterface {
         public String[] getPermissions(int pid) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.getPermissions(pid);
+            } else if (mStub != null) {
+                Promise<String[]> promise = new Promise<>();
+                mStub.transact(Stub.MSG_GET_PERMISSIONS, pid, null, null, promise, 0);
+                return Binder.get(promise);
             } else {
                 return mProxy.getPermissions(pid);
             }
@@ -393,6 +393,7 @@ public class PackageManagerService extends Service {
         String processName = ai.packageName;
 
         boolean enabled = true;
+        boolean virtualThreads = false;
         for (int i = 0; i < parser.getAttributeCount(); i++) {
             String attributeName = parser.getAttributeName(i);
             String attributeValue = parser.getAttributeValue(i);
@@ -406,10 +407,19 @@ public class PackageManagerService extends Service {
                 } else {
                     throw new XmlPullParserException("Unknwon value for application attribute 'enabled'");
                 }
+            } else if (attributeName.equals("virtualThreads")) {
+                if (attributeValue.equals("true")) {
+                    virtualThreads = true;
+                } else if (attributeValue.equals("false")) {
+                    virtualThreads = false;
+                } else {
+                    throw new XmlPullParserException("Unknwon value for application attribute 'virtualThreads'");
+                }
             }
         }
         ai.processName = processName;
         ai.enabled = enabled;
+        ai.virtualThreads = virtualThreads;
 
         List<String> libraries = new ArrayList<>();
         List<String> permissions = new ArrayList<>();
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of heap or direct byte buffers. Buffers are handed out in power of two size classes
+ * from {@value #MIN_CAPACITY} bytes to {@value #MAX_CAPACITY} bytes. Larger buffers are
+ * allocated on demand and never pooled. Each size class keeps at most about 1 MB of idle buffers.
+ *
+ * @hide
+ */
+public final class ByteBufferPool {
+    public static final int MIN_CAPACITY = 1 << 6;
+    public static final int MAX_CAPACITY = 1 << 20;
+    private static final int MIN_SIZE_CLASS = 6;
+    private static final int MAX_SIZE_CLASS = 20;
+    private static final int MAX_POOLED_BYTES_PER_SIZE_CLASS = 1 << 20;
+    private static final int MAX_POOLED_BUFFERS_PER_SIZE_CLASS = 64;
+
+    private static final ByteBufferPool sHeapPool = new ByteBufferPool(false);
+    private static final ByteBufferPool sDirectPool = new ByteBufferPool(true);
+
+    private final boolean mDirect;
+    private final SizeClass[] mSizeClasses;
+
+    /**
+     * Returns the shared pool of heap buffers.
+     */
+    public static ByteBufferPool getHeapPool() {
+        return sHeapPool;
+    }
+
+    /**
+     * Returns the shared pool of direct buffers.
+     */
+    public static ByteBufferPool getDirectPool() {
+        return sDirectPool;
+    }
+
+    public ByteBufferPool(boolean direct) {
+        mDirect = direct;
+        mSizeClasses = new SizeClass[MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1];
+        for (int i = 0; i < mSizeClasses.length; i++) {
+            int capacity = 1 << (MIN_SIZE_CLASS + i);
+            int maxSize = Math.max(2, Math.min(MAX_POOLED_BUFFERS_PER_SIZE_CLASS, MAX_POOLED_BYTES_PER_SIZE_CLASS / capacity));
+            mSizeClasses[i] = new SizeClass(maxSize);
+        }
+    }
+
+    public boolean isDirect() {
+        return mDirect;
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given capacity.
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (capacity > MAX_CAPACITY) {
+            return allocate(capacity);
+        }
+        final int sizeClass = sizeClassOf(capacity);
+        ByteBuffer buffer = mSizeClasses[sizeClass - MIN_SIZE_CLASS].poll();
+        if (buffer == null) {
+            buffer = allocate(1 << sizeClass);
+        }
+        return buffer;
+    }
+
+    /**
+     * Puts a buffer back into the pool. You must not touch the buffer after this call. Buffers
+     * that have not been acquired from a pool of the same kind are dropped.
+     */
+    public void release(ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        if (buffer.isDirect() != mDirect || capacity < MIN_CAPACITY || capacity > MAX_CAPACITY
+                || Integer.bitCount(capacity) != 1 || buffer.isReadOnly() || (!mDirect && buffer.arrayOffset() != 0)) {
+            return;
+        }
+        buffer.clear();
+        mSizeClasses[sizeClassOf(capacity) - MIN_SIZE_CLASS].offer(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int sizeClassOf(int capacity) {
+        return Math.max(MIN_SIZE_CLASS, Integer.SIZE - Integer.numberOfLeadingZeros(capacity - 1));
+    }
+
+    /**
+     * A bounded stack of idle buffers. The stack is guarded by a lock instead of using a lock-free
+     * queue since it is only held for a few instructions and does not allocate.
+     */
+    private static final class SizeClass {
+        private final ByteBuffer[] mBuffers;
+        private int mSize = 0;
+
+        SizeClass(int maxSize) {
+            mBuffers = new ByteBuffer[maxSize];
+        }
+
+        synchronized ByteBuffer poll() {
+            if (mSize == 0) {
+                return null;
+            }
+            ByteBuffer buffer = mBuffers[--mSize];
+            mBuffers[mSize] = null;
+            return buffer;
+        }
+
+        synchronized void offer(ByteBuffer buffer) {
+            if (mSize < mBuffers.length) {
+                mBuffers[mSize++] = buffer;
+            }
+        }
+    }
+}
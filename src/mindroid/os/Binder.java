@@ -21,6 +21,7 @@ import mindroid.util.Log;
 import mindroid.util.concurrent.CancellationException;
 import mindroid.util.concurrent.ExecutionException;
 import mindroid.util.concurrent.Executors;
+import mindroid.util.concurrent.OrderedExecutor;
 import mindroid.util.concurrent.Promise;
 import mindroid.util.concurrent.TimeoutException;
 import mindroid.runtime.system.Runtime;
@@ -45,8 +46,9 @@ public class Binder implements IBinder {
     public static final int UNRESOLVED_PROXY_ID = -1;
     private static final int TRANSACTION = 1;
     private static final int LIGHTWEIGHT_TRANSACTION = 2;
+    private static final int BATCH_TRANSACTION = 3;
     private static final String EXCEPTION_MESSAGE = "Binder transaction failure";
-    private static final ThreadLocal<Integer> sCallingPid = new ThreadLocal<>();
+    private static final ThreadLocal<CallingIdentity> sCallingIdentity = ThreadLocal.withInitial(CallingIdentity::new);
     private final Runtime mRuntime;
     private final IMessenger mTarget;
     private long mId;
@@ -58,21 +60,21 @@ public class Binder implements IBinder {
         mRuntime = Runtime.getRuntime();
         mId = mRuntime.attachBinder(this);
         mTarget = new Messenger();
-        setCallingPid(Process.myPid());
+        resetCallingPid();
     }
 
     public Binder(final Looper looper) {
         mRuntime = Runtime.getRuntime();
         mId = mRuntime.attachBinder(this);
         mTarget = new Messenger(looper);
-        setCallingPid(Process.myPid());
+        resetCallingPid();
     }
 
     public Binder(final Executor executor) {
         mRuntime = Runtime.getRuntime();
         mId = mRuntime.attachBinder(this);
         mTarget = new ExecutorMessenger(executor);
-        setCallingPid(Process.myPid());
+        resetCallingPid();
     }
 
     /** @hide */
@@ -84,16 +86,20 @@ public class Binder implements IBinder {
         } else {
             mTarget = binder.mTarget;
         }
-        setCallingPid(Process.myPid());
+        resetCallingPid();
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            mRuntime.detachBinder(mId, mUri);
-        } finally {
-            super.finalize();
+    /**
+     * Returns the message queue that the transactions of this binder are enqueued to, or null if
+     * they are run by an executor.
+     *
+     * @hide
+     */
+    public MessageQueue getMessageQueue() {
+        if (mTarget instanceof Messenger) {
+            return ((Messenger) mTarget).mHandler.getLooper().getQueue();
         }
+        return null;
     }
 
     @Override
@@ -164,22 +170,20 @@ public class Binder implements IBinder {
      * then its own pid is returned.
      */
     public static final int getCallingPid() {
-        Integer callingPid = sCallingPid.get();
-        if (callingPid != null) {
-            return callingPid.intValue();
-        } else {
-            return 0;
-        }
+        return sCallingIdentity.get().mCallingPid;
     }
 
-    private static final int setCallingPid(int pid) {
-        int origPid = 0;
-        Integer callingPid = sCallingPid.get();
-        if (callingPid != null) {
-            origPid = callingPid.intValue();
-        }
-        sCallingPid.set(pid);
-        return origPid;
+    private static final void resetCallingPid() {
+        CallingIdentity callingIdentity = sCallingIdentity.get();
+        callingIdentity.mCallingPid = callingIdentity.mPid;
+    }
+
+    /**
+     * Returns the pid of the current thread. Unlike {@link Process#myPid()} this is a plain field
+     * read once the thread has been seen by the binder.
+     */
+    private static final int myPid() {
+        return sCallingIdentity.get().mPid;
     }
 
     /**
@@ -210,17 +214,14 @@ public class Binder implements IBinder {
         message.what = TRANSACTION;
         message.arg1 = what;
         message.obj = data;
-        message.sendingPid = Process.myPid();
+        message.sendingPid = myPid();
         Promise<Parcel> promise;
         if ((flags & FLAG_ONEWAY) != 0 && (flags & (FLAG_ONEWAY_WITH_EXCEPTION_HANDLING ^ FLAG_ONEWAY)) == 0) {
             message.result = null;
             promise = null;
         } else {
-            Promise<Parcel> p = new Promise<Parcel>(Executors.SYNCHRONOUS_EXECUTOR);
-            message.result = p;
-            promise = p.then(parcel -> {
-                parcel.asInput();
-            });
+            promise = new ReplyPromise();
+            message.result = promise;
         }
         if (!mTarget.send(message)) {
             throw new RemoteException(EXCEPTION_MESSAGE);
@@ -237,25 +238,65 @@ public class Binder implements IBinder {
         message.obj = obj;
         message.setData(data);
         message.result = promise;
-        message.sendingPid = Process.myPid();
+        message.sendingPid = myPid();
+        if (!mTarget.send(message)) {
+            throw new RemoteException(EXCEPTION_MESSAGE);
+        }
+    }
+
+    @Override
+    public void transactBatch(Batch batch) throws RemoteException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.getData(i).asInput();
+        }
+        Message message = Message.obtain();
+        message.what = BATCH_TRANSACTION;
+        message.obj = new Batch(batch);
+        message.sendingPid = myPid();
         if (!mTarget.send(message)) {
             throw new RemoteException(EXCEPTION_MESSAGE);
         }
     }
 
     private final void onTransact(final Message message) {
-        final int origPid = setCallingPid(message.sendingPid);
+        final CallingIdentity callingIdentity = sCallingIdentity.get();
+        final int origPid = callingIdentity.mCallingPid;
+        callingIdentity.mCallingPid = message.sendingPid;
         try {
-            switch (message.what) {
+            if (message.what == BATCH_TRANSACTION) {
+                // Dispatch back-to-back, each transaction like a single oneway transaction.
+                final Batch batch = (Batch) message.obj;
+                for (int i = 0; i < batch.size(); i++) {
+                    onTransact(message, TRANSACTION, batch.getWhat(i), batch.getData(i));
+                }
+            } else {
+                onTransact(message, message.what, message.arg1, message.obj);
+            }
+        } finally {
+            message.result = null;
+            callingIdentity.mCallingPid = origPid;
+        }
+    }
+
+    private final void onTransact(final Message message, int type, int what, Object obj) {
+        final boolean statistics = TransactionStatistics.isEnabled();
+        final long startTime = statistics ? SystemClock.uptimeNanos() : 0;
+        boolean error = true;
+        try {
+            switch (type) {
             case TRANSACTION:
-                onTransact(message.arg1, (Parcel) message.obj, (Promise<Parcel>) message.result);
+                onTransact(what, (Parcel) obj, (Promise<Parcel>) message.result);
                 break;
             case LIGHTWEIGHT_TRANSACTION:
-                onTransact(message.arg1, message.arg2, message.obj, message.peekData(), message.result);
+                onTransact(what, message.arg2, obj, message.peekData(), message.result);
                 break;
             default:
                 break;
             }
+            error = false;
         } catch (RemoteException e) {
             Throwable caughtException = checkException(e);
             if (message.result != null) {
@@ -271,8 +312,11 @@ public class Binder implements IBinder {
                 Log.w(LOG_TAG, EXCEPTION_MESSAGE, e);
             }
         } finally {
-            message.result = null;
-            setCallingPid(origPid);
+            if (statistics) {
+                final long queueTime = (message.when != 0) ? startTime - message.when : 0;
+                TransactionStatistics.getLocalMethod(mDescriptor, what)
+                        .record(queueTime, SystemClock.uptimeNanos() - startTime, error);
+            }
         }
     }
 
@@ -360,7 +404,10 @@ public class Binder implements IBinder {
     }
 
     private class ExecutorMessenger implements IMessenger {
+        private static final int MAX_POOL_SIZE = 16;
         private final Executor mExecutor;
+        private final Transaction[] mPool = new Transaction[MAX_POOL_SIZE];
+        private int mPoolSize = 0;
 
         public ExecutorMessenger(final Executor executor) {
             mExecutor = executor;
@@ -373,18 +420,107 @@ public class Binder implements IBinder {
 
         @Override
         public boolean send(final Message message) {
+            if (TransactionStatistics.isEnabled()) {
+                // Marks the start of the queueing time, as the message queue does for handlers.
+                message.when = SystemClock.uptimeNanos();
+            }
+            Transaction transaction = obtain(message);
             try {
-                mExecutor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        onTransact(message);
-                    }
-                });
+                // Keep the transactions of each calling process in order.
+                if (mExecutor instanceof LooperGroup.Executor) {
+                    ((LooperGroup.Executor) mExecutor).execute(message.sendingPid, transaction);
+                } else if (mExecutor instanceof OrderedExecutor) {
+                    ((OrderedExecutor) mExecutor).execute(message.sendingPid, transaction);
+                } else {
+                    mExecutor.execute(transaction);
+                }
                 return true;
             } catch (RejectedExecutionException e) {
+                transaction.mMessage = null;
+                recycle(transaction);
                 return false;
             }
         }
+
+        private Transaction obtain(Message message) {
+            Transaction transaction = null;
+            synchronized (mPool) {
+                if (mPoolSize > 0) {
+                    transaction = mPool[--mPoolSize];
+                    mPool[mPoolSize] = null;
+                }
+            }
+            if (transaction == null) {
+                transaction = new Transaction();
+            }
+            transaction.mMessage = message;
+            return transaction;
+        }
+
+        private void recycle(Transaction transaction) {
+            synchronized (mPool) {
+                if (mPoolSize < MAX_POOL_SIZE) {
+                    mPool[mPoolSize++] = transaction;
+                }
+            }
+        }
+
+        /**
+         * Runs one transaction on the executor. Transactions and their messages are recycled after
+         * they have been run, like messages that are dispatched by a looper.
+         */
+        private class Transaction implements Runnable {
+            Message mMessage;
+
+            @Override
+            public void run() {
+                final Message message = mMessage;
+                mMessage = null;
+                recycle(this);
+                try {
+                    onTransact(message);
+                } finally {
+                    message.recycle();
+                }
+            }
+        }
+    }
+
+    /**
+     * The result of a two-way transaction. The reply parcel is rewound for reading on completion
+     * instead of via a chained promise.
+     */
+    private static final class ReplyPromise extends Promise<Parcel> {
+        ReplyPromise() {
+            super(Executors.SYNCHRONOUS_EXECUTOR);
+        }
+
+        @Override
+        public boolean complete(Parcel parcel) {
+            if (parcel != null) {
+                parcel.asInput();
+            }
+            return super.complete(parcel);
+        }
+
+        @Override
+        public boolean completeWith(Promise<Parcel> supplier) {
+            return super.completeWith(supplier.then(ReplyPromise::rewind));
+        }
+
+        private static void rewind(Parcel parcel) {
+            if (parcel != null) {
+                parcel.asInput();
+            }
+        }
+    }
+
+    /**
+     * Per-thread transaction state. Kept in primitive fields so that transactions do not box.
+     */
+    private static final class CallingIdentity {
+        final int mPid = Process.myPid();
+        int mCallingPid;
     }
 
     public static final <T> T get(Promise<T> result) throws RemoteException {
@@ -471,15 +607,6 @@ public class Binder implements IBinder {
             mProxyId = mRuntime.attachProxy(this);
         }
 
-        @Override
-        protected void finalize() throws Throwable {
-            try {
-                dispose();
-            } finally {
-                super.finalize();
-            }
-        }
-
         @Override
         public long getId() {
             return mId;
@@ -510,8 +637,29 @@ public class Binder implements IBinder {
             }
         }
 
+        /**
+         * Sends a lightweight transaction to the remote binder. Unlike local lightweight
+         * transactions, the arguments and the result are marshalled by the plugin of the binder,
+         * so they are restricted to the types supported by {@link Parcel#putValue}.
+         */
+        @Override
         public void transact(int what, int num, Object obj, Bundle data, Promise<?> promise, int flags) throws RemoteException {
-            throw new RemoteException(EXCEPTION_MESSAGE);
+            final Runtime runtime = mRuntime;
+            if (runtime != null) {
+                runtime.transact(this, what, num, obj, data, promise, flags);
+            } else {
+                throw new RemoteException(EXCEPTION_MESSAGE + ": Invalid proxy");
+            }
+        }
+
+        @Override
+        public void transactBatch(Batch batch) throws RemoteException {
+            final Runtime runtime = mRuntime;
+            if (runtime != null) {
+                runtime.transactBatch(this, batch);
+            } else {
+                throw new RemoteException(EXCEPTION_MESSAGE + ": Invalid proxy");
+            }
         }
 
         @Override
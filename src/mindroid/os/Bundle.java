@@ -17,36 +17,102 @@
 
 package mindroid.os;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
 
 /**
  * A mapping from String values to various types.
  *
+ * <p>
+ * The mappings are kept in arrays that are sorted by the hash codes of the keys, like an
+ * ArrayMap, and keys are looked up by binary search, or by a linear scan in small Bundles.
+ * Primitive values are stored unboxed in a separate array that is only allocated once the Bundle
+ * holds a primitive. Bundles are meant for a small number of mappings, lookups take O(log n) and
+ * insertions and removals O(n) time.
+ * </p>
+ * <p>
+ * Copies of a Bundle share the arrays with the original until either of them is modified, so
+ * copying a Bundle takes constant time.
+ * </p>
  */
 public final class Bundle {
-    private HashMap<String, Object> mMap;
+    private static final int[] EMPTY_HASHES = {};
+    private static final Object[] EMPTY_ARRAY = {};
+    private static final int BASE_SIZE = 4;
+    private static final int LINEAR_SEARCH_SIZE = 8;
+
+    // Primitive values are stored in mPrimitives, their slots in mArray hold the type.
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_BYTE = 2;
+    private static final byte TYPE_CHAR = 3;
+    private static final byte TYPE_SHORT = 4;
+    private static final byte TYPE_INT = 5;
+    private static final byte TYPE_LONG = 6;
+    private static final byte TYPE_FLOAT = 7;
+    private static final byte TYPE_DOUBLE = 8;
+    private static final Primitive BOOLEAN = new Primitive(TYPE_BOOLEAN);
+    private static final Primitive BYTE = new Primitive(TYPE_BYTE);
+    private static final Primitive CHAR = new Primitive(TYPE_CHAR);
+    private static final Primitive SHORT = new Primitive(TYPE_SHORT);
+    private static final Primitive INT = new Primitive(TYPE_INT);
+    private static final Primitive LONG = new Primitive(TYPE_LONG);
+    private static final Primitive FLOAT = new Primitive(TYPE_FLOAT);
+    private static final Primitive DOUBLE = new Primitive(TYPE_DOUBLE);
+
+    // The hash codes of the keys in ascending order.
+    private int[] mHashes;
+    // The key of mapping i at 2 * i and its value or the type of its primitive at 2 * i + 1.
+    private Object[] mArray;
+    // The primitive values, null until the first primitive is put.
+    private long[] mPrimitives;
+    private int mSize;
+    // True if the arrays may be shared with copies of this Bundle. They are copied before the
+    // Bundle is modified.
+    private boolean mIsShared;
 
     public Bundle() {
-        mMap = new HashMap<>();
+        mHashes = EMPTY_HASHES;
+        mArray = EMPTY_ARRAY;
     }
 
     /**
-     * Constructs a Bundle containing a copy of the mappings from the given Bundle.
+     * Constructs a new, empty Bundle sized to hold the given number of elements.
+     *
+     * @param capacity the initial capacity of the Bundle.
+     */
+    public Bundle(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+        if (capacity == 0) {
+            mHashes = EMPTY_HASHES;
+            mArray = EMPTY_ARRAY;
+        } else {
+            mHashes = new int[capacity];
+            mArray = new Object[capacity << 1];
+        }
+    }
+
+    /**
+     * Constructs a Bundle containing a copy of the mappings from the given Bundle. The copy shares
+     * the mappings with the given Bundle until either of them is modified.
      *
      * @param other a Bundle to be copied.
      */
     public Bundle(Bundle other) {
-        mMap = new HashMap<>();
-        Iterator<Map.Entry<String, Object>> itr = other.mMap.entrySet().iterator();
-        while (itr.hasNext()) {
-            Map.Entry<String, Object> entry = itr.next();
-            String key = entry.getKey();
-            Object value = entry.getValue();
-            mMap.put(key, value);
+        if (other.mSize == 0) {
+            mHashes = EMPTY_HASHES;
+            mArray = EMPTY_ARRAY;
+        } else {
+            share(other);
         }
     }
 
@@ -65,7 +131,11 @@ public final class Bundle {
      * together.
      */
     public Bundle clear() {
-        mMap.clear();
+        mHashes = EMPTY_HASHES;
+        mArray = EMPTY_ARRAY;
+        mPrimitives = null;
+        mSize = 0;
+        mIsShared = false;
         return this;
     }
 
@@ -75,14 +145,14 @@ public final class Bundle {
      * @return the number of mappings as an int.
      */
     public int size() {
-        return mMap.size();
+        return mSize;
     }
 
     /**
      * Returns true if the mapping of this Bundle is empty, false otherwise.
      */
     public boolean isEmpty() {
-        return mMap.isEmpty();
+        return mSize == 0;
     }
 
     /**
@@ -92,16 +162,17 @@ public final class Bundle {
      * @return true if the key is part of the mapping, false otherwise
      */
     public boolean containsKey(String key) {
-        return mMap.containsKey(key);
+        return indexOfKey(key) >= 0;
     }
 
     /**
-     * Returns a Set containing the Strings used as keys in this Bundle.
+     * Returns a Set containing the Strings used as keys in this Bundle. The set is backed by the
+     * Bundle, removing a key from the set removes its mapping from the Bundle.
      *
      * @return a Set of String keys
      */
     public Set<String> keySet() {
-        return mMap.keySet();
+        return new KeySet();
     }
 
     /**
@@ -111,18 +182,22 @@ public final class Bundle {
      * @return an Object, or null
      */
     public Object get(String key) {
-        return mMap.get(key);
+        final int index = indexOfKey(key);
+        return (index >= 0) ? valueAt(index) : null;
     }
 
     /**
      * Removes any entry with the given key from the mapping of this Bundle.
      *
      * @param key a String key
-     * @return Returns a reference to the same Bundle object, so you can chain calls
+     * @return Returns a reference to the same Bundle object, so you can chain put calls
      * together.
      */
     public Bundle remove(String key) {
-        mMap.remove(key);
+        final int index = indexOfKey(key);
+        if (index >= 0) {
+            removeAt(index);
+        }
         return this;
     }
 
@@ -134,8 +209,19 @@ public final class Bundle {
      * together.
      */
     public Bundle putAll(Bundle bundle) {
-        if (bundle != null) {
-            mMap.putAll(bundle.mMap);
+        if (bundle != null && bundle != this && bundle.mSize > 0) {
+            if (mSize == 0) {
+                share(bundle);
+            } else {
+                for (int i = 0; i < bundle.mSize; i++) {
+                    final Object value = bundle.mArray[(i << 1) + 1];
+                    if (value instanceof Primitive) {
+                        putPrimitive(bundle.keyAt(i), (Primitive) value, bundle.mPrimitives[i]);
+                    } else {
+                        putValue(bundle.keyAt(i), value);
+                    }
+                }
+            }
         }
         return this;
     }
@@ -150,7 +236,7 @@ public final class Bundle {
      * together.
      */
     public Bundle putBoolean(String key, boolean value) {
-        mMap.put(key, new Boolean(value));
+        putPrimitive(key, BOOLEAN, value ? 1 : 0);
         return this;
     }
 
@@ -164,7 +250,7 @@ public final class Bundle {
      * together.
      */
     public Bundle putByte(String key, byte value) {
-        mMap.put(key, new Byte(value));
+        putPrimitive(key, BYTE, value);
         return this;
     }
 
@@ -178,7 +264,7 @@ public final class Bundle {
      * together.
      */
     public Bundle putChar(String key, char value) {
-        mMap.put(key, new Character(value));
+        putPrimitive(key, CHAR, value);
         return this;
     }
 
@@ -192,7 +278,7 @@ public final class Bundle {
      * together.
      */
     public Bundle putShort(String key, short value) {
-        mMap.put(key, new Short(value));
+        putPrimitive(key, SHORT, value);
         return this;
     }
 
@@ -206,7 +292,7 @@ public final class Bundle {
      * together.
      */
     public Bundle putInt(String key, int value) {
-        mMap.put(key, new Integer(value));
+        putPrimitive(key, INT, value);
         return this;
     }
 
@@ -220,7 +306,7 @@ public final class Bundle {
      * together.
      */
     public Bundle putLong(String key, long value) {
-        mMap.put(key, new Long(value));
+        putPrimitive(key, LONG, value);
         return this;
     }
 
@@ -234,7 +320,7 @@ public final class Bundle {
      * together.
      */
     public Bundle putFloat(String key, float value) {
-        mMap.put(key, new Float(value));
+        putPrimitive(key, FLOAT, Float.floatToRawIntBits(value));
         return this;
     }
 
@@ -248,7 +334,7 @@ public final class Bundle {
      * together.
      */
     public Bundle putDouble(String key, double value) {
-        mMap.put(key, new Double(value));
+        putPrimitive(key, DOUBLE, Double.doubleToRawLongBits(value));
         return this;
     }
 
@@ -263,14 +349,15 @@ public final class Bundle {
      */
     public Bundle putString(String key, String value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
 
     /**
      * Inserts an object value into the mapping of this Bundle, replacing any existing value for the
-     * given key. Either key or value may be null.
+     * given key. Either key or value may be null. Boxed primitives are stored unboxed, as by the
+     * typed put methods.
      *
      * @param key a String, or null
      * @param value an object, or null
@@ -278,8 +365,24 @@ public final class Bundle {
      * together.
      */
     public Bundle putObject(String key, Object value) {
-        if (value != null) {
-            mMap.put(key, value);
+        if (value instanceof Integer) {
+            putInt(key, (Integer) value);
+        } else if (value instanceof Boolean) {
+            putBoolean(key, (Boolean) value);
+        } else if (value instanceof Long) {
+            putLong(key, (Long) value);
+        } else if (value instanceof Double) {
+            putDouble(key, (Double) value);
+        } else if (value instanceof Float) {
+            putFloat(key, (Float) value);
+        } else if (value instanceof Byte) {
+            putByte(key, (Byte) value);
+        } else if (value instanceof Character) {
+            putChar(key, (Character) value);
+        } else if (value instanceof Short) {
+            putShort(key, (Short) value);
+        } else if (value != null) {
+            putValue(key, value);
         }
         return this;
     }
@@ -295,7 +398,7 @@ public final class Bundle {
      */
     public Bundle putBooleanArray(String key, boolean[] value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -311,7 +414,7 @@ public final class Bundle {
      */
     public Bundle putByteArray(String key, byte[] value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -327,7 +430,7 @@ public final class Bundle {
      */
     public Bundle putShortArray(String key, short[] value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -343,7 +446,7 @@ public final class Bundle {
      */
     public Bundle putCharArray(String key, char[] value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -359,7 +462,7 @@ public final class Bundle {
      */
     public Bundle putIntArray(String key, int[] value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -375,7 +478,7 @@ public final class Bundle {
      */
     public Bundle putLongArray(String key, long[] value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -391,7 +494,7 @@ public final class Bundle {
      */
     public Bundle putFloatArray(String key, float[] value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -407,7 +510,7 @@ public final class Bundle {
      */
     public Bundle putDoubleArray(String key, double[] value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -423,7 +526,7 @@ public final class Bundle {
      */
     public Bundle putStringArray(String key, String[] value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -439,7 +542,7 @@ public final class Bundle {
      */
     public Bundle putIntegerArrayList(String key, ArrayList<Integer> value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -455,7 +558,7 @@ public final class Bundle {
      */
     public Bundle putStringArrayList(String key, ArrayList<String> value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -471,7 +574,7 @@ public final class Bundle {
      */
     public Bundle putBundle(String key, Bundle value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -495,7 +598,7 @@ public final class Bundle {
      */
     public Bundle putBinder(String key, IBinder value) {
         if (value != null) {
-            mMap.put(key, value);
+            putValue(key, value);
         }
         return this;
     }
@@ -520,15 +623,11 @@ public final class Bundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key, boolean defaultValue) {
-        Object o = mMap.get(key);
-        if (o == null) {
-            return defaultValue;
-        }
-        try {
-            return ((Boolean) o).booleanValue();
-        } catch (ClassCastException e) {
+        final int index = indexOfKey(key);
+        if (index < 0 || mArray[(index << 1) + 1] != BOOLEAN) {
             return defaultValue;
         }
+        return mPrimitives[index] != 0;
     }
 
     /**
@@ -551,15 +650,11 @@ public final class Bundle {
      * @return a byte value
      */
     public byte getByte(String key, byte defaultValue) {
-        Object o = mMap.get(key);
-        if (o == null) {
-            return defaultValue;
-        }
-        try {
-            return ((Byte) o).byteValue();
-        } catch (ClassCastException e) {
+        final int index = indexOfKey(key);
+        if (index < 0 || mArray[(index << 1) + 1] != BYTE) {
             return defaultValue;
         }
+        return (byte) mPrimitives[index];
     }
 
     /**
@@ -582,15 +677,11 @@ public final class Bundle {
      * @return a char value
      */
     public char getChar(String key, char defaultValue) {
-        Object o = mMap.get(key);
-        if (o == null) {
-            return defaultValue;
-        }
-        try {
-            return ((Character) o).charValue();
-        } catch (ClassCastException e) {
+        final int index = indexOfKey(key);
+        if (index < 0 || mArray[(index << 1) + 1] != CHAR) {
             return defaultValue;
         }
+        return (char) mPrimitives[index];
     }
 
     /**
@@ -613,15 +704,11 @@ public final class Bundle {
      * @return a short value
      */
     public short getShort(String key, short defaultValue) {
-        Object o = mMap.get(key);
-        if (o == null) {
-            return defaultValue;
-        }
-        try {
-            return ((Short) o).shortValue();
-        } catch (ClassCastException e) {
+        final int index = indexOfKey(key);
+        if (index < 0 || mArray[(index << 1) + 1] != SHORT) {
             return defaultValue;
         }
+        return (short) mPrimitives[index];
     }
 
     /**
@@ -644,15 +731,11 @@ public final class Bundle {
      * @return an int value
      */
     public int getInt(String key, int defaultValue) {
-        Object o = mMap.get(key);
-        if (o == null) {
-            return defaultValue;
-        }
-        try {
-            return ((Integer) o).intValue();
-        } catch (ClassCastException e) {
+        final int index = indexOfKey(key);
+        if (index < 0 || mArray[(index << 1) + 1] != INT) {
             return defaultValue;
         }
+        return (int) mPrimitives[index];
     }
 
     /**
@@ -675,15 +758,11 @@ public final class Bundle {
      * @return a long value
      */
     public long getLong(String key, long defaultValue) {
-        Object o = mMap.get(key);
-        if (o == null) {
-            return defaultValue;
-        }
-        try {
-            return ((Long) o).longValue();
-        } catch (ClassCastException e) {
+        final int index = indexOfKey(key);
+        if (index < 0 || mArray[(index << 1) + 1] != LONG) {
             return defaultValue;
         }
+        return mPrimitives[index];
     }
 
     /**
@@ -706,15 +785,11 @@ public final class Bundle {
      * @return a float value
      */
     public float getFloat(String key, float defaultValue) {
-        Object o = mMap.get(key);
-        if (o == null) {
-            return defaultValue;
-        }
-        try {
-            return ((Float) o).floatValue();
-        } catch (ClassCastException e) {
+        final int index = indexOfKey(key);
+        if (index < 0 || mArray[(index << 1) + 1] != FLOAT) {
             return defaultValue;
         }
+        return Float.intBitsToFloat((int) mPrimitives[index]);
     }
 
     /**
@@ -737,15 +812,11 @@ public final class Bundle {
      * @return a double value
      */
     public double getDouble(String key, double defaultValue) {
-        Object o = mMap.get(key);
-        if (o == null) {
-            return defaultValue;
-        }
-        try {
-            return ((Double) o).doubleValue();
-        } catch (ClassCastException e) {
+        final int index = indexOfKey(key);
+        if (index < 0 || mArray[(index << 1) + 1] != DOUBLE) {
             return defaultValue;
         }
+        return Double.longBitsToDouble(mPrimitives[index]);
     }
 
     /**
@@ -756,7 +827,7 @@ public final class Bundle {
      * @return a String value, or null
      */
     public String getString(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -776,7 +847,7 @@ public final class Bundle {
      * @return a String value, or null
      */
     public String getString(String key, String defaultValue) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -795,8 +866,7 @@ public final class Bundle {
      * @return an object value, or null
      */
     public Object getObject(String key) {
-        Object o = mMap.get(key);
-        return o;
+        return get(key);
     }
 
     /**
@@ -808,7 +878,7 @@ public final class Bundle {
      * @return an object value, or null
      */
     public Object getObject(String key, Object defaultValue) {
-        Object o = mMap.get(key);
+        Object o = get(key);
         if (o == null) {
             return defaultValue;
         }
@@ -823,7 +893,7 @@ public final class Bundle {
      * @return a boolean[] value, or null
      */
     public boolean[] getBooleanArray(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -842,7 +912,7 @@ public final class Bundle {
      * @return a byte[] value, or null
      */
     public byte[] getByteArray(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -861,7 +931,7 @@ public final class Bundle {
      * @return a short[] value, or null
      */
     public short[] getShortArray(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -880,7 +950,7 @@ public final class Bundle {
      * @return a char[] value, or null
      */
     public char[] getCharArray(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -899,7 +969,7 @@ public final class Bundle {
      * @return an int[] value, or null
      */
     public int[] getIntArray(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -918,7 +988,7 @@ public final class Bundle {
      * @return a long[] value, or null
      */
     public long[] getLongArray(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -937,7 +1007,7 @@ public final class Bundle {
      * @return a float[] value, or null
      */
     public float[] getFloatArray(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -956,7 +1026,7 @@ public final class Bundle {
      * @return a double[] value, or null
      */
     public double[] getDoubleArray(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -975,7 +1045,7 @@ public final class Bundle {
      * @return a String[] value, or null
      */
     public String[] getStringArray(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -994,7 +1064,7 @@ public final class Bundle {
      * @return an ArrayList<String> value, or null
      */
     public ArrayList<Integer> getIntegerArrayList(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1013,7 +1083,7 @@ public final class Bundle {
      * @return an ArrayList<String> value, or null
      */
     public ArrayList<String> getStringArrayList(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1032,7 +1102,7 @@ public final class Bundle {
      * @return a Bundle value, or null
      */
     public Bundle getBundle(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1051,7 +1121,7 @@ public final class Bundle {
      * @return an IBinder value, or null
      */
     public IBinder getBinder(String key) {
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1074,7 +1144,11 @@ public final class Bundle {
      * @throws NullPointerException
      */
     public Map<String, ?> getAll() {
-        return new HashMap<>(mMap);
+        HashMap<String, Object> map = new HashMap<>();
+        for (int i = 0; i < mSize; i++) {
+            map.put(keyAt(i), valueAt(i));
+        }
+        return map;
     }
 
     /** @hide */
@@ -1097,26 +1171,374 @@ public final class Bundle {
      * @hide
      */
     public void retainBasicTypes() {
-        if (mMap != null) {
-            Iterator<Map.Entry<String, Object>> itr = mMap.entrySet().iterator();
-            while (itr.hasNext()) {
-                Map.Entry<String, Object> entry = itr.next();
-                Object value = entry.getValue();
-
-                if (isBasicType(value)) {
-                    continue;
-                }
-                if (value instanceof Bundle) {
-                    ((Bundle) value).retainBasicTypes();
-                    continue;
-                }
-                itr.remove();
+        for (int i = mSize - 1; i >= 0; i--) {
+            Object value = mArray[(i << 1) + 1];
+            if ((value instanceof Primitive) || isBasicType(value)) {
+                continue;
+            }
+            if (value instanceof Bundle) {
+                ((Bundle) value).retainBasicTypes();
+                continue;
             }
+            removeAt(i);
         }
     }
 
     @Override
     public String toString() {
-        return mMap.toString();
+        if (mSize == 0) {
+            return "{}";
+        }
+        StringBuilder builder = new StringBuilder(mSize * 28);
+        builder.append('{');
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            Object value = valueAt(i);
+            builder.append(keyAt(i)).append('=').append((value != this) ? value : "(this Bundle)");
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * Writes the mappings in the format of {@link Parcel#putValue} without boxing primitives.
+     */
+    void writeToParcel(Parcel parcel) throws RemoteException {
+        parcel.putInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            parcel.putString(keyAt(i));
+            final Object value = mArray[(i << 1) + 1];
+            if (!(value instanceof Primitive)) {
+                parcel.putValue(value);
+                continue;
+            }
+            switch (((Primitive) value).mType) {
+            case TYPE_BOOLEAN:
+                parcel.putByte(Parcel.VAL_BOOLEAN);
+                parcel.putBoolean(mPrimitives[i] != 0);
+                break;
+            case TYPE_BYTE:
+                parcel.putByte(Parcel.VAL_BYTE);
+                parcel.putByte((byte) mPrimitives[i]);
+                break;
+            case TYPE_CHAR:
+                parcel.putByte(Parcel.VAL_CHAR);
+                parcel.putChar((char) mPrimitives[i]);
+                break;
+            case TYPE_SHORT:
+                parcel.putByte(Parcel.VAL_SHORT);
+                parcel.putShort((short) mPrimitives[i]);
+                break;
+            case TYPE_INT:
+                parcel.putByte(Parcel.VAL_INTEGER);
+                parcel.putInt((int) mPrimitives[i]);
+                break;
+            case TYPE_LONG:
+                parcel.putByte(Parcel.VAL_LONG);
+                parcel.putLong(mPrimitives[i]);
+                break;
+            case TYPE_FLOAT:
+                parcel.putByte(Parcel.VAL_FLOAT);
+                parcel.putFloat(Float.intBitsToFloat((int) mPrimitives[i]));
+                break;
+            case TYPE_DOUBLE:
+                parcel.putByte(Parcel.VAL_DOUBLE);
+                parcel.putDouble(Double.longBitsToDouble(mPrimitives[i]));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads the given number of mappings that have been written by {@link #writeToParcel} without
+     * boxing primitives.
+     */
+    void readFromParcel(Parcel parcel, int size) throws RemoteException {
+        for (int i = 0; i < size; i++) {
+            final String key = parcel.getString();
+            final byte type = parcel.getByte();
+            switch (type) {
+            case Parcel.VAL_BOOLEAN:
+                putBoolean(key, parcel.getBoolean());
+                break;
+            case Parcel.VAL_BYTE:
+                putByte(key, parcel.getByte());
+                break;
+            case Parcel.VAL_CHAR:
+                putChar(key, parcel.getChar());
+                break;
+            case Parcel.VAL_SHORT:
+                putShort(key, parcel.getShort());
+                break;
+            case Parcel.VAL_INTEGER:
+                putInt(key, parcel.getInt());
+                break;
+            case Parcel.VAL_LONG:
+                putLong(key, parcel.getLong());
+                break;
+            case Parcel.VAL_FLOAT:
+                putFloat(key, parcel.getFloat());
+                break;
+            case Parcel.VAL_DOUBLE:
+                putDouble(key, parcel.getDouble());
+                break;
+            default:
+                putObject(key, parcel.getValue(type));
+                break;
+            }
+        }
+    }
+
+    private String keyAt(int index) {
+        return (String) mArray[index << 1];
+    }
+
+    /**
+     * Returns the value of the given mapping, primitives are boxed.
+     */
+    private Object valueAt(int index) {
+        final Object value = mArray[(index << 1) + 1];
+        if (!(value instanceof Primitive)) {
+            return value;
+        }
+        switch (((Primitive) value).mType) {
+        case TYPE_BOOLEAN:
+            return Boolean.valueOf(mPrimitives[index] != 0);
+        case TYPE_BYTE:
+            return Byte.valueOf((byte) mPrimitives[index]);
+        case TYPE_CHAR:
+            return Character.valueOf((char) mPrimitives[index]);
+        case TYPE_SHORT:
+            return Short.valueOf((short) mPrimitives[index]);
+        case TYPE_INT:
+            return Integer.valueOf((int) mPrimitives[index]);
+        case TYPE_LONG:
+            return Long.valueOf(mPrimitives[index]);
+        case TYPE_FLOAT:
+            return Float.valueOf(Float.intBitsToFloat((int) mPrimitives[index]));
+        case TYPE_DOUBLE:
+            return Double.valueOf(Double.longBitsToDouble(mPrimitives[index]));
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Returns the value of a mapping that is not a primitive, or null.
+     */
+    private Object getValue(String key) {
+        final int index = indexOfKey(key);
+        if (index < 0) {
+            return null;
+        }
+        final Object value = mArray[(index << 1) + 1];
+        return (value instanceof Primitive) ? null : value;
+    }
+
+    private int indexOfKey(String key) {
+        return (mSize > 0) ? indexOf(key, (key == null) ? 0 : key.hashCode()) : ~0;
+    }
+
+    /**
+     * Returns the index of the key, or the bitwise complement of the index at which it would be
+     * inserted. Keys with equal hash codes are adjacent.
+     */
+    private int indexOf(String key, int hash) {
+        final int[] hashes = mHashes;
+        final int size = mSize;
+        int index;
+        if (size <= LINEAR_SEARCH_SIZE) {
+            index = 0;
+            while (index < size && hashes[index] < hash) {
+                index++;
+            }
+            if (index == size || hashes[index] != hash) {
+                return ~index;
+            }
+        } else {
+            index = Arrays.binarySearch(hashes, 0, size, hash);
+            if (index < 0) {
+                return index;
+            }
+        }
+        if (Objects.equals(key, mArray[index << 1])) {
+            return index;
+        }
+        int end;
+        for (end = index + 1; end < size && mHashes[end] == hash; end++) {
+            if (Objects.equals(key, mArray[end << 1])) {
+                return end;
+            }
+        }
+        for (int i = index - 1; i >= 0 && mHashes[i] == hash; i--) {
+            if (Objects.equals(key, mArray[i << 1])) {
+                return i;
+            }
+        }
+        return ~end;
+    }
+
+    private void putValue(String key, Object value) {
+        final int index = indexOfSlot(key);
+        mArray[(index << 1) + 1] = value;
+    }
+
+    private void putPrimitive(String key, Primitive type, long value) {
+        final int index = indexOfSlot(key);
+        if (mPrimitives == null) {
+            mPrimitives = new long[mHashes.length];
+        }
+        mArray[(index << 1) + 1] = type;
+        mPrimitives[index] = value;
+    }
+
+    /**
+     * Returns the index of the mapping for the key, inserting an empty mapping if there is none.
+     */
+    private int indexOfSlot(String key) {
+        final int hash = (key == null) ? 0 : key.hashCode();
+        int index = (mSize > 0) ? indexOf(key, hash) : ~0;
+        if (index >= 0) {
+            if (mIsShared) {
+                resize(mHashes.length);
+            }
+            return index;
+        }
+        index = ~index;
+        if (mSize == mHashes.length) {
+            final int capacity = mHashes.length;
+            resize((capacity < BASE_SIZE) ? BASE_SIZE
+                    : (capacity < 4 * BASE_SIZE) ? 2 * capacity : capacity + (capacity >> 1));
+        } else if (mIsShared) {
+            resize(mHashes.length);
+        }
+        if (index < mSize) {
+            System.arraycopy(mHashes, index, mHashes, index + 1, mSize - index);
+            System.arraycopy(mArray, index << 1, mArray, (index + 1) << 1, (mSize - index) << 1);
+            if (mPrimitives != null) {
+                System.arraycopy(mPrimitives, index, mPrimitives, index + 1, mSize - index);
+            }
+        }
+        mHashes[index] = hash;
+        mArray[index << 1] = key;
+        mArray[(index << 1) + 1] = null;
+        mSize++;
+        return index;
+    }
+
+    private void removeAt(int index) {
+        if (mIsShared) {
+            resize(mHashes.length);
+        }
+        final int size = mSize - 1;
+        if (index < size) {
+            System.arraycopy(mHashes, index + 1, mHashes, index, size - index);
+            System.arraycopy(mArray, (index + 1) << 1, mArray, index << 1, (size - index) << 1);
+            if (mPrimitives != null) {
+                System.arraycopy(mPrimitives, index + 1, mPrimitives, index, size - index);
+            }
+        }
+        mArray[size << 1] = null;
+        mArray[(size << 1) + 1] = null;
+        mSize = size;
+    }
+
+    /**
+     * Shares the arrays of the other Bundle, which must not be empty, until either Bundle is
+     * modified.
+     */
+    private void share(Bundle other) {
+        mHashes = other.mHashes;
+        mArray = other.mArray;
+        mPrimitives = other.mPrimitives;
+        mSize = other.mSize;
+        mIsShared = true;
+        other.mIsShared = true;
+    }
+
+    /**
+     * Copies the arrays into new arrays of the given capacity, which also ends sharing them.
+     */
+    private void resize(int capacity) {
+        mHashes = Arrays.copyOf(mHashes, capacity);
+        mArray = Arrays.copyOf(mArray, capacity << 1);
+        if (mPrimitives != null) {
+            mPrimitives = Arrays.copyOf(mPrimitives, capacity);
+        }
+        mIsShared = false;
+    }
+
+    private static final class Primitive {
+        final byte mType;
+
+        Primitive(byte type) {
+            mType = type;
+        }
+    }
+
+    private class KeySet extends AbstractSet<String> {
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int mIndex = 0;
+                private int mExpectedSize = mSize;
+                private boolean mCanRemove = false;
+
+                @Override
+                public boolean hasNext() {
+                    return mIndex < mSize;
+                }
+
+                @Override
+                public String next() {
+                    if (mExpectedSize != mSize) {
+                        throw new ConcurrentModificationException();
+                    }
+                    if (mIndex >= mSize) {
+                        throw new NoSuchElementException();
+                    }
+                    mCanRemove = true;
+                    return keyAt(mIndex++);
+                }
+
+                @Override
+                public void remove() {
+                    if (!mCanRemove) {
+                        throw new IllegalStateException();
+                    }
+                    if (mExpectedSize != mSize) {
+                        throw new ConcurrentModificationException();
+                    }
+                    mCanRemove = false;
+                    removeAt(--mIndex);
+                    mExpectedSize = mSize;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return (o == null || o instanceof String) && containsKey((String) o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (contains(o)) {
+                Bundle.this.remove((String) o);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void clear() {
+            Bundle.this.clear();
+        }
     }
 }
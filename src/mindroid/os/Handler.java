@@ -20,6 +20,7 @@ package mindroid.os;
 import mindroid.util.Log;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Handler allows you to send and process {@link Message} and Runnable objects associated with a
@@ -64,10 +65,24 @@ public class Handler {
      */
     private static final String LOG_TAG = "Handler";
 
+    /**
+     * Coalesced messages keep the earlier of the delivery times of the pending and the new message.
+     * Useful for throttling, e.g. repeated updates are dispatched no later than the first one
+     * asked for.
+     */
+    public static final int COALESCE_KEEP_EARLIER_TIME = 0;
+    /**
+     * Coalesced messages keep the later of the delivery times of the pending and the new message.
+     * Useful for debouncing, e.g. a burst of updates is dispatched once after it has settled.
+     */
+    public static final int COALESCE_KEEP_LATER_TIME = 1;
+
     final MessageQueue mMessageQueue;
     final Looper mLooper;
     final Callback mCallback;
     Executor mExecutor;
+    // Index of the pending messages of this handler, guarded by the lock of mMessageQueue.
+    MessageQueue.Index mMessageIndex;
 
     /**
      * Callback interface you can use when instantiating a Handler to avoid having to implement your
@@ -269,6 +284,24 @@ public class Handler {
         return sendMessageAtTime(getPostMessage(runnable, token), uptimeMillis) ? runnable : null;
     }
 
+    /**
+     * Causes the Runnable runnable to be added to the message queue, to be run at a specific time given by
+     * <var>uptimeNanos</var>. <b>The time-base is {@link mindroid.os.SystemClock#uptimeNanos}
+     * .</b> The runnable will be run on the thread to which this handler is attached.
+     * 
+     * @param runnable The Runnable that will be executed.
+     * @param uptimeNanos The absolute time at which the callback should run, using the
+     * {@link mindroid.os.SystemClock#uptimeNanos} time-base.
+     * 
+     * @return Returns the Runnable if the Runnable was successfully placed in to the message queue.
+     * Returns null on failure, usually because the looper processing the message queue is exiting.
+     * Note that a result of true does not mean the Runnable will be processed -- if the looper is quit
+     * before the delivery time of the message occurs then the message will be dropped.
+     */
+    public final Runnable postAtTimeNanos(Runnable runnable, long uptimeNanos) {
+        return sendMessageAtTimeNanos(getPostMessage(runnable), uptimeNanos) ? runnable : null;
+    }
+
     /**
      * Causes the Runnable runnable to be added to the message queue, to be run after the specified amount
      * of time elapses. The runnable will be run on the thread to which this handler is attached.
@@ -285,6 +318,24 @@ public class Handler {
         return sendMessageDelayed(getPostMessage(runnable), delayMillis) ? runnable : null;
     }
 
+    /**
+     * Causes the Runnable runnable to be added to the message queue unless it is already pending. A
+     * pending post of the same Runnable is rescheduled according to the coalescing mode instead.
+     * This replaces {@link #removeCallbacks} followed by {@link #postDelayed} with a single queue
+     * operation.
+     * 
+     * @param runnable The Runnable that will be executed.
+     * @param delayMillis The delay (in milliseconds) until the Runnable will be executed.
+     * @param mode Either {@link #COALESCE_KEEP_EARLIER_TIME} or {@link #COALESCE_KEEP_LATER_TIME}.
+     * 
+     * @return Returns the Runnable if the Runnable was successfully placed in to the message queue
+     * or coalesced with a pending post. Returns null on failure, usually because the looper
+     * processing the message queue is exiting.
+     */
+    public final Runnable postCoalesced(Runnable runnable, long delayMillis, int mode) {
+        return sendMessageCoalesced(getPostMessage(runnable), delayMillis, mode) ? runnable : null;
+    }
+
     /**
      * Remove any pending posts of Runnable r that are in the message queue.
      */
@@ -387,7 +438,7 @@ public class Handler {
         MessageQueue queue = mMessageQueue;
         if (queue != null) {
             message.target = this;
-            sent = queue.enqueueMessage(message, uptimeMillis);
+            sent = queue.enqueueMessage(message, TimeUnit.MILLISECONDS.toNanos(uptimeMillis));
         } else {
             RuntimeException e = new RuntimeException(this + " sendMessageAtTime() called with no mQueue");
             Log.w(LOG_TAG, e.getMessage(), e);
@@ -395,6 +446,79 @@ public class Handler {
         return sent;
     }
 
+    /**
+     * Sends a Message containing only the what value, coalesced with a pending message with the
+     * same what value.
+     * 
+     * @see #sendMessageCoalesced(mindroid.os.Message, long, int)
+     */
+    public final boolean sendEmptyMessageCoalesced(int what, long delayMillis, int mode) {
+        Message message = Message.obtain();
+        message.what = what;
+        return sendMessageCoalesced(message, delayMillis, mode);
+    }
+
+    /**
+     * Enqueue a message into the message queue unless a message with the same what value is
+     * already pending. In that case, the most recent pending message takes over the arguments,
+     * object and data of the message and is rescheduled to the earlier or later of both delivery
+     * times in a single queue operation. This replaces {@link #removeMessages(int)} followed by
+     * {@link #sendMessageDelayed} for debouncing and throttling.
+     * 
+     * @param delayMillis The delay (in milliseconds) until the message will be delivered.
+     * @param mode Either {@link #COALESCE_KEEP_EARLIER_TIME} or {@link #COALESCE_KEEP_LATER_TIME}.
+     * 
+     * @return Returns true if the message was successfully placed in to the message queue or
+     * coalesced with a pending message. Returns false on failure, usually because the looper
+     * processing the message queue is exiting.
+     */
+    public final boolean sendMessageCoalesced(Message message, long delayMillis, int mode) {
+        if (mode != COALESCE_KEEP_EARLIER_TIME && mode != COALESCE_KEEP_LATER_TIME) {
+            throw new IllegalArgumentException("Invalid coalescing mode: " + mode);
+        }
+        if (delayMillis < 0) {
+            delayMillis = 0;
+        }
+        boolean sent = false;
+        MessageQueue queue = mMessageQueue;
+        if (queue != null) {
+            message.target = this;
+            sent = queue.enqueueCoalescedMessage(message, SystemClock.uptimeNanos() + TimeUnit.MILLISECONDS.toNanos(delayMillis),
+                    mode == COALESCE_KEEP_EARLIER_TIME);
+        } else {
+            RuntimeException e = new RuntimeException(this + " sendMessageCoalesced() called with no mQueue");
+            Log.w(LOG_TAG, e.getMessage(), e);
+        }
+        return sent;
+    }
+
+    /**
+     * Enqueue a message into the message queue after all pending messages before the absolute time
+     * (in nanoseconds) <var>uptimeNanos</var>. <b>The time-base is
+     * {@link mindroid.os.SystemClock#uptimeNanos}.</b> You will receive it in
+     * {@link #handleMessage}, in the thread attached to this handler.
+     * 
+     * @param uptimeNanos The absolute time at which the message should be delivered, using the
+     * {@link mindroid.os.SystemClock#uptimeNanos} time-base.
+     * 
+     * @return Returns true if the message was successfully placed in to the message queue. Returns
+     * false on failure, usually because the looper processing the message queue is exiting. Note
+     * that a result of true does not mean the message will be processed -- if the looper is quit
+     * before the delivery time of the message occurs then the message will be dropped.
+     */
+    public final boolean sendMessageAtTimeNanos(Message message, long uptimeNanos) {
+        boolean sent = false;
+        MessageQueue queue = mMessageQueue;
+        if (queue != null) {
+            message.target = this;
+            sent = queue.enqueueMessage(message, uptimeNanos);
+        } else {
+            RuntimeException e = new RuntimeException(this + " sendMessageAtTimeNanos() called with no mQueue");
+            Log.w(LOG_TAG, e.getMessage(), e);
+        }
+        return sent;
+    }
+
     /**
      * Remove any pending posts of messages with code 'what' that are in the message queue.
      */
@@ -17,6 +17,8 @@
 
 package mindroid.os;
 
+import mindroid.util.concurrent.Executors;
+
 /**
  * Handy class for starting a new thread that has a looper. The looper can then be used to create
  * handler classes. Note that start() must still be called.
@@ -36,6 +38,54 @@ public class HandlerThread extends Thread {
         super(threadGroup, name);
     }
 
+    /**
+     * Starts a new thread that runs a looper and returns the looper once it has been prepared. If
+     * virtual is true and the Java VM supports virtual threads, the looper runs on a virtual
+     * thread. Virtual threads do not belong to the given thread group, but uncaught exceptions are
+     * still reported to it. Otherwise, a handler thread is started in the given thread group.
+     * <p>
+     * Use {@link Looper#getThread()} to join the thread that actually runs the looper or to check
+     * whether it is alive, and {@link Looper#quit()} to stop it.
+     *
+     * @param threadGroup The thread group, or null for the thread group of the calling thread.
+     * @param name The name of the thread.
+     * @param virtual True to run the looper on a virtual thread if supported.
+     * @return The looper.
+     */
+    public static Looper startLooper(ThreadGroup threadGroup, String name, boolean virtual) {
+        if (!virtual || !Executors.isVirtualThreadSupported()) {
+            HandlerThread thread = (threadGroup != null) ? new HandlerThread(threadGroup, name) : new HandlerThread(name);
+            thread.start();
+            return thread.getLooper();
+        }
+
+        final Looper[] looper = new Looper[1];
+        Thread thread = Executors.newVirtualThread(name, () -> {
+            Looper.prepare();
+            synchronized (looper) {
+                looper[0] = Looper.myLooper();
+                looper.notifyAll();
+            }
+            Looper.loop();
+        }, threadGroup);
+        thread.start();
+
+        boolean interrupted = false;
+        synchronized (looper) {
+            while (looper[0] == null) {
+                try {
+                    looper.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return looper[0];
+    }
+
     /**
      * Call back method that can be explicitly overridden if needed to execute some setup before
      * Looper loops.
@@ -18,6 +18,7 @@
 package mindroid.os;
 
 import java.net.URI;
+import java.util.Arrays;
 import mindroid.util.concurrent.Promise;
 
 /**
@@ -85,6 +86,100 @@ public interface IBinder {
      */
     public void transact(int what, int num, Object obj, Bundle data, Promise<?> promise, int flags) throws RemoteException;
 
+    /**
+     * Perform a batch of one-way operations with the object. The target processes the operations
+     * in order, each one exactly like a {@link #FLAG_ONEWAY} transaction, but the whole batch is
+     * delivered as one unit: a single message queue insertion for local binders and a single frame
+     * for remote binders if the transport supports it.
+     *
+     * @param batch The operations to perform. The batch may be cleared and reused afterwards, its
+     * parcels must not.
+     */
+    public default void transactBatch(Batch batch) throws RemoteException {
+        for (int i = 0; i < batch.size(); i++) {
+            transact(batch.getWhat(i), batch.getData(i), FLAG_ONEWAY);
+        }
+    }
+
+    /**
+     * A batch of one-way operations for {@link IBinder#transactBatch}.
+     */
+    public static final class Batch {
+        private int[] mWhat;
+        private Parcel[] mData;
+        private int mSize = 0;
+
+        public Batch() {
+            this(16);
+        }
+
+        public Batch(int capacity) {
+            mWhat = new int[Math.max(1, capacity)];
+            mData = new Parcel[Math.max(1, capacity)];
+        }
+
+        /** @hide */
+        public Batch(Batch batch) {
+            mWhat = Arrays.copyOf(batch.mWhat, batch.mSize);
+            mData = Arrays.copyOf(batch.mData, batch.mSize);
+            mSize = batch.mSize;
+        }
+
+        /**
+         * Adds an operation to the batch.
+         *
+         * @param what The action to perform.
+         * @param data data to send to the target. Must not be null.
+         */
+        public Batch add(int what, Parcel data) {
+            if (data == null) {
+                throw new NullPointerException("Parcel must not be null");
+            }
+            if (mSize == mWhat.length) {
+                mWhat = Arrays.copyOf(mWhat, mSize * 2);
+                mData = Arrays.copyOf(mData, mSize * 2);
+            }
+            mWhat[mSize] = what;
+            mData[mSize] = data;
+            mSize++;
+            return this;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        public int getWhat(int index) {
+            checkIndex(index);
+            return mWhat[index];
+        }
+
+        public Parcel getData(int index) {
+            checkIndex(index);
+            return mData[index];
+        }
+
+        /**
+         * Removes all operations from the batch.
+         */
+        public void clear() {
+            for (int i = 0; i < mSize; i++) {
+                mData[i] = null;
+            }
+            mSize = 0;
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mSize);
+            }
+        }
+    }
+
     /**
      * Interface for receiving a callback when the process hosting an IBinder
      * has gone away.
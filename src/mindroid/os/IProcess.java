@@ -228,6 +228,11 @@ public interface IProcess extends IInterface {
         public void createService(Intent intent, IRemoteCallback callback) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.createService(intent, IRemoteCallback.Stub.asInterface(callback.asBinder()));
+            } else if (mStub != null) {
+                Bundle data = new Bundle();
+                data.putObject("intent", intent);
+                data.putBinder("binder", callback.asBinder());
+                mStub.transact(Stub.MSG_CREATE_SERVICE, 0, null, data, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.createService(intent, callback);
             }
@@ -237,6 +242,13 @@ public interface IProcess extends IInterface {
         public void startService(Intent intent, int flags, int startId, IRemoteCallback callback) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.startService(intent, flags, startId, IRemoteCallback.Stub.asInterface(callback.asBinder()));
+            } else if (mStub != null) {
+                Bundle data = new Bundle();
+                data.putObject("intent", intent);
+                data.putInt("flags", flags);
+                data.putInt("startId", startId);
+                data.putBinder("binder", callback.asBinder());
+                mStub.transact(Stub.MSG_START_SERVICE, 0, null, data, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.startService(intent, flags, startId, callback);
             }
@@ -246,6 +258,10 @@ public interface IProcess extends IInterface {
         public void stopService(Intent intent) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.stopService(intent);
+            } else if (mStub != null) {
+                Bundle data = new Bundle();
+                data.putObject("intent", intent);
+                mStub.transact(Stub.MSG_STOP_SERVICE, 0, null, data, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.stopService(intent);
             }
@@ -255,6 +271,11 @@ public interface IProcess extends IInterface {
         public void stopService(Intent intent, IRemoteCallback callback) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.stopService(intent, IRemoteCallback.Stub.asInterface(callback.asBinder()));
+            } else if (mStub != null) {
+                Bundle data = new Bundle();
+                data.putObject("intent", intent);
+                data.putBinder("binder", callback.asBinder());
+                mStub.transact(Stub.MSG_STOP_SERVICE, 0, null, data, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.stopService(intent, callback);
             }
@@ -264,6 +285,13 @@ public interface IProcess extends IInterface {
         public void bindService(Intent intent, ServiceConnection conn, int flags, IRemoteCallback callback) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.bindService(intent, conn, flags, IRemoteCallback.Stub.asInterface(callback.asBinder()));
+            } else if (mStub != null) {
+                Bundle data = new Bundle();
+                data.putObject("intent", intent);
+                data.putObject("conn", conn);
+                data.putInt("flags", flags);
+                data.putBinder("binder", callback.asBinder());
+                mStub.transact(Stub.MSG_BIND_SERVICE, 0, null, data, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.bindService(intent, conn, flags, callback);
             }
@@ -273,6 +301,10 @@ public interface IProcess extends IInterface {
         public void unbindService(Intent intent) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.unbindService(intent);
+            } else if (mStub != null) {
+                Bundle data = new Bundle();
+                data.putObject("intent", intent);
+                mStub.transact(Stub.MSG_UNBIND_SERVICE, 0, null, data, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.unbindService(intent);
             }
@@ -282,6 +314,11 @@ public interface IProcess extends IInterface {
         public void unbindService(Intent intent, IRemoteCallback callback) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.unbindService(intent, IRemoteCallback.Stub.asInterface(callback.asBinder()));
+            } else if (mStub != null) {
+                Bundle data = new Bundle();
+                data.putObject("intent", intent);
+                data.putBinder("binder", callback.asBinder());
+                mStub.transact(Stub.MSG_UNBIND_SERVICE, 0, null, data, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.unbindService(intent, callback);
             }
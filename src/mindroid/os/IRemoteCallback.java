@@ -130,6 +130,8 @@ public interface IRemoteCallback extends IInterface {
         public void sendResult(Bundle data) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.sendResult(data);
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_SEND_RESULT, 0, null, data, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.sendResult(data);
             }
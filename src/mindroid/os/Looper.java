@@ -18,6 +18,12 @@
 package mindroid.os;
 
 import java.lang.ThreadLocal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import mindroid.util.Properties;
 
 /**
  * Class used to run a message loop for a thread. Threads by default do not have a message loop
@@ -51,11 +57,16 @@ import java.lang.ThreadLocal;
  */
 public class Looper {
     private static final String LOG_TAG = "Looper";
+    private static final int DEFAULT_BATCH_SIZE = Math.max(1, Integer.getInteger(Properties.LOOPER_BATCH_SIZE, 1));
 
     // sThreadLocal.get() will return null unless you've called prepare().
     static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<>();
+    // All loopers whose threads are still alive.
+    private static final Set<Looper> sLoopers = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
     final MessageQueue mMessageQueue;
     final Thread mThread;
+    private final LooperStatistics mStatistics = new LooperStatistics();
+    private volatile int mBatchSize = DEFAULT_BATCH_SIZE;
 
     /**
      * Initialize the current thread as a looper. This gives you a chance to create handlers that
@@ -84,14 +95,28 @@ public class Looper {
         final MessageQueue mq = me.mMessageQueue;
 
         for (;;) {
-            Message msg = mq.dequeueMessage();
-            if (msg == null) {
+            final int count = mq.dequeueMessages(me.mBatchSize);
+            if (count == 0) {
                 // No message indicates that the message queue is quitting.
+                sLoopers.remove(me);
                 return;
             }
 
-            msg.target.dispatchMessage(msg);
-            msg.recycle();
+            final boolean statisticsEnabled = LooperStatistics.isEnabled();
+            final int queueDepth = mq.getQueueDepth();
+            for (int i = 0; i < count; i++) {
+                Message msg = mq.getBatchMessage(i);
+                if (msg != null) {
+                    if (statisticsEnabled) {
+                        final long startTime = System.nanoTime();
+                        msg.target.dispatchMessage(msg);
+                        me.mStatistics.record(msg, queueDepth - i, startTime, System.nanoTime());
+                    } else {
+                        msg.target.dispatchMessage(msg);
+                    }
+                }
+            }
+            mq.recycleBatchMessages();
         }
     }
 
@@ -114,6 +139,18 @@ public class Looper {
     private Looper(boolean quitAllowed) {
         mMessageQueue = new MessageQueue(quitAllowed);
         mThread = Thread.currentThread();
+        sLoopers.add(this);
+    }
+
+    /**
+     * Returns all loopers whose threads are still alive.
+     *
+     * @hide
+     */
+    public static List<Looper> getLoopers() {
+        synchronized (sLoopers) {
+            return new ArrayList<>(sLoopers);
+        }
     }
 
     /**
@@ -132,6 +169,28 @@ public class Looper {
         mMessageQueue.quit();
     }
 
+    /**
+     * Sets the maximum number of due messages that {@link #loop} detaches from the message queue
+     * under a single lock acquisition before dispatching them. The default is taken from the
+     * {@link Properties#LOOPER_BATCH_SIZE} system property and is 1, i.e. no batching.
+     * Messages of a batch are dispatched in the same order as without batching. Once a batch has
+     * been detached, its messages can no longer be removed, just like a single message that is
+     * being dispatched.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Returns the maximum number of due messages that are dispatched per batch.
+     */
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
     /**
      * Return the Thread associated with this Looper.
      */
@@ -139,11 +198,23 @@ public class Looper {
         return mThread;
     }
 
-    /** @hide */
+    /**
+     * Gets this looper's message queue, e.g. to limit its capacity.
+     */
     public MessageQueue getQueue() {
         return mMessageQueue;
     }
 
+    /**
+     * Returns the dispatch statistics of this looper. They are only recorded while
+     * {@link LooperStatistics#isEnabled()} is true.
+     *
+     * @hide
+     */
+    public LooperStatistics getStatistics() {
+        return mStatistics;
+    }
+
     public String toString() {
         return "Looper (" + mThread.getName() + ") {" + Integer.toHexString(System.identityHashCode(this)) + "}";
     }
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2013 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.os;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A group of loopers that spreads work across several threads while preserving the order of
+ * related work. Keys are mapped to loopers by consistent hashing, so all messages and tasks of a
+ * key are processed in order by the same looper while different keys run in parallel.
+ *
+ * <p>
+ * Tasks without a key are distributed round-robin. With work stealing enabled, idle loopers take
+ * over keyless tasks that are still waiting for a busy looper. Keyless tasks therefore have no
+ * ordering guarantees.
+ *
+ * <pre>
+ *  LooperGroup group = new LooperGroup("Sessions");
+ *  Handler handler = new SessionHandler(group.getLooper(sessionId));
+ *  Binder binder = new Binder(group.asExecutor());
+ * </pre>
+ */
+public class LooperGroup {
+    private static final int VIRTUAL_NODES = 64;
+    private final String mName;
+    private final HandlerThread[] mThreads;
+    private final Worker[] mWorkers;
+    private final boolean mWorkStealing;
+    // Consistent hash ring, sorted by hash.
+    private final int[] mRingHashes;
+    private final int[] mRingWorkers;
+    private final AtomicInteger mNextWorker = new AtomicInteger();
+    private final Executor mExecutor = new Executor();
+
+    /**
+     * Creates a looper group with one looper per available processor and work stealing enabled.
+     */
+    public LooperGroup(String name) {
+        this(name, java.lang.Runtime.getRuntime().availableProcessors(), true);
+    }
+
+    /**
+     * Creates and starts a looper group.
+     *
+     * @param name The name prefix of the looper threads.
+     * @param size The number of loopers.
+     * @param workStealing Whether idle loopers may run keyless tasks of busy loopers.
+     */
+    public LooperGroup(String name, int size, boolean workStealing) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        mName = name;
+        mWorkStealing = workStealing;
+        mThreads = new HandlerThread[size];
+        mWorkers = new Worker[size];
+        for (int i = 0; i < size; i++) {
+            mThreads[i] = new HandlerThread(name + " #" + i);
+            mThreads[i].start();
+            mWorkers[i] = new Worker(mThreads[i].getLooper());
+        }
+
+        long[] ring = new long[size * VIRTUAL_NODES];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < VIRTUAL_NODES; j++) {
+                int hash = hash(i * VIRTUAL_NODES + j + 1);
+                ring[i * VIRTUAL_NODES + j] = ((long) hash << 32) | i;
+            }
+        }
+        Arrays.sort(ring);
+        mRingHashes = new int[ring.length];
+        mRingWorkers = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            mRingHashes[i] = (int) (ring[i] >> 32);
+            mRingWorkers[i] = (int) ring[i];
+        }
+    }
+
+    /**
+     * Quits all loopers of the group. Pending messages and tasks are dropped.
+     */
+    public void quit() {
+        for (HandlerThread thread : mThreads) {
+            thread.quit();
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the number of loopers.
+     */
+    public int size() {
+        return mWorkers.length;
+    }
+
+    /**
+     * Returns the looper at the given index.
+     */
+    public Looper getLooper(int index) {
+        return mWorkers[index].mHandler.getLooper();
+    }
+
+    /**
+     * Returns the looper that processes all work of the given key.
+     */
+    public Looper getLooper(Object key) {
+        return getWorker(key.hashCode()).mHandler.getLooper();
+    }
+
+    /**
+     * Returns a new handler on the looper of the given key, e.g. to post runnables in key order.
+     * Removing its messages does not affect the tasks of the group.
+     */
+    public Handler getHandler(Object key) {
+        return new Handler(getLooper(key));
+    }
+
+    /**
+     * Returns an executor for keyless tasks that also runs keyed tasks in key order. Binder stubs
+     * created with this executor process the transactions of each calling process in order while
+     * different callers are served in parallel.
+     */
+    public Executor asExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Returns the number of pending messages of the looper at the given index, including keyless
+     * tasks that have not been run yet.
+     */
+    public int getPendingCount(int index) {
+        return mWorkers[index].mHandler.getLooper().getQueue().size();
+    }
+
+    /**
+     * Returns the number of keyless and keyed tasks that the looper at the given index has run.
+     */
+    public long getExecutedTaskCount(int index) {
+        return mWorkers[index].mExecutedTasks.sum();
+    }
+
+    /**
+     * Returns the number of keyless tasks that the looper at the given index has taken over from
+     * other loopers.
+     */
+    public long getStolenTaskCount(int index) {
+        return mWorkers[index].mStolenTasks.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("LooperGroup (").append(mName).append(") {");
+        for (int i = 0; i < mWorkers.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append('#').append(i).append(": pending ").append(getPendingCount(i))
+                    .append(" executed ").append(getExecutedTaskCount(i))
+                    .append(" stolen ").append(getStolenTaskCount(i));
+        }
+        return builder.append('}').toString();
+    }
+
+    private Worker getWorker(int key) {
+        final int hash = hash(key);
+        int index = Arrays.binarySearch(mRingHashes, hash);
+        if (index < 0) {
+            index = -index - 1;
+            if (index == mRingHashes.length) {
+                index = 0;
+            }
+        }
+        return mWorkers[mRingWorkers[index]];
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Takes the most recently offered keyless task of another looper.
+     */
+    private Runnable steal(Worker thief) {
+        for (Worker worker : mWorkers) {
+            if (worker != thief) {
+                Runnable task = worker.mTasks.pollLast();
+                if (task != null) {
+                    return task;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean canSteal(Worker thief) {
+        for (Worker worker : mWorkers) {
+            if (worker != thief && !worker.mTasks.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * An executor that runs keyless tasks on any looper of the group and keyed tasks on the looper
+     * of their key.
+     */
+    public class Executor implements java.util.concurrent.Executor {
+        Executor() {
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (command == null) {
+                throw new NullPointerException("Runnable must not be null");
+            }
+            Worker worker = mWorkers[(mNextWorker.getAndIncrement() & Integer.MAX_VALUE) % mWorkers.length];
+            worker.mTasks.offer(command);
+            if (!worker.mHandler.sendMessage(Message.obtain(worker.mHandler, worker))) {
+                worker.mTasks.remove(command);
+                throw new RejectedExecutionException("Runnable has been rejected by LooperGroup");
+            }
+        }
+
+        /**
+         * Runs the task on the looper of the given key after all previous tasks of that key.
+         */
+        public void execute(int key, Runnable command) {
+            if (command == null) {
+                throw new NullPointerException("Runnable must not be null");
+            }
+            Worker worker = getWorker(key);
+            if (worker.mHandler.post(new KeyedTask(worker, command)) == null) {
+                throw new RejectedExecutionException("Runnable has been rejected by LooperGroup");
+            }
+        }
+
+        /**
+         * Runs the task on the looper of the given key after all previous tasks of that key.
+         */
+        public void execute(Object key, Runnable command) {
+            execute(key.hashCode(), command);
+        }
+    }
+
+    private static class KeyedTask implements Runnable {
+        private final Worker mWorker;
+        private final Runnable mCommand;
+
+        KeyedTask(Worker worker, Runnable command) {
+            mWorker = worker;
+            mCommand = command;
+        }
+
+        @Override
+        public void run() {
+            mWorker.mExecutedTasks.increment();
+            mCommand.run();
+        }
+    }
+
+    /**
+     * Runs one keyless task per message. The number of messages always matches the number of
+     * keyless tasks that have been offered to a worker. Since a worker only steals if its own tasks
+     * have been run, every task is run exactly once.
+     */
+    private class Worker implements Runnable {
+        final Handler mHandler;
+        final ConcurrentLinkedDeque<Runnable> mTasks = new ConcurrentLinkedDeque<>();
+        final LongAdder mExecutedTasks = new LongAdder();
+        final LongAdder mStolenTasks = new LongAdder();
+
+        Worker(Looper looper) {
+            mHandler = new Handler(looper);
+        }
+
+        @Override
+        public void run() {
+            Runnable task = mTasks.pollFirst();
+            if (task == null && mWorkStealing) {
+                task = steal(this);
+                if (task != null) {
+                    mStolenTasks.increment();
+                }
+            }
+            if (task == null) {
+                return;
+            }
+            try {
+                mExecutedTasks.increment();
+                task.run();
+            } finally {
+                // Keep helping busy loopers while there is nothing else to do.
+                if (mWorkStealing && mTasks.isEmpty() && canSteal(this)) {
+                    mHandler.sendMessage(Message.obtain(mHandler, this));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Dispatch statistics of a {@link Looper}. When enabled via {@link #setEnabled}, each looper
+ * records the queue depth, the dispatch latency (time between a message becoming due and its
+ * dispatch) and the handler execution time of every message into log2 histograms. The execution
+ * times are also broken down per {@link Handler} class and message name as returned by
+ * {@link Handler#getMessageName}.
+ *
+ * @hide
+ */
+public final class LooperStatistics {
+    private static volatile boolean sEnabled = false;
+
+    private final Histogram mQueueDepth = new Histogram();
+    private final Histogram mDispatchLatency = new Histogram();
+    private final Histogram mExecutionTime = new Histogram();
+    private final HashMap<Class<?>, HandlerStatistics> mHandlerStatistics = new HashMap<>();
+
+    LooperStatistics() {
+    }
+
+    /**
+     * Enables or disables recording of dispatch statistics for all loopers.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    synchronized void record(Message message, int queueDepth, long startTime, long endTime) {
+        final long executionTime = (endTime - startTime) / 1000;
+        mQueueDepth.add(queueDepth);
+        if (message.when != 0) {
+            mDispatchLatency.add(Math.max(0, (startTime - message.when) / 1000));
+        }
+        mExecutionTime.add(executionTime);
+
+        final Handler handler = message.target;
+        HandlerStatistics handlerStatistics = mHandlerStatistics.get(handler.getClass());
+        if (handlerStatistics == null) {
+            handlerStatistics = new HandlerStatistics();
+            mHandlerStatistics.put(handler.getClass(), handlerStatistics);
+        }
+        MessageStatistics messageStatistics;
+        if (message.callback != null) {
+            messageStatistics = handlerStatistics.mCallbacks.get(message.callback.getClass());
+            if (messageStatistics == null) {
+                messageStatistics = new MessageStatistics(handler, message);
+                handlerStatistics.mCallbacks.put(message.callback.getClass(), messageStatistics);
+            }
+        } else {
+            messageStatistics = handlerStatistics.mMessages.get(message.what);
+            if (messageStatistics == null) {
+                messageStatistics = new MessageStatistics(handler, message);
+                handlerStatistics.mMessages.put(message.what, messageStatistics);
+            }
+        }
+        messageStatistics.mTotalExecutionTime += executionTime;
+        messageStatistics.mExecutionTime.add(executionTime);
+    }
+
+    /**
+     * Discards all recorded statistics.
+     */
+    public synchronized void reset() {
+        mQueueDepth.clear();
+        mDispatchLatency.clear();
+        mExecutionTime.clear();
+        mHandlerStatistics.clear();
+    }
+
+    /**
+     * Prints the recorded statistics including the message types with the highest total execution
+     * time.
+     *
+     * @param maxMessageTypes The maximum number of message types to print.
+     */
+    public synchronized String dump(int maxMessageTypes) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Messages: ").append(mExecutionTime.getCount()).append(System.lineSeparator());
+        builder.append("Queue depth:");
+        mQueueDepth.dump(builder, "");
+        builder.append(System.lineSeparator());
+        builder.append("Dispatch latency:");
+        mDispatchLatency.dump(builder, "us");
+        builder.append(System.lineSeparator());
+        builder.append("Execution time:");
+        mExecutionTime.dump(builder, "us");
+        builder.append(System.lineSeparator());
+
+        List<MessageStatistics> messageStatistics = new ArrayList<>();
+        for (HandlerStatistics handlerStatistics : mHandlerStatistics.values()) {
+            messageStatistics.addAll(handlerStatistics.mMessages.values());
+            messageStatistics.addAll(handlerStatistics.mCallbacks.values());
+        }
+        messageStatistics.sort((s1, s2) -> Long.compare(s2.mTotalExecutionTime, s1.mTotalExecutionTime));
+        if (!messageStatistics.isEmpty()) {
+            builder.append("Top message types:").append(System.lineSeparator());
+        }
+        for (int i = 0; i < messageStatistics.size() && i < maxMessageTypes; i++) {
+            MessageStatistics s = messageStatistics.get(i);
+            builder.append("  ").append(s.mName).append(":");
+            builder.append(" total ").append(s.mTotalExecutionTime).append("us");
+            s.mExecutionTime.dump(builder, "us");
+            builder.append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+
+    private static class HandlerStatistics {
+        final HashMap<Integer, MessageStatistics> mMessages = new HashMap<>();
+        final HashMap<Class<?>, MessageStatistics> mCallbacks = new HashMap<>();
+    }
+
+    private static class MessageStatistics {
+        final String mName;
+        final Histogram mExecutionTime = new Histogram();
+        long mTotalExecutionTime;
+
+        MessageStatistics(Handler handler, Message message) {
+            mName = handler.getClass().getName() + " " + handler.getMessageName(message);
+        }
+    }
+
+    /**
+     * Histogram with power of two buckets. Bucket i counts the values in the range
+     * [2^(i-1), 2^i - 1], bucket 0 counts zeros.
+     */
+    private static class Histogram {
+        private final long[] mBuckets = new long[Long.SIZE + 1];
+        private long mCount;
+        private long mMax;
+
+        void add(long value) {
+            mBuckets[Long.SIZE - Long.numberOfLeadingZeros(value)]++;
+            mCount++;
+            if (value > mMax) {
+                mMax = value;
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < mBuckets.length; i++) {
+                mBuckets[i] = 0;
+            }
+            mCount = 0;
+            mMax = 0;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the upper bound of the bucket that contains the given percentile.
+         */
+        long getPercentile(double percentile) {
+            final long threshold = (long) Math.ceil(mCount * percentile / 100);
+            long count = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                count += mBuckets[i];
+                if (count >= threshold && count > 0) {
+                    long upperBound = (i == 0) ? 0 : (i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upperBound, mMax);
+                }
+            }
+            return 0;
+        }
+
+        void dump(StringBuilder builder, String unit) {
+            builder.append(" count ").append(mCount);
+            builder.append(" p50 ").append(getPercentile(50)).append(unit);
+            builder.append(" p99 ").append(getPercentile(99)).append(unit);
+            builder.append(" max ").append(mMax).append(unit);
+        }
+    }
+}
@@ -17,6 +17,9 @@
 
 package mindroid.os;
 
+import java.util.concurrent.atomic.LongAdder;
+import mindroid.util.Properties;
+import mindroid.util.concurrent.Executors;
 import mindroid.util.concurrent.Promise;
 
 /**
@@ -59,6 +62,7 @@ public final class Message {
 
     /*package*/ int flags;
 
+    // Delivery time in nanoseconds of the SystemClock#uptimeNanos time-base.
     /*package*/ long when;
 
     /*package*/ Bundle data;
@@ -69,28 +73,82 @@ public final class Message {
 
     Message prevMessage;
     Message nextMessage;
+    long sequence;
+    int timerIndex = -1;
+    MessageQueue.Bucket whatBucket;
+    Message prevWhatMessage;
+    Message nextWhatMessage;
+    MessageQueue.Bucket callbackBucket;
+    Message prevCallbackMessage;
+    Message nextCallbackMessage;
+
+    // Each thread caches recycled messages in a small local pool that is backed by a shared
+    // overflow pool. Messages move between both pools in chunks of half the local pool size.
+    // Virtual threads rarely live long enough to reuse their local pool and use the shared pool
+    // directly.
+    private static final int MAX_MESSAGE_POOL_SIZE = Math.max(0, Integer.getInteger(Properties.MESSAGE_POOL_SIZE, 42));
+    private static final int MAX_LOCAL_MESSAGE_POOL_SIZE = Math.max(0, Integer.getInteger(Properties.LOCAL_MESSAGE_POOL_SIZE, 16));
+    private static final int MESSAGE_POOL_CHUNK_SIZE = Math.max(1, MAX_LOCAL_MESSAGE_POOL_SIZE >>> 1);
 
     private static final Object sMessagePoolLock = new Object();
     private static Message sMessagePool;
     private static int sMessagePoolSize = 0;
+    private static final ThreadLocal<LocalMessagePool> sLocalMessagePool = ThreadLocal.withInitial(LocalMessagePool::new);
 
-    private static final int MAX_MESSAGE_POOL_SIZE = 42;
+    private static final LongAdder sMessagePoolHits = new LongAdder();
+    private static final LongAdder sMessagePoolMisses = new LongAdder();
+    private static final LongAdder sMessagePoolDrops = new LongAdder();
+
+    private static final class LocalMessagePool {
+        Message mMessages;
+        int mSize;
+    }
 
     /**
      * Return a new Message instance from the global pool. Allows us to avoid allocating new objects
      * in many cases.
      */
     public static Message obtain() {
-        synchronized (sMessagePoolLock) {
-            if (sMessagePool != null) {
+        if (Executors.isVirtualThread(Thread.currentThread())) {
+            synchronized (sMessagePoolLock) {
                 Message message = sMessagePool;
-                sMessagePool = message.nextMessage;
-                message.nextMessage = null;
-                message.flags = 0;
-                sMessagePoolSize--;
-                return message;
+                if (message != null) {
+                    sMessagePool = message.nextMessage;
+                    sMessagePoolSize--;
+                    message.nextMessage = null;
+                    message.flags = 0;
+                    sMessagePoolHits.increment();
+                    return message;
+                }
             }
+            sMessagePoolMisses.increment();
+            return new Message();
+        }
+
+        final LocalMessagePool localPool = sLocalMessagePool.get();
+        if (localPool.mMessages == null) {
+            synchronized (sMessagePoolLock) {
+                for (int i = 0; i < MESSAGE_POOL_CHUNK_SIZE && sMessagePool != null; i++) {
+                    Message message = sMessagePool;
+                    sMessagePool = message.nextMessage;
+                    sMessagePoolSize--;
+                    message.nextMessage = localPool.mMessages;
+                    localPool.mMessages = message;
+                    localPool.mSize++;
+                }
+            }
+        }
+
+        Message message = localPool.mMessages;
+        if (message != null) {
+            localPool.mMessages = message.nextMessage;
+            localPool.mSize--;
+            message.nextMessage = null;
+            message.flags = 0;
+            sMessagePoolHits.increment();
+            return message;
         }
+        sMessagePoolMisses.increment();
         return new Message();
     }
 
@@ -227,6 +285,103 @@ public final class Message {
      * this function -- it has effectively been freed.
      */
     public void recycle() {
+        clear();
+        if (Executors.isVirtualThread(Thread.currentThread())) {
+            synchronized (sMessagePoolLock) {
+                release(this);
+            }
+        } else {
+            release(sLocalMessagePool.get(), this);
+        }
+    }
+
+    /**
+     * Returns a batch of messages to the global pool.
+     */
+    /*package*/ static void recycle(Message[] messages, int count) {
+        if (Executors.isVirtualThread(Thread.currentThread())) {
+            synchronized (sMessagePoolLock) {
+                for (int i = 0; i < count; i++) {
+                    Message message = messages[i];
+                    messages[i] = null;
+                    message.clear();
+                    release(message);
+                }
+            }
+            return;
+        }
+        final LocalMessagePool localPool = sLocalMessagePool.get();
+        for (int i = 0; i < count; i++) {
+            Message message = messages[i];
+            messages[i] = null;
+            message.clear();
+            release(localPool, message);
+        }
+    }
+
+    private static void release(LocalMessagePool localPool, Message message) {
+        if (localPool.mSize >= MAX_LOCAL_MESSAGE_POOL_SIZE) {
+            synchronized (sMessagePoolLock) {
+                for (int i = 0; i < MESSAGE_POOL_CHUNK_SIZE && localPool.mMessages != null && sMessagePoolSize < MAX_MESSAGE_POOL_SIZE; i++) {
+                    Message curMessage = localPool.mMessages;
+                    localPool.mMessages = curMessage.nextMessage;
+                    localPool.mSize--;
+                    curMessage.nextMessage = sMessagePool;
+                    sMessagePool = curMessage;
+                    sMessagePoolSize++;
+                }
+                if (localPool.mSize >= MAX_LOCAL_MESSAGE_POOL_SIZE) {
+                    release(message);
+                    return;
+                }
+            }
+        }
+        message.nextMessage = localPool.mMessages;
+        localPool.mMessages = message;
+        localPool.mSize++;
+    }
+
+    // Callers hold sMessagePoolLock.
+    private static void release(Message message) {
+        if (sMessagePoolSize < MAX_MESSAGE_POOL_SIZE) {
+            message.nextMessage = sMessagePool;
+            sMessagePool = message;
+            sMessagePoolSize++;
+        } else {
+            sMessagePoolDrops.increment();
+        }
+    }
+
+    /**
+     * Returns the number of {@link #obtain()} calls that have been served from the message pool.
+     *
+     * @hide
+     */
+    public static long getPoolHitCount() {
+        return sMessagePoolHits.sum();
+    }
+
+    /**
+     * Returns the number of {@link #obtain()} calls that had to allocate a new message because the
+     * message pool was empty.
+     *
+     * @hide
+     */
+    public static long getPoolMissCount() {
+        return sMessagePoolMisses.sum();
+    }
+
+    /**
+     * Returns the number of recycled messages that have been dropped because the message pool was
+     * full.
+     *
+     * @hide
+     */
+    public static long getPoolDropCount() {
+        return sMessagePoolDrops.sum();
+    }
+
+    private void clear() {
         if (result != null) {
             result.cancel();
         }
@@ -244,14 +399,14 @@ public final class Message {
         sendingPid = -1;
         prevMessage = null;
         nextMessage = null;
-
-        synchronized (sMessagePoolLock) {
-            if (sMessagePoolSize < MAX_MESSAGE_POOL_SIZE) {
-                nextMessage = sMessagePool;
-                sMessagePool = this;
-                sMessagePoolSize++;
-            }
-        }
+        sequence = 0;
+        timerIndex = -1;
+        whatBucket = null;
+        prevWhatMessage = null;
+        nextWhatMessage = null;
+        callbackBucket = null;
+        prevCallbackMessage = null;
+        nextCallbackMessage = null;
     }
 
     /**
@@ -274,6 +429,13 @@ public final class Message {
      * Return the targeted delivery time of this message, in milliseconds.
      */
     public long getWhen() {
+        return when / 1000000;
+    }
+
+    /**
+     * Return the targeted delivery time of this message, in nanoseconds.
+     */
+    public long getWhenNanos() {
         return when;
     }
 
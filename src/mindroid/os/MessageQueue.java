@@ -17,29 +17,135 @@
 
 package mindroid.os;
 
+import java.util.IdentityHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import mindroid.util.Log;
 
 /**
  * Low-level class holding the list of messages to be dispatched by a {@link Looper}. Messages are
  * not added directly to a MessageQueue, but rather through {@link Handler} objects associated with
  * the Looper.
- * 
+ *
  * <p>
  * You can retrieve the MessageQueue for the current thread with {@link Looper#myQueue()
  * Looper.myQueue()}.
+ *
+ * <p>
+ * Messages that are already due when they are enqueued are pushed onto a lock-free stack and
+ * dispatched in the order of their delivery time and, for the same delivery time, in FIFO order.
+ * Delayed messages are kept in a binary min-heap ordered by their delivery time and enqueue
+ * order. Delivery times are kept in nanoseconds of the {@link SystemClock#uptimeNanos} time-base
+ * and the looper thread parks with nanosecond timeouts. The looper thread is only woken up if it
+ * is actually blocked. Pending messages are additionally indexed per handler by their what code
+ * and callback.
+ *
+ * <p>
+ * The number of pending messages can be limited by {@link #setCapacity}. The overload policy
+ * decides what happens to messages that are enqueued while the message queue is full.
+ * Producers may additionally register for high and low watermark notifications to throttle
+ * themselves, see {@link #setWatermarks}.
  */
 public class MessageQueue {
+    /**
+     * Overload policy that rejects new messages while the message queue is full.
+     * {@link Handler#asExecutor()} throws a {@link java.util.concurrent.RejectedExecutionException}
+     * in that case.
+     */
+    public static final int OVERLOAD_POLICY_REJECT = 0;
+    /**
+     * Overload policy that blocks the producer until there is room in the message queue or the
+     * overload timeout has elapsed. The looper thread itself is never blocked.
+     */
+    public static final int OVERLOAD_POLICY_BLOCK = 1;
+    /**
+     * Overload policy that drops the oldest pending message of the same handler and what code (or
+     * callback) to make room for the new message.
+     */
+    public static final int OVERLOAD_POLICY_DROP_OLDEST = 2;
+    /**
+     * Overload policy that merges the new message into the most recent pending message of the
+     * same handler and what code (or callback). The pending message keeps its delivery time and
+     * takes over the arguments, object and data of the new message.
+     */
+    public static final int OVERLOAD_POLICY_COALESCE = 3;
+
     private static final String LOG_TAG = "MessageQueue";
     private static final boolean DEBUG = false;
-    private static final int STARVATION_DELAY = 1000; // ms
+    private static final long STARVATION_DELAY = 1000000000L; // ns
+    private static final int INITIAL_TIMER_CAPACITY = 16;
+    private static final int MIN_BUCKET_LIMIT = 16;
+    private static final int OVERLOAD_REJECTED = 0;
+    private static final int OVERLOAD_ACCEPTED = 1;
+    private static final int OVERLOAD_COALESCED = 2;
+    private static final AtomicReferenceFieldUpdater<MessageQueue, Message> INCOMING_MESSAGES =
+            AtomicReferenceFieldUpdater.newUpdater(MessageQueue.class, Message.class, "mIncomingMessages");
+    private static final AtomicIntegerFieldUpdater<MessageQueue> INCOMING_MESSAGE_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(MessageQueue.class, "mIncomingMessageCount");
     private final boolean mQuitAllowed;
+    private final Thread mLooperThread;
+    // Not a monitor to never pin the carrier thread of a virtual looper thread.
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotFull = mLock.newCondition();
+    private final Condition mBelowLowWatermark = mLock.newCondition();
+
+    // Lock-free stack of messages that were due when they got enqueued, most recent message first.
+    private volatile Message mIncomingMessages;
+    private volatile int mIncomingMessageCount;
+    // The looper thread while it is blocked in dequeueMessages, null otherwise.
+    private volatile Thread mBlockedThread;
+    private volatile boolean mQuitting;
+
+    // List of due messages ordered by delivery time, guarded by mLock.
+    private Message mHeadMessage;
+    private Message mTailMessage;
+    private int mMessageCount;
+    // Binary min-heap of delayed messages, guarded by mLock.
+    private Message[] mTimers = new Message[INITIAL_TIMER_CAPACITY];
+    private int mTimerCount;
+    private long mTimerSequence;
+    private long mFrontSequence;
+    // Messages that have been detached for dispatching by the looper thread. They are no longer
+    // visible to other threads, so only the looper thread accesses the batch.
+    private Message[] mBatch = new Message[1];
+    private int mBatchCount;
+    private int mQueueDepth;
+    // Capacity limit, 0 means unbounded.
+    private volatile int mCapacity;
+    private volatile int mOverloadPolicy = OVERLOAD_POLICY_REJECT;
+    private volatile long mOverloadTimeout;
+    private int mBlockedProducers;
+    private volatile OnWatermarkListener mWatermarkListener;
+    private volatile int mHighWatermark;
+    private volatile int mLowWatermark;
+    private volatile boolean mAboveHighWatermark;
+
+    /**
+     * Callback interface for producers that throttle themselves based on the number of pending
+     * messages.
+     */
+    public interface OnWatermarkListener {
+        /**
+         * Called by the producer thread whose message made the number of pending messages reach
+         * the high watermark.
+         */
+        void onHighWatermark(MessageQueue messageQueue);
 
-    Message mHeadMessage;
-    Message mTailMessage;
-    private boolean mQuitting;
+        /**
+         * Called by the looper thread when the number of pending messages has dropped to the low
+         * watermark after the high watermark was reached.
+         */
+        void onLowWatermark(MessageQueue messageQueue);
+    }
 
     MessageQueue(boolean quitAllowed) {
         mQuitAllowed = quitAllowed;
+        // Message queues are created by their looper thread.
+        mLooperThread = Thread.currentThread();
     }
 
     final void quit() {
@@ -47,154 +153,434 @@ public class MessageQueue {
             throw new IllegalStateException("Looper thread is not allowed to quit");
         }
 
-        synchronized (this) {
+        mLock.lock();
+        try {
             if (mQuitting) {
                 return;
             }
             mQuitting = true;
 
+            transferIncomingMessages();
             Message curMessage = mHeadMessage;
             while (curMessage != null) {
                 Message nextMessage = curMessage.nextMessage;
+                removeFromIndex(curMessage);
                 curMessage.recycle();
                 curMessage = nextMessage;
             }
             mHeadMessage = null;
             mTailMessage = null;
+            mMessageCount = 0;
 
-            notify();
+            for (int i = 0; i < mTimerCount; i++) {
+                removeFromIndex(mTimers[i]);
+                mTimers[i].recycle();
+                mTimers[i] = null;
+            }
+            mTimerCount = 0;
+            mNotFull.signalAll();
+            mBelowLowWatermark.signalAll();
+        } finally {
+            mLock.unlock();
         }
+
+        wake();
     }
 
+    /**
+     * Enqueues the message for the given delivery time in nanoseconds.
+     */
     final boolean enqueueMessage(Message message, long when) {
         if (message.target == null) {
             throw new IllegalArgumentException("Message must have a target");
         }
+        if (message.isInUse()) {
+            throw new IllegalStateException(message + ": This message is already in use");
+        }
 
-        synchronized (this) {
-            if (message.isInUse()) {
-                throw new IllegalStateException(message + ": This message is already in use");
-            }
+        if (mQuitting) {
+            return onDeadThread(message);
+        }
 
-            if (mQuitting) {
-                IllegalStateException e = new IllegalStateException(message.target + " is sending a message to a Handler on a dead thread");
-                Log.w(LOG_TAG, e.getMessage(), e);
+        final boolean due = (when != 0 && when <= SystemClock.uptimeNanos());
+        if (due && mCapacity == 0) {
+            message.markInUse();
+            message.when = when;
+            Message headMessage;
+            do {
+                headMessage = mIncomingMessages;
+                message.nextMessage = headMessage;
+            } while (!INCOMING_MESSAGES.compareAndSet(this, headMessage, message));
+            INCOMING_MESSAGE_COUNT.incrementAndGet(this);
+            if (mQuitting && drainIncomingMessages(message)) {
+                // quit() has already drained the incoming stack before the message was pushed.
+                return onDeadThread(message);
+            }
+            wake();
+        } else {
+            // Bounded message queues check the capacity and enqueue the message under the same lock.
+            int overloadResult = OVERLOAD_ACCEPTED;
+            boolean wakeUp = false;
+            mLock.lock();
+            try {
+                if (mQuitting) {
+                    return onDeadThread(message);
+                }
+                final int capacity = mCapacity;
+                if (due || capacity > 0) {
+                    transferIncomingMessages();
+                }
+                if (capacity > 0 && size() >= capacity) {
+                    overloadResult = onOverload(message);
+                }
+                if (overloadResult == OVERLOAD_ACCEPTED) {
+                    message.markInUse();
+                    message.when = when;
+                    if (due) {
+                        insertMessage(message);
+                        wakeUp = true;
+                    } else {
+                        // Messages for the front of the queue are dispatched in LIFO order.
+                        message.sequence = (when == 0) ? --mFrontSequence : mTimerSequence++;
+                        addTimer(message);
+                        wakeUp = (mTimers[0] == message);
+                    }
+                    addToIndex(message);
+                }
+            } finally {
+                mLock.unlock();
+            }
+            if (overloadResult != OVERLOAD_ACCEPTED) {
                 message.recycle();
-                return false;
+                return overloadResult == OVERLOAD_COALESCED;
             }
+            if (wakeUp) {
+                wake();
+            }
+        }
 
-            message.markInUse();
-            message.when = when;
+        if (mHighWatermark > 0) {
+            checkHighWatermark();
+        }
+        return true;
+    }
 
-            if (mHeadMessage == null || when == 0 || when < mHeadMessage.when) {
-                Message oldHeadMessage = mHeadMessage;
-                mHeadMessage = message;
-                if (oldHeadMessage != null) {
-                    oldHeadMessage.prevMessage = mHeadMessage;
-                } else {
-                    mTailMessage = mHeadMessage;
+    /**
+     * Coalesces the message with the most recent pending message of the same handler and what code
+     * or, for callback messages, the same callback in a single queue operation. The pending message
+     * takes over the arguments, object and data of the new message and is rescheduled to the
+     * earlier or later of both delivery times. Without a pending message, the message is enqueued
+     * as usual.
+     */
+    final boolean enqueueCoalescedMessage(Message message, long when, boolean keepEarlierTime) {
+        if (message.target == null) {
+            throw new IllegalArgumentException("Message must have a target");
+        }
+        if (message.isInUse()) {
+            throw new IllegalStateException(message + ": This message is already in use");
+        }
+
+        if (mQuitting) {
+            return onDeadThread(message);
+        }
+
+        Message pendingMessage;
+        boolean wakeUp = false;
+        mLock.lock();
+        try {
+            if (mQuitting) {
+                return onDeadThread(message);
+            }
+            transferIncomingMessages();
+            pendingMessage = findCoalescingMessage(message);
+            if (pendingMessage != null) {
+                pendingMessage.arg1 = message.arg1;
+                pendingMessage.arg2 = message.arg2;
+                pendingMessage.obj = message.obj;
+                pendingMessage.data = message.data;
+                pendingMessage.sendingPid = message.sendingPid;
+                message.data = null;
+                final long coalescedWhen = keepEarlierTime ? Math.min(pendingMessage.when, when) : Math.max(pendingMessage.when, when);
+                if (coalescedWhen != pendingMessage.when) {
+                    if (pendingMessage.timerIndex >= 0) {
+                        removeTimer(pendingMessage.timerIndex);
+                    } else {
+                        unlinkMessage(pendingMessage);
+                    }
+                    pendingMessage.when = coalescedWhen;
+                    pendingMessage.sequence = mTimerSequence++;
+                    addTimer(pendingMessage);
+                    wakeUp = (mTimers[0] == pendingMessage);
                 }
-                mHeadMessage.nextMessage = oldHeadMessage;
-            } else if (when >= mTailMessage.when) {
-                message.prevMessage = mTailMessage;
-                mTailMessage.nextMessage = message;
-                mTailMessage = message;
             } else {
-                Message curMessage = mTailMessage;
-                Message nextMessage;
-                for (;;) {
-                    nextMessage = curMessage;
-                    curMessage = curMessage.prevMessage;
-                    if (when >= curMessage.when) {
-                        break;
-                    }
+                final int capacity = mCapacity;
+                if (capacity == 0 || size() < capacity) {
+                    message.markInUse();
+                    message.when = when;
+                    message.sequence = mTimerSequence++;
+                    addTimer(message);
+                    addToIndex(message);
+                    wakeUp = (mTimers[0] == message);
                 }
-                message.nextMessage = nextMessage;
-                message.prevMessage = curMessage;
-                nextMessage.prevMessage = message;
-                curMessage.nextMessage = message;
             }
-            notify();
+        } finally {
+            mLock.unlock();
+        }
+
+        if (pendingMessage != null) {
+            message.recycle();
+        } else if (!message.isInUse()) {
+            // Let the overload policy handle a full message queue.
+            return enqueueMessage(message, when);
+        }
+        if (wakeUp) {
+            wake();
+        }
+        if (mHighWatermark > 0) {
+            checkHighWatermark();
         }
         return true;
     }
 
-    final Message dequeueMessage() {
-        for (;;) {
-            synchronized (this) {
-                if (mQuitting) {
-                    return null;
+    /**
+     * Limits the number of pending messages. Messages that have already been detached for
+     * dispatching by the looper do not count.
+     *
+     * @param capacity The maximum number of pending messages, or 0 for an unbounded message queue.
+     * @param overloadPolicy One of {@link #OVERLOAD_POLICY_REJECT}, {@link #OVERLOAD_POLICY_BLOCK},
+     * {@link #OVERLOAD_POLICY_DROP_OLDEST} or {@link #OVERLOAD_POLICY_COALESCE}. If the message
+     * queue is full and the policy cannot make room for a new message, the message is rejected.
+     * @param timeout The maximum time in milliseconds to block a producer with
+     * {@link #OVERLOAD_POLICY_BLOCK}.
+     */
+    public void setCapacity(int capacity, int overloadPolicy, long timeout) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (overloadPolicy < OVERLOAD_POLICY_REJECT || overloadPolicy > OVERLOAD_POLICY_COALESCE) {
+            throw new IllegalArgumentException("Invalid overload policy: " + overloadPolicy);
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + timeout);
+        }
+        mLock.lock();
+        try {
+            mOverloadPolicy = overloadPolicy;
+            mOverloadTimeout = timeout;
+            mCapacity = capacity;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the maximum number of pending messages, or 0 if the message queue is unbounded.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Sets the high and low watermarks and registers a listener that is notified once the number
+     * of pending messages reaches the high watermark and once it drops to the low watermark again.
+     * Producers that cannot register a listener of their own, like the connections of the
+     * mindroid plugin server, use {@link #awaitLowWatermark} instead.
+     *
+     * @param highWatermark The high watermark, must be greater than the low watermark, or 0 to
+     * disable the watermarks.
+     * @param lowWatermark The low watermark.
+     * @param listener The listener or null to only set the watermarks.
+     */
+    public void setWatermarks(int highWatermark, int lowWatermark, OnWatermarkListener listener) {
+        if ((highWatermark != 0 || listener != null) && (lowWatermark < 0 || highWatermark <= lowWatermark)) {
+            throw new IllegalArgumentException("Invalid watermarks: " + highWatermark + "/" + lowWatermark);
+        }
+        mLock.lock();
+        try {
+            mHighWatermark = highWatermark;
+            mLowWatermark = lowWatermark;
+            mAboveHighWatermark = false;
+            mWatermarkListener = listener;
+            mBelowLowWatermark.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks the calling producer after the number of pending messages has reached the high
+     * watermark until it has dropped to the low watermark again, the message queue is quitting or
+     * the timeout has elapsed. Returns immediately if the watermarks are not set or if called by
+     * the looper thread.
+     *
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return false if the timeout has elapsed while still above the low watermark.
+     *
+     * @hide
+     */
+    public boolean awaitLowWatermark(long timeout) throws InterruptedException {
+        if (!mAboveHighWatermark || Thread.currentThread() == mLooperThread) {
+            return true;
+        }
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        mLock.lock();
+        try {
+            while (mAboveHighWatermark && !mQuitting) {
+                if (nanos <= 0) {
+                    return false;
                 }
+                nanos = mBelowLowWatermark.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
 
-                final long now = SystemClock.uptimeMillis();
-                Message message = mHeadMessage;
+    /**
+     * Returns the number of pending messages.
+     */
+    public int size() {
+        return Math.max(0, mMessageCount + mTimerCount + mIncomingMessageCount);
+    }
 
-                if (message != null) {
-                    if (now < message.when) {
-                        try {
-                            wait(Math.min(message.when - now, Integer.MAX_VALUE));
-                        } catch (InterruptedException e) {
-                            // Ignore wakeups.
-                        }
-                    } else {
-                        if (DEBUG) {
-                            if ((now - message.when) > STARVATION_DELAY) {
-                                Log.w(LOG_TAG, "Thread '" + Thread.currentThread().getName() + "' starvation delay: " + (now - message.when) + "ms");
-                            }
-                        }
+    /**
+     * Detaches up to maxCount due messages under a single lock acquisition and blocks if there are
+     * none. The messages of the batch are removed from the message queue and the index of their
+     * handlers right away, so they are claimed for dispatching just like a single message without
+     * batching. Removing them afterwards has no effect.
+     *
+     * @return The number of messages in the batch, or 0 if the message queue is quitting.
+     */
+    final int dequeueMessages(int maxCount) {
+        final Thread thread = Thread.currentThread();
+        recycleBatchMessages();
+        for (;;) {
+            int count;
+            OnWatermarkListener lowWatermarkListener;
+            mLock.lock();
+            try {
+                if (mQuitting) {
+                    return 0;
+                }
+                count = nextMessages(SystemClock.uptimeNanos(), maxCount);
+                signalNotFull();
+                lowWatermarkListener = checkLowWatermark();
+            } finally {
+                mLock.unlock();
+            }
+            if (lowWatermarkListener != null) {
+                lowWatermarkListener.onLowWatermark(this);
+            }
+            if (count > 0) {
+                return count;
+            }
 
-                        mHeadMessage = message.nextMessage;
-                        if (mHeadMessage != null) {
-                            mHeadMessage.prevMessage = null;
-                        } else {
-                            mTailMessage = null;
-                        }
-                        message.prevMessage = null;
-                        message.nextMessage = null;
-                        return message;
-                    }
-                } else {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                        // Ignore wakeups.
-                    }
+            // Announce that the looper thread is going to block and check again to not miss any wakeups.
+            mBlockedThread = thread;
+            long timeout;
+            mLock.lock();
+            try {
+                if (mQuitting) {
+                    mBlockedThread = null;
+                    return 0;
                 }
+                final long now = SystemClock.uptimeNanos();
+                count = nextMessages(now, maxCount);
+                timeout = (mTimerCount > 0) ? mTimers[0].when - now : -1;
+            } finally {
+                mLock.unlock();
+            }
+            if (count > 0) {
+                mBlockedThread = null;
+                return count;
+            }
+
+            if (timeout < 0) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, timeout);
+            }
+            mBlockedThread = null;
+            if (Thread.interrupted()) {
+                // Ignore wakeups.
             }
         }
     }
 
+    /**
+     * Returns the number of pending messages including the current batch at the time the batch
+     * was dequeued. Must only be called by the looper thread.
+     */
+    final int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * Returns the message at the given position of the current batch, or null if the message queue
+     * has started quitting while the batch was dispatched. Must only be called by the looper
+     * thread.
+     */
+    final Message getBatchMessage(int position) {
+        return mQuitting ? null : mBatch[position];
+    }
+
+    /**
+     * Recycles the messages of the current batch after they have been dispatched, so that an idle
+     * looper does not keep their objects and results alive. Must only be called by the looper
+     * thread.
+     */
+    final void recycleBatchMessages() {
+        if (mBatchCount > 0) {
+            Message.recycle(mBatch, mBatchCount);
+            mBatchCount = 0;
+        }
+    }
+
     final boolean hasMessages(Handler handler, int what, Object object) {
         if (handler == null) {
             return false;
         }
 
-        synchronized (this) {
-            Message curMessage = mHeadMessage;
+        mLock.lock();
+        try {
+            transferIncomingMessages();
+            final Index index = handler.mMessageIndex;
+            Bucket bucket = (index != null) ? index.getWhatBucket(what) : null;
+            Message curMessage = (bucket != null) ? bucket.mHeadMessage : null;
             while (curMessage != null) {
-                if (curMessage.target == handler && curMessage.what == what && (object == null || curMessage.obj == object)) {
+                if (object == null || curMessage.obj == object) {
                     return true;
                 }
-                curMessage = curMessage.nextMessage;
+                curMessage = curMessage.nextWhatMessage;
             }
             return false;
+        } finally {
+            mLock.unlock();
         }
     }
 
     final boolean hasMessages(Handler handler, Runnable runnable, Object object) {
-        if (handler == null) {
+        if (handler == null || runnable == null) {
             return false;
         }
 
-        synchronized (this) {
-            Message curMessage = mHeadMessage;
+        mLock.lock();
+        try {
+            transferIncomingMessages();
+            final Index index = handler.mMessageIndex;
+            Bucket bucket = (index != null) ? index.mCallbackBuckets.get(runnable) : null;
+            Message curMessage = (bucket != null) ? bucket.mHeadMessage : null;
             while (curMessage != null) {
-                if (curMessage.target == handler && curMessage.callback == runnable && (object == null || curMessage.obj == object)) {
+                if (object == null || curMessage.obj == object) {
                     return true;
                 }
-                curMessage = curMessage.nextMessage;
+                curMessage = curMessage.nextCallbackMessage;
             }
             return false;
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -205,42 +591,23 @@ public class MessageQueue {
 
         boolean foundMessage = false;
 
-        synchronized (this) {
-            Message curMessage = mHeadMessage;
-
-            // Remove all messages at the front of the message queue.
-            while (curMessage != null && curMessage.target == handler && curMessage.what == what && (object == null || curMessage.obj == object)) {
-                foundMessage = true;
-                Message nextMessage = curMessage.nextMessage;
-                mHeadMessage = nextMessage;
-                if (mHeadMessage != null) {
-                    mHeadMessage.prevMessage = null;
-                } else {
-                    mTailMessage = null;
-                }
-                curMessage.recycle();
-                curMessage = nextMessage;
-            }
-
-            // Remove all messages after the front of the message queue.
+        mLock.lock();
+        try {
+            transferIncomingMessages();
+            final Index index = handler.mMessageIndex;
+            Bucket bucket = (index != null) ? index.getWhatBucket(what) : null;
+            Message curMessage = (bucket != null) ? bucket.mHeadMessage : null;
             while (curMessage != null) {
-                Message nextMessage = curMessage.nextMessage;
-                if (nextMessage != null) {
-                    if (nextMessage.target == handler && nextMessage.what == what && (object == null || nextMessage.obj == object)) {
-                        foundMessage = true;
-                        Message nextButOneMessage = nextMessage.nextMessage;
-                        if (nextButOneMessage != null) {
-                            nextButOneMessage.prevMessage = curMessage;
-                        } else {
-                            mTailMessage = curMessage;
-                        }
-                        curMessage.nextMessage = nextButOneMessage;
-                        nextMessage.recycle();
-                        continue;
-                    }
+                Message nextMessage = curMessage.nextWhatMessage;
+                if (object == null || curMessage.obj == object) {
+                    foundMessage = true;
+                    removeMessage(curMessage);
                 }
                 curMessage = nextMessage;
             }
+            signalNotFull();
+        } finally {
+            mLock.unlock();
         }
 
         return foundMessage;
@@ -253,42 +620,23 @@ public class MessageQueue {
 
         boolean foundMessage = false;
 
-        synchronized (this) {
-            Message curMessage = mHeadMessage;
-
-            // Remove all messages at the front of the message queue.
-            while (curMessage != null && curMessage.target == handler && curMessage.callback == runnable && (object == null || curMessage.obj == object)) {
-                foundMessage = true;
-                Message nextMessage = curMessage.nextMessage;
-                mHeadMessage = nextMessage;
-                if (mHeadMessage != null) {
-                    mHeadMessage.prevMessage = null;
-                } else {
-                    mTailMessage = null;
-                }
-                curMessage.recycle();
-                curMessage = nextMessage;
-            }
-
-            // Remove all messages after the front of the message queue.
+        mLock.lock();
+        try {
+            transferIncomingMessages();
+            final Index index = handler.mMessageIndex;
+            Bucket bucket = (index != null) ? index.mCallbackBuckets.get(runnable) : null;
+            Message curMessage = (bucket != null) ? bucket.mHeadMessage : null;
             while (curMessage != null) {
-                Message nextMessage = curMessage.nextMessage;
-                if (nextMessage != null) {
-                    if (nextMessage.target == handler && nextMessage.callback == runnable && (object == null || nextMessage.obj == object)) {
-                        foundMessage = true;
-                        Message nextButOneMessage = nextMessage.nextMessage;
-                        if (nextButOneMessage != null) {
-                            nextButOneMessage.prevMessage = curMessage;
-                        } else {
-                            mTailMessage = curMessage;
-                        }
-                        curMessage.nextMessage = nextButOneMessage;
-                        nextMessage.recycle();
-                        continue;
-                    }
+                Message nextMessage = curMessage.nextCallbackMessage;
+                if (object == null || curMessage.obj == object) {
+                    foundMessage = true;
+                    removeMessage(curMessage);
                 }
                 curMessage = nextMessage;
             }
+            signalNotFull();
+        } finally {
+            mLock.unlock();
         }
 
         return foundMessage;
@@ -301,44 +649,566 @@ public class MessageQueue {
 
         boolean foundMessage = false;
 
-        synchronized (this) {
-            Message curMessage = mHeadMessage;
-
-            // Remove all messages at the front of the message queue.
-            while (curMessage != null && curMessage.target == handler && (object == null || curMessage.obj == object)) {
-                foundMessage = true;
-                Message nextMessage = curMessage.nextMessage;
-                mHeadMessage = nextMessage;
-                if (mHeadMessage != null) {
-                    mHeadMessage.prevMessage = null;
-                } else {
-                    mTailMessage = null;
+        mLock.lock();
+        try {
+            transferIncomingMessages();
+            final Index index = handler.mMessageIndex;
+            if (index != null) {
+                // Every message of the handler is part of exactly one what bucket.
+                for (Bucket bucket : index.mWhatBuckets) {
+                    Message curMessage = (bucket != null) ? bucket.mHeadMessage : null;
+                    while (curMessage != null) {
+                        Message nextMessage = curMessage.nextWhatMessage;
+                        if (object == null || curMessage.obj == object) {
+                            foundMessage = true;
+                            removeMessage(curMessage);
+                        }
+                        curMessage = nextMessage;
+                    }
                 }
-                curMessage.recycle();
-                curMessage = nextMessage;
             }
+            signalNotFull();
+        } finally {
+            mLock.unlock();
+        }
 
-            // Remove all messages after the front of the message queue.
-            while (curMessage != null) {
-                Message nextMessage = curMessage.nextMessage;
-                if (nextMessage != null) {
-                    if (nextMessage.target == handler && (object == null || nextMessage.obj == object)) {
-                        foundMessage = true;
-                        Message nextButOneMessage = nextMessage.nextMessage;
-                        if (nextButOneMessage != null) {
-                            nextButOneMessage.prevMessage = curMessage;
-                        } else {
-                            mTailMessage = curMessage;
-                        }
-                        curMessage.nextMessage = nextButOneMessage;
-                        nextMessage.recycle();
-                        continue;
+        return foundMessage;
+    }
+
+    /**
+     * Tries to make room for a new message according to the overload policy. Must be called with
+     * mLock held, which is also held again when this method returns, so that an accepted message
+     * can take the free slot before any other producer.
+     */
+    private int onOverload(Message message) {
+        final int overloadPolicy = mOverloadPolicy;
+        switch (overloadPolicy) {
+        case OVERLOAD_POLICY_BLOCK:
+            // The looper thread would wait for itself.
+            if (message.target.getLooper().isCurrentThread()) {
+                return OVERLOAD_REJECTED;
+            }
+            long timeout = TimeUnit.MILLISECONDS.toNanos(mOverloadTimeout);
+            mBlockedProducers++;
+            try {
+                while (!mQuitting && mCapacity > 0 && size() >= mCapacity) {
+                    if (timeout <= 0) {
+                        return OVERLOAD_REJECTED;
                     }
+                    timeout = mNotFull.awaitNanos(timeout);
                 }
-                curMessage = nextMessage;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return OVERLOAD_REJECTED;
+            } finally {
+                mBlockedProducers--;
+            }
+            return mQuitting ? OVERLOAD_REJECTED : OVERLOAD_ACCEPTED;
+        case OVERLOAD_POLICY_DROP_OLDEST: {
+            Bucket bucket = getBucket(message);
+            if (bucket == null || bucket.mHeadMessage == null) {
+                return OVERLOAD_REJECTED;
             }
+            removeMessage(bucket.mHeadMessage);
+            return OVERLOAD_ACCEPTED;
+        }
+        case OVERLOAD_POLICY_COALESCE: {
+            Bucket bucket = getBucket(message);
+            Message pendingMessage = (bucket != null) ? bucket.mTailMessage : null;
+            // Messages with a result cannot be merged without losing a result.
+            if (pendingMessage == null || pendingMessage.result != null || message.result != null) {
+                return OVERLOAD_REJECTED;
+            }
+            pendingMessage.arg1 = message.arg1;
+            pendingMessage.arg2 = message.arg2;
+            pendingMessage.obj = message.obj;
+            pendingMessage.data = message.data;
+            pendingMessage.sendingPid = message.sendingPid;
+            message.data = null;
+            return OVERLOAD_COALESCED;
+        }
+        default:
+            return OVERLOAD_REJECTED;
+        }
+    }
+
+    /**
+     * Returns the index bucket of the pending messages that have the same handler and what code
+     * or, for callback messages, the same callback as the given message.
+     */
+    private static Bucket getBucket(Message message) {
+        final Index index = message.target.mMessageIndex;
+        if (index == null) {
+            return null;
+        }
+        if (message.callback != null) {
+            return index.mCallbackBuckets.get(message.callback);
         }
+        return index.getWhatBucket(message.what);
+    }
+
+    /**
+     * Returns the most recent pending message with the same handler and what code or callback as
+     * the given message.
+     */
+    private static Message findCoalescingMessage(Message message) {
+        final Bucket bucket = getBucket(message);
+        Message curMessage = (bucket != null) ? bucket.mTailMessage : null;
+        if (message.callback != null) {
+            return curMessage;
+        }
+        // Posted callbacks share the what code 0 with messages.
+        while (curMessage != null && curMessage.callback != null) {
+            curMessage = curMessage.prevWhatMessage;
+        }
+        return curMessage;
+    }
 
+    private void signalNotFull() {
+        if (mBlockedProducers > 0 && size() < mCapacity) {
+            mNotFull.signalAll();
+        }
+    }
+
+    private void checkHighWatermark() {
+        if (size() < mHighWatermark) {
+            return;
+        }
+        OnWatermarkListener listener;
+        mLock.lock();
+        try {
+            if (mHighWatermark == 0 || mAboveHighWatermark || size() < mHighWatermark) {
+                return;
+            }
+            mAboveHighWatermark = true;
+            listener = mWatermarkListener;
+        } finally {
+            mLock.unlock();
+        }
+        if (listener != null) {
+            listener.onHighWatermark(this);
+        }
+    }
+
+    /**
+     * Returns the listener to notify if the number of pending messages has dropped to the low
+     * watermark.
+     */
+    private OnWatermarkListener checkLowWatermark() {
+        if (mAboveHighWatermark && size() <= mLowWatermark) {
+            mAboveHighWatermark = false;
+            mBelowLowWatermark.signalAll();
+            return mWatermarkListener;
+        }
+        return null;
+    }
+
+    private boolean onDeadThread(Message message) {
+        IllegalStateException e = new IllegalStateException(message.target + " is sending a message to a Handler on a dead thread");
+        Log.w(LOG_TAG, e.getMessage(), e);
+        message.recycle();
+        return false;
+    }
+
+    private void wake() {
+        final Thread thread = mBlockedThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Detaches the next message that is due at the given time. Due delayed messages win against
+     * ready messages with a later or the same delivery time since they have been enqueued earlier.
+     */
+    private Message nextMessage(long now) {
+        if (mHeadMessage == null) {
+            transferIncomingMessages();
+        }
+
+        Message message = mHeadMessage;
+        if (mTimerCount > 0) {
+            Message timer = mTimers[0];
+            if (timer.when <= now && (message == null || timer.when <= message.when)) {
+                removeTimer(0);
+                removeFromIndex(timer);
+                checkStarvation(timer, now);
+                return timer;
+            }
+        }
+        if (message != null) {
+            unlinkMessage(message);
+            removeFromIndex(message);
+            checkStarvation(message, now);
+            return message;
+        }
+        return null;
+    }
+
+    private int nextMessages(long now, int maxCount) {
+        if (mBatch.length < maxCount) {
+            mBatch = new Message[maxCount];
+        }
+        int count = 0;
+        Message message;
+        while (count < maxCount && (message = nextMessage(now)) != null) {
+            mBatch[count++] = message;
+        }
+        mBatchCount = count;
+        mQueueDepth = count + mMessageCount + mTimerCount;
+        return count;
+    }
+
+    private static void checkStarvation(Message message, long now) {
+        if (DEBUG) {
+            if ((now - message.when) > STARVATION_DELAY) {
+                Log.w(LOG_TAG, "Thread '" + Thread.currentThread().getName() + "' starvation delay: " + (now - message.when) / 1000000 + "ms");
+            }
+        }
+    }
+
+    /**
+     * Recycles all messages of the lock-free incoming stack except the given one after the message
+     * queue has started quitting. Messages drained here are treated as if they had been enqueued
+     * before quit() was called.
+     *
+     * @return true if the given message was still on the incoming stack.
+     */
+    private boolean drainIncomingMessages(Message message) {
+        boolean foundMessage = false;
+        Message curMessage = INCOMING_MESSAGES.getAndSet(this, null);
+        while (curMessage != null) {
+            Message nextMessage = curMessage.nextMessage;
+            curMessage.nextMessage = null;
+            INCOMING_MESSAGE_COUNT.decrementAndGet(this);
+            if (curMessage == message) {
+                foundMessage = true;
+            } else {
+                curMessage.recycle();
+            }
+            curMessage = nextMessage;
+        }
         return foundMessage;
     }
+
+    /**
+     * Moves all messages from the lock-free incoming stack into the list of due messages and adds
+     * them to the index of their handlers. The list is kept ordered by delivery time, messages with
+     * the same delivery time stay in FIFO order.
+     */
+    private void transferIncomingMessages() {
+        Message curMessage = INCOMING_MESSAGES.getAndSet(this, null);
+        if (curMessage == null) {
+            return;
+        }
+
+        // Reverse the stack into FIFO order.
+        Message headMessage = null;
+        int count = 0;
+        while (curMessage != null) {
+            Message nextMessage = curMessage.nextMessage;
+            curMessage.nextMessage = headMessage;
+            headMessage = curMessage;
+            curMessage = nextMessage;
+            count++;
+        }
+
+        // Index the messages in FIFO order to keep the index buckets ordered by age.
+        curMessage = headMessage;
+        while (curMessage != null) {
+            Message nextMessage = curMessage.nextMessage;
+            insertMessage(curMessage);
+            addToIndex(curMessage);
+            curMessage = nextMessage;
+        }
+        INCOMING_MESSAGE_COUNT.addAndGet(this, -count);
+    }
+
+    /**
+     * Inserts the message into the list of due messages behind all messages with the same or an
+     * earlier delivery time. Most messages are due right when they are enqueued, so the search
+     * from the tail usually stops at the first message.
+     */
+    private void insertMessage(Message message) {
+        Message prevMessage = mTailMessage;
+        while (prevMessage != null && prevMessage.when > message.when) {
+            prevMessage = prevMessage.prevMessage;
+        }
+        Message nextMessage = (prevMessage != null) ? prevMessage.nextMessage : mHeadMessage;
+        message.prevMessage = prevMessage;
+        message.nextMessage = nextMessage;
+        if (prevMessage != null) {
+            prevMessage.nextMessage = message;
+        } else {
+            mHeadMessage = message;
+        }
+        if (nextMessage != null) {
+            nextMessage.prevMessage = message;
+        } else {
+            mTailMessage = message;
+        }
+        mMessageCount++;
+    }
+
+    private void unlinkMessage(Message message) {
+        Message prevMessage = message.prevMessage;
+        Message nextMessage = message.nextMessage;
+        if (prevMessage != null) {
+            prevMessage.nextMessage = nextMessage;
+        } else {
+            mHeadMessage = nextMessage;
+        }
+        if (nextMessage != null) {
+            nextMessage.prevMessage = prevMessage;
+        } else {
+            mTailMessage = prevMessage;
+        }
+        message.prevMessage = null;
+        message.nextMessage = null;
+        mMessageCount--;
+    }
+
+    private void removeMessage(Message message) {
+        if (message.timerIndex >= 0) {
+            removeTimer(message.timerIndex);
+        } else {
+            unlinkMessage(message);
+        }
+        removeFromIndex(message);
+        message.recycle();
+    }
+
+    private static void addToIndex(Message message) {
+        final Handler handler = message.target;
+        Index index = handler.mMessageIndex;
+        if (index == null) {
+            index = new Index();
+            handler.mMessageIndex = index;
+        }
+
+        Bucket bucket = index.getWhatBucket(message.what);
+        if (bucket == null) {
+            bucket = index.addWhatBucket(message.what);
+        }
+        message.whatBucket = bucket;
+        message.prevWhatMessage = bucket.mTailMessage;
+        if (bucket.mTailMessage != null) {
+            bucket.mTailMessage.nextWhatMessage = message;
+        } else {
+            bucket.mHeadMessage = message;
+        }
+        bucket.mTailMessage = message;
+
+        if (message.callback != null) {
+            bucket = index.mCallbackBuckets.get(message.callback);
+            if (bucket == null) {
+                if (index.mCallbackBuckets.size() >= index.mCallbackBucketLimit) {
+                    index.mCallbackBuckets.values().removeIf(b -> b.mHeadMessage == null);
+                    index.mCallbackBucketLimit = Math.max(MIN_BUCKET_LIMIT, index.mCallbackBuckets.size() << 1);
+                }
+                bucket = new Bucket();
+                index.mCallbackBuckets.put(message.callback, bucket);
+            }
+            message.callbackBucket = bucket;
+            message.prevCallbackMessage = bucket.mTailMessage;
+            if (bucket.mTailMessage != null) {
+                bucket.mTailMessage.nextCallbackMessage = message;
+            } else {
+                bucket.mHeadMessage = message;
+            }
+            bucket.mTailMessage = message;
+        }
+    }
+
+    /**
+     * Empty buckets are kept and only purged when new buckets are added to not modify the index
+     * tables while iterating over them.
+     */
+    private static void removeFromIndex(Message message) {
+        Bucket bucket = message.whatBucket;
+        if (bucket != null) {
+            Message prevMessage = message.prevWhatMessage;
+            Message nextMessage = message.nextWhatMessage;
+            if (prevMessage != null) {
+                prevMessage.nextWhatMessage = nextMessage;
+            } else {
+                bucket.mHeadMessage = nextMessage;
+            }
+            if (nextMessage != null) {
+                nextMessage.prevWhatMessage = prevMessage;
+            } else {
+                bucket.mTailMessage = prevMessage;
+            }
+            message.whatBucket = null;
+            message.prevWhatMessage = null;
+            message.nextWhatMessage = null;
+        }
+
+        bucket = message.callbackBucket;
+        if (bucket != null) {
+            Message prevMessage = message.prevCallbackMessage;
+            Message nextMessage = message.nextCallbackMessage;
+            if (prevMessage != null) {
+                prevMessage.nextCallbackMessage = nextMessage;
+            } else {
+                bucket.mHeadMessage = nextMessage;
+            }
+            if (nextMessage != null) {
+                nextMessage.prevCallbackMessage = prevMessage;
+            } else {
+                bucket.mTailMessage = prevMessage;
+            }
+            message.callbackBucket = null;
+            message.prevCallbackMessage = null;
+            message.nextCallbackMessage = null;
+        }
+    }
+
+    private static boolean isBefore(Message message, Message otherMessage) {
+        return message.when < otherMessage.when
+                || (message.when == otherMessage.when && message.sequence < otherMessage.sequence);
+    }
+
+    private void addTimer(Message message) {
+        if (mTimerCount == mTimers.length) {
+            Message[] timers = new Message[mTimers.length << 1];
+            System.arraycopy(mTimers, 0, timers, 0, mTimerCount);
+            mTimers = timers;
+        }
+        siftUp(mTimerCount++, message);
+    }
+
+    private void removeTimer(int index) {
+        Message message = mTimers[index];
+        int lastIndex = --mTimerCount;
+        Message lastMessage = mTimers[lastIndex];
+        mTimers[lastIndex] = null;
+        if (index != lastIndex) {
+            siftDown(index, lastMessage);
+            if (mTimers[index] == lastMessage) {
+                siftUp(index, lastMessage);
+            }
+        }
+        message.timerIndex = -1;
+    }
+
+    private void siftUp(int index, Message message) {
+        while (index > 0) {
+            int parentIndex = (index - 1) >>> 1;
+            Message parentMessage = mTimers[parentIndex];
+            if (!isBefore(message, parentMessage)) {
+                break;
+            }
+            mTimers[index] = parentMessage;
+            parentMessage.timerIndex = index;
+            index = parentIndex;
+        }
+        mTimers[index] = message;
+        message.timerIndex = index;
+    }
+
+    private void siftDown(int index, Message message) {
+        int halfCount = mTimerCount >>> 1;
+        while (index < halfCount) {
+            int childIndex = (index << 1) + 1;
+            Message childMessage = mTimers[childIndex];
+            int rightIndex = childIndex + 1;
+            if (rightIndex < mTimerCount && isBefore(mTimers[rightIndex], childMessage)) {
+                childIndex = rightIndex;
+                childMessage = mTimers[childIndex];
+            }
+            if (!isBefore(childMessage, message)) {
+                break;
+            }
+            mTimers[index] = childMessage;
+            childMessage.timerIndex = index;
+            index = childIndex;
+        }
+        mTimers[index] = message;
+        message.timerIndex = index;
+    }
+
+    /**
+     * Secondary index of the pending messages of a {@link Handler}. Each message is linked into the
+     * bucket of its what code and, if it has a callback, into the bucket of its callback. This
+     * makes lookups and removals depend on the number of matching messages instead of the queue
+     * depth.
+     */
+    static final class Index {
+        // Open addressing table with linear probing that maps what codes to buckets without boxing
+        // the what codes. It is kept at most half full.
+        private int[] mWhats = new int[MIN_BUCKET_LIMIT];
+        private Bucket[] mWhatBuckets = new Bucket[MIN_BUCKET_LIMIT];
+        private int mWhatBucketCount;
+        private final IdentityHashMap<Runnable, Bucket> mCallbackBuckets = new IdentityHashMap<>();
+        private int mCallbackBucketLimit = MIN_BUCKET_LIMIT;
+
+        private Bucket getWhatBucket(int what) {
+            final int mask = mWhatBuckets.length - 1;
+            for (int i = hash(what) & mask; ; i = (i + 1) & mask) {
+                Bucket bucket = mWhatBuckets[i];
+                if (bucket == null || mWhats[i] == what) {
+                    return bucket;
+                }
+            }
+        }
+
+        private Bucket addWhatBucket(int what) {
+            if ((mWhatBucketCount + 1) << 1 > mWhatBuckets.length) {
+                purgeWhatBuckets();
+            }
+            Bucket bucket = new Bucket();
+            putWhatBucket(what, bucket);
+            return bucket;
+        }
+
+        /**
+         * Rebuilds the table without the empty buckets. The table grows if it would still be more
+         * than a quarter full.
+         */
+        private void purgeWhatBuckets() {
+            final int[] whats = mWhats;
+            final Bucket[] buckets = mWhatBuckets;
+            int count = 0;
+            for (Bucket bucket : buckets) {
+                if (bucket != null && bucket.mHeadMessage != null) {
+                    count++;
+                }
+            }
+            int capacity = MIN_BUCKET_LIMIT;
+            while (capacity < (count + 1) << 2) {
+                capacity <<= 1;
+            }
+            mWhats = new int[capacity];
+            mWhatBuckets = new Bucket[capacity];
+            mWhatBucketCount = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] != null && buckets[i].mHeadMessage != null) {
+                    putWhatBucket(whats[i], buckets[i]);
+                }
+            }
+        }
+
+        private void putWhatBucket(int what, Bucket bucket) {
+            final int mask = mWhatBuckets.length - 1;
+            int i = hash(what) & mask;
+            while (mWhatBuckets[i] != null) {
+                i = (i + 1) & mask;
+            }
+            mWhats[i] = what;
+            mWhatBuckets[i] = bucket;
+            mWhatBucketCount++;
+        }
+
+        private static int hash(int what) {
+            // What codes are often small consecutive numbers, spread them over the table.
+            final int h = what * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    static final class Bucket {
+        private Message mHeadMessage;
+        private Message mTailMessage;
+    }
 }
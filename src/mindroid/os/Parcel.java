@@ -17,67 +17,187 @@
 
 package mindroid.os;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import mindroid.content.ComponentName;
+import mindroid.content.Intent;
 import mindroid.io.ByteArrayInputStream;
 import mindroid.io.ByteArrayOutputStream;
-import mindroid.io.DataInputStream;
-import mindroid.io.DataOutputStream;
+import mindroid.io.ByteBufferPool;
 import mindroid.runtime.system.Runtime;
+import mindroid.util.concurrent.Executors;
 
+/**
+ * Container for a message (data and object references) that can be sent through an IBinder.
+ *
+ * <p>
+ * The data is kept in a single big-endian {@link ByteBuffer} that is taken from a
+ * {@link ByteBufferPool}, so primitive values are read and written directly without any stream
+ * layers. Parcels and their buffers are pooled: {@link #recycle} puts both back into their pools
+ * once a parcel is no longer needed.
+ *
+ * <p>
+ * By default, integral values are written with their fixed size. Parcels in the compact format
+ * (see {@link #setCompact}) write chars, shorts, ints, longs and the length prefixes of strings as
+ * variable length integers, seven bits per byte. Signed values are zig-zag encoded first, so
+ * small negative values are short as well. Ids, counters, enums and lengths usually take a single
+ * byte. Floating point values, booleans, bytes and raw data are not affected. Remote transactions
+ * flag the format in the message header, so the receiver reads the parcel accordingly.
+ */
 public final class Parcel {
-    private ByteArrayOutputStream mOutputStream;
-    private ByteArrayInputStream mInputStream;
-    private DataOutputStream mDataOutputStream;
-    private DataInputStream mDataInputStream;
+    private static final byte[] EMPTY_ARRAY = new byte[0];
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.wrap(EMPTY_ARRAY);
+    private static final int POOL_SIZE = 16;
+    private static final int SHARED_POOL_SIZE = 64;
+    private static final int SCRATCH_BUFFER_SIZE = 8192;
+    // Recycled parcels keep heap buffers up to this capacity instead of returning them to the pool.
+    private static final int MAX_RETAINED_CAPACITY = 8 * 1024;
+    private static final ThreadLocal<Pool> sPool = ThreadLocal.withInitial(() -> new Pool(POOL_SIZE));
+    // Virtual threads share this pool, see Pool.
+    private static final Pool sSharedPool = new Pool(SHARED_POOL_SIZE);
+    private static final ThreadLocal<byte[]> sScratchBuffer = ThreadLocal.withInitial(() -> new byte[SCRATCH_BUFFER_SIZE]);
+    // Binder URI paths by interface descriptor, see toUriString.
+    private static final ConcurrentHashMap<String, String> sBinderPaths = new ConcurrentHashMap<>();
+    // Strings with this or a larger size in bytes are prefixed by a four byte length.
+    private static final int LONG_STRING_LENGTH = 0xFFFF;
+
+    // Type tags of putValue.
+    static final byte VAL_NULL = 0;
+    static final byte VAL_BOOLEAN = 1;
+    static final byte VAL_BYTE = 2;
+    static final byte VAL_CHAR = 3;
+    static final byte VAL_SHORT = 4;
+    static final byte VAL_INTEGER = 5;
+    static final byte VAL_LONG = 6;
+    static final byte VAL_FLOAT = 7;
+    static final byte VAL_DOUBLE = 8;
+    static final byte VAL_STRING = 9;
+    static final byte VAL_BOOLEAN_ARRAY = 10;
+    static final byte VAL_BYTE_ARRAY = 11;
+    static final byte VAL_CHAR_ARRAY = 12;
+    static final byte VAL_SHORT_ARRAY = 13;
+    static final byte VAL_INT_ARRAY = 14;
+    static final byte VAL_LONG_ARRAY = 15;
+    static final byte VAL_FLOAT_ARRAY = 16;
+    static final byte VAL_DOUBLE_ARRAY = 17;
+    static final byte VAL_STRING_ARRAY = 18;
+    static final byte VAL_LIST = 19;
+    static final byte VAL_BUNDLE = 20;
+    static final byte VAL_INTENT = 21;
+    static final byte VAL_COMPONENT_NAME = 22;
+    static final byte VAL_BINDER = 23;
+
+    private ByteBuffer mBuffer = EMPTY_BUFFER;
+    // The pool of mBuffer, null if the buffer wraps an array of the caller.
+    private ByteBufferPool mBufferPool;
+    private ByteBufferPool mGrowthPool = ByteBufferPool.getHeapPool();
+    private boolean mIsInput = false;
+    private boolean mIsCompact = false;
+    // The amount of data in input mode. In output mode, the position of mBuffer is the size.
+    private int mSize = 0;
+    private boolean mIsRecycled = false;
+    private InputStreamView mInputStream;
+    private OutputStreamView mOutputStream;
     private Bundle mExtras;
+    private ArrayList<InputStream> mStreams;
+    private IntFunction<InputStream> mStreamResolver;
 
     private Parcel() {
-        mOutputStream = new ByteArrayOutputStream();
-        mDataOutputStream = new DataOutputStream(mOutputStream);
     }
 
-    private Parcel(int size) {
-        mOutputStream = new ByteArrayOutputStream(size);
-        mDataOutputStream = new DataOutputStream(mOutputStream);
-    }
-
-    private Parcel(byte[] buffer, int offset, int size) {
-        if (offset == 0 && size == buffer.length) {
-            mOutputStream = new ByteArrayOutputStream(buffer);
+    /**
+     * Retrieve a new Parcel object from the pool.
+     */
+    public static Parcel obtain() {
+        Parcel parcel;
+        if (Executors.isVirtualThread(Thread.currentThread())) {
+            synchronized (sSharedPool) {
+                parcel = sSharedPool.poll();
+            }
         } else {
-            mOutputStream = new ByteArrayOutputStream(size);
-            mOutputStream.write(buffer, offset, size);
+            parcel = sPool.get().poll();
         }
-        mDataOutputStream = new DataOutputStream(mOutputStream);
-        asInput();
+        if (parcel != null) {
+            parcel.mIsRecycled = false;
+            return parcel;
+        }
+        return new Parcel();
     }
 
     /**
-     * Retrieve a new Parcel object from the pool.
+     * Retrieve a new Parcel object in the compact format from the pool, see {@link #setCompact}.
      */
-    public static Parcel obtain() {
-        return new Parcel();
+    public static Parcel obtainCompact() {
+        Parcel parcel = obtain();
+        parcel.mIsCompact = true;
+        return parcel;
     }
 
+    /**
+     * Retrieve a new Parcel object from the pool with room for at least {@code size} bytes.
+     */
     public static Parcel obtain(int size) {
-        return new Parcel(size);
+        return obtain(size, false);
+    }
+
+    /**
+     * Retrieve a new Parcel object from the pool with room for at least {@code size} bytes in a
+     * heap or direct buffer. Direct buffers can be handed to channels without copying, but
+     * {@link #getByteArray} has to copy them.
+     *
+     * @hide
+     */
+    public static Parcel obtain(int size, boolean direct) {
+        Parcel parcel = obtain();
+        if (direct) {
+            parcel.mGrowthPool = ByteBufferPool.getDirectPool();
+        }
+        if (parcel.mBuffer.capacity() < size || direct) {
+            parcel.setBuffer(parcel.mGrowthPool.acquire(size), parcel.mGrowthPool);
+        }
+        return parcel;
     }
 
+    /**
+     * Retrieve a new Parcel object in input mode that wraps the given buffer without copying it.
+     */
     public static Parcel obtain(byte[] buffer) {
         if (buffer == null) {
             throw new NullPointerException();
         }
-        return new Parcel(buffer, 0, buffer.length);
+        Parcel parcel = obtain();
+        parcel.setBuffer(ByteBuffer.wrap(buffer), null);
+        parcel.mBuffer.position(buffer.length);
+        parcel.asInput();
+        return parcel;
     }
 
+    /**
+     * Retrieve a new Parcel object in input mode that holds a copy of the given data.
+     */
     public static Parcel obtain(byte[] buffer, int offset, int size) {
         if (buffer == null) {
             throw new NullPointerException();
         }
-        return new Parcel(buffer, offset, size);
+        if (offset == 0 && size == buffer.length) {
+            return obtain(buffer);
+        }
+        Parcel parcel = obtain(size);
+        parcel.mBuffer.put(buffer, offset, size);
+        parcel.asInput();
+        return parcel;
     }
 
     /**
@@ -85,13 +205,98 @@ public final class Parcel {
      * the object after this call.
      */
     public final void recycle() {
+        if (mIsRecycled) {
+            return;
+        }
+        mIsRecycled = true;
+        mIsInput = false;
+        mIsCompact = false;
+        mSize = 0;
+        mExtras = null;
+        mStreams = null;
+        mStreamResolver = null;
+        if (Executors.isVirtualThread(Thread.currentThread())) {
+            synchronized (sSharedPool) {
+                recycle(sSharedPool);
+            }
+        } else {
+            recycle(sPool.get());
+        }
+    }
+
+    private void recycle(Pool pool) {
+        boolean pooled = pool.mSize < pool.mParcels.length;
+        if (pooled && mBufferPool == ByteBufferPool.getHeapPool() && mBuffer.capacity() <= MAX_RETAINED_CAPACITY) {
+            mBuffer.clear();
+        } else {
+            setBuffer(EMPTY_BUFFER, null);
+            mGrowthPool = ByteBufferPool.getHeapPool();
+        }
+        if (pooled) {
+            pool.mParcels[pool.mSize++] = this;
+        }
+    }
+
+    /**
+     * Parcels are pooled per thread. A parcel that is recycled on another thread than the one
+     * that has obtained it moves over to the pool of that thread. Virtual threads rarely live long
+     * enough to reuse a parcel, so they share one pool under its lock instead.
+     */
+    private static final class Pool {
+        final Parcel[] mParcels;
+        int mSize = 0;
+
+        Pool(int capacity) {
+            mParcels = new Parcel[capacity];
+        }
+
+        Parcel poll() {
+            if (mSize == 0) {
+                return null;
+            }
+            Parcel parcel = mParcels[--mSize];
+            mParcels[mSize] = null;
+            return parcel;
+        }
+    }
+
+    /**
+     * Returns a temporary buffer of at least {@code size} bytes. Platform threads reuse their own
+     * buffer, virtual threads get a new one.
+     */
+    private static byte[] getScratchBuffer(int size) {
+        if (size <= SCRATCH_BUFFER_SIZE && !Executors.isVirtualThread(Thread.currentThread())) {
+            return sScratchBuffer.get();
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Selects the compact or the fixed size format of the parcel. Interfaces that mostly transfer
+     * small integral values, like ids, counters or lengths, can opt in to the compact format. The
+     * format has to be selected before any value is written or read.
+     *
+     * @throws IllegalStateException if values have already been written or read.
+     */
+    public final void setCompact(boolean compact) {
+        if (mBuffer.position() != 0) {
+            throw new IllegalStateException("Parcel is in use");
+        }
+        mIsCompact = compact;
+    }
+
+    /**
+     * Returns true if the parcel uses the compact format, see {@link #setCompact}.
+     */
+    public final boolean isCompact() {
+        return mIsCompact;
     }
 
     /**
      * Returns the total amount of data contained in the parcel.
      */
     public final int size() {
-        return mOutputStream.size();
+        return mIsInput ? mSize : mBuffer.position();
     }
 
     /**
@@ -100,11 +305,8 @@ public final class Parcel {
      */
     public final void putBoolean(boolean value) throws RemoteException {
         checkOutput();
-        try {
-            mDataOutputStream.writeBoolean(value);
-        } catch (IOException e) {
-            throw new RemoteException(e);
-        }
+        ensureCapacity(1);
+        mBuffer.put(value ? (byte) 1 : (byte) 0);
     }
 
     /**
@@ -113,11 +315,8 @@ public final class Parcel {
      */
     public final void putByte(byte value) throws RemoteException {
         checkOutput();
-        try {
-            mDataOutputStream.writeByte(value);
-        } catch (IOException e) {
-            throw new RemoteException(e);
-        }
+        ensureCapacity(1);
+        mBuffer.put(value);
     }
 
     /**
@@ -126,11 +325,12 @@ public final class Parcel {
      */
     public final void putChar(char value) throws RemoteException {
         checkOutput();
-        try {
-            mDataOutputStream.writeChar(value);
-        } catch (IOException e) {
-            throw new RemoteException(e);
+        if (mIsCompact) {
+            putVarint(value);
+            return;
         }
+        ensureCapacity(2);
+        mBuffer.putChar(value);
     }
 
     /**
@@ -139,11 +339,12 @@ public final class Parcel {
      */
     public final void putShort(short value) throws RemoteException {
         checkOutput();
-        try {
-            mDataOutputStream.writeShort(value);
-        } catch (IOException e) {
-            throw new RemoteException(e);
+        if (mIsCompact) {
+            putVarint((value << 1) ^ (value >> 15));
+            return;
         }
+        ensureCapacity(2);
+        mBuffer.putShort(value);
     }
 
     /**
@@ -152,11 +353,12 @@ public final class Parcel {
      */
     public final void putInt(int value) throws RemoteException {
         checkOutput();
-        try {
-            mDataOutputStream.writeInt(value);
-        } catch (IOException e) {
-            throw new RemoteException(e);
+        if (mIsCompact) {
+            putVarint((value << 1) ^ (value >> 31));
+            return;
         }
+        ensureCapacity(4);
+        mBuffer.putInt(value);
     }
 
     /**
@@ -165,11 +367,12 @@ public final class Parcel {
      */
     public final void putLong(long value) throws RemoteException {
         checkOutput();
-        try {
-            mDataOutputStream.writeLong(value);
-        } catch (IOException e) {
-            throw new RemoteException(e);
+        if (mIsCompact) {
+            putVarlong((value << 1) ^ (value >> 63));
+            return;
         }
+        ensureCapacity(8);
+        mBuffer.putLong(value);
     }
 
     /**
@@ -178,11 +381,8 @@ public final class Parcel {
      */
     public final void putFloat(float value) throws RemoteException {
         checkOutput();
-        try {
-            mDataOutputStream.writeFloat(value);
-        } catch (IOException e) {
-            throw new RemoteException(e);
-        }
+        ensureCapacity(4);
+        mBuffer.putFloat(value);
     }
 
     /**
@@ -191,178 +391,505 @@ public final class Parcel {
      */
     public final void putDouble(double value) throws RemoteException {
         checkOutput();
-        try {
-            mDataOutputStream.writeDouble(value);
-        } catch (IOException e) {
-            throw new RemoteException(e);
-        }
+        ensureCapacity(8);
+        mBuffer.putDouble(value);
     }
 
     /**
      * Write a string value into the parcel at the current dataPosition(),
-     * growing dataCapacity() if needed.
+     * growing dataCapacity() if needed. The string is encoded in UTF-8 with a two byte length
+     * prefix. Strings of 65535 or more bytes use the escape length 0xFFFF followed by a four
+     * byte length, so, unlike {@link java.io.DataOutput#writeUTF}, the size of strings is not
+     * limited. Compact parcels prefix strings with a variable length integer instead.
      */
     public final void putString(String value) throws RemoteException {
         checkOutput();
-        try {
-            mDataOutputStream.writeUTF(value);
-        } catch (IOException e) {
-            throw new RemoteException(e);
+        final byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        if (mIsCompact) {
+            putVarint(data.length);
+            ensureCapacity(data.length);
+        } else if (data.length < LONG_STRING_LENGTH) {
+            ensureCapacity(2 + data.length);
+            mBuffer.putShort((short) data.length);
+        } else {
+            ensureCapacity(6 + data.length);
+            mBuffer.putShort((short) LONG_STRING_LENGTH);
+            mBuffer.putInt(data.length);
         }
+        mBuffer.put(data);
     }
 
     public final void putBytes(byte[] buffer) throws RemoteException {
-        checkOutput();
-        mOutputStream.write(buffer);
+        putBytes(buffer, 0, buffer.length);
     }
 
     public final void putBytes(byte[] buffer, int offset, int size) throws RemoteException {
         checkOutput();
-        mOutputStream.write(buffer, offset, size);
+        if ((offset < 0) || (size < 0) || ((offset + size) > buffer.length)) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(size);
+        mBuffer.put(buffer, offset, size);
     }
 
-    public final void putBinder(IBinder binder) throws RemoteException {
-        try {
-            URI descriptor = new URI(binder.getInterfaceDescriptor());
-            URI uri = new URI(binder.getUri().getScheme(), binder.getUri().getAuthority(), "/if=" + descriptor.getPath().substring(1), descriptor.getQuery(), null);
-            putString(uri.toString());
-        } catch (URISyntaxException e) {
-            throw new RemoteException(e);
+    /**
+     * Write the remaining bytes of a buffer into the parcel at the current dataPosition(),
+     * growing dataCapacity() if needed. The position of the buffer is advanced to its limit.
+     */
+    public final void putBytes(ByteBuffer buffer) throws RemoteException {
+        checkOutput();
+        ensureCapacity(buffer.remaining());
+        mBuffer.put(buffer);
+    }
+
+    /**
+     * Write a boolean array into the parcel at the current dataPosition(),
+     * growing dataCapacity() if needed. Arrays are prefixed by their length, null arrays are
+     * written as length -1.
+     */
+    public final void putBooleanArray(boolean[] value) throws RemoteException {
+        if (putArrayLength(value == null ? -1 : value.length, 1)) {
+            for (boolean element : value) {
+                mBuffer.put(element ? (byte) 1 : (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Write a character array into the parcel at the current dataPosition(),
+     * growing dataCapacity() if needed.
+     */
+    public final void putCharArray(char[] value) throws RemoteException {
+        if (mIsCompact) {
+            if (putArrayLength(value == null ? -1 : value.length, 0)) {
+                for (char element : value) {
+                    putVarint(element);
+                }
+            }
+        } else if (putArrayLength(value == null ? -1 : value.length, 2)) {
+            mBuffer.asCharBuffer().put(value);
+            mBuffer.position(mBuffer.position() + 2 * value.length);
+        }
+    }
+
+    /**
+     * Write a short integer array into the parcel at the current dataPosition(),
+     * growing dataCapacity() if needed.
+     */
+    public final void putShortArray(short[] value) throws RemoteException {
+        if (mIsCompact) {
+            if (putArrayLength(value == null ? -1 : value.length, 0)) {
+                for (short element : value) {
+                    putVarint((element << 1) ^ (element >> 15));
+                }
+            }
+        } else if (putArrayLength(value == null ? -1 : value.length, 2)) {
+            mBuffer.asShortBuffer().put(value);
+            mBuffer.position(mBuffer.position() + 2 * value.length);
+        }
+    }
+
+    /**
+     * Write an integer array into the parcel at the current dataPosition(),
+     * growing dataCapacity() if needed.
+     */
+    public final void putIntArray(int[] value) throws RemoteException {
+        if (mIsCompact) {
+            if (putArrayLength(value == null ? -1 : value.length, 0)) {
+                for (int element : value) {
+                    putVarint((element << 1) ^ (element >> 31));
+                }
+            }
+        } else if (putArrayLength(value == null ? -1 : value.length, 4)) {
+            mBuffer.asIntBuffer().put(value);
+            mBuffer.position(mBuffer.position() + 4 * value.length);
+        }
+    }
+
+    /**
+     * Write a long integer array into the parcel at the current dataPosition(),
+     * growing dataCapacity() if needed.
+     */
+    public final void putLongArray(long[] value) throws RemoteException {
+        if (mIsCompact) {
+            if (putArrayLength(value == null ? -1 : value.length, 0)) {
+                for (long element : value) {
+                    putVarlong((element << 1) ^ (element >> 63));
+                }
+            }
+        } else if (putArrayLength(value == null ? -1 : value.length, 8)) {
+            mBuffer.asLongBuffer().put(value);
+            mBuffer.position(mBuffer.position() + 8 * value.length);
         }
     }
 
+    /**
+     * Write a floating point array into the parcel at the current dataPosition(),
+     * growing dataCapacity() if needed.
+     */
+    public final void putFloatArray(float[] value) throws RemoteException {
+        if (putArrayLength(value == null ? -1 : value.length, 4)) {
+            mBuffer.asFloatBuffer().put(value);
+            mBuffer.position(mBuffer.position() + 4 * value.length);
+        }
+    }
+
+    /**
+     * Write a double precision floating point array into the parcel at the current
+     * dataPosition(), growing dataCapacity() if needed.
+     */
+    public final void putDoubleArray(double[] value) throws RemoteException {
+        if (putArrayLength(value == null ? -1 : value.length, 8)) {
+            mBuffer.asDoubleBuffer().put(value);
+            mBuffer.position(mBuffer.position() + 8 * value.length);
+        }
+    }
+
+    /**
+     * Appends {@code length} bytes of the data of another parcel, starting at {@code offset}.
+     */
+    public final void appendFrom(Parcel parcel, int offset, int length) throws RemoteException {
+        checkOutput();
+        if ((offset < 0) || (length < 0) || ((offset + length) > parcel.size())) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(length);
+        if (parcel.mBuffer.hasArray()) {
+            mBuffer.put(parcel.mBuffer.array(), parcel.mBuffer.arrayOffset() + offset, length);
+        } else {
+            ByteBuffer data = parcel.mBuffer.duplicate();
+            data.limit(offset + length).position(offset);
+            mBuffer.put(data);
+        }
+    }
+
+    public final void putBinder(IBinder binder) throws RemoteException {
+        putString(toUriString(binder.getUri().getScheme(), binder));
+    }
+
     public final void putBinder(IBinder base, IBinder binder) throws RemoteException {
-        try {
-            URI descriptor = new URI(binder.getInterfaceDescriptor());
-            URI uri = new URI(base.getUri().getScheme(), binder.getUri().getAuthority(), "/if=" + descriptor.getPath().substring(1), descriptor.getQuery(), null);
-            putString(uri.toString());
-        } catch (URISyntaxException e) {
-            throw new RemoteException(e);
+        putString(toUriString(base.getUri().getScheme(), binder));
+    }
+
+    /**
+     * Attaches a stream to the parcel. Local transactions hand the stream itself over to the
+     * receiver. Remote transactions send the parcel first and then stream the data in bounded
+     * chunks, so arbitrarily large payloads neither have to fit into a single message nor into the
+     * heap of the receiver. The stream is closed after it has been sent.
+     */
+    public final void putStream(InputStream stream) throws RemoteException {
+        if (stream == null) {
+            throw new NullPointerException();
         }
+        checkOutput();
+        if (mStreams == null) {
+            mStreams = new ArrayList<>();
+        }
+        putInt(mStreams.size());
+        mStreams.add(stream);
     }
 
-    public final boolean getBoolean() throws RemoteException {
-        checkInput();
-        try {
-            return mDataInputStream.readBoolean();
-        } catch (IOException e) {
-            throw new RemoteException(e);
+    /**
+     * Returns the next stream that has been attached to the parcel via {@link #putStream}. For
+     * remote transactions, the data can be read incrementally while it is still being received.
+     */
+    public final InputStream getStream() throws RemoteException {
+        final int index = getInt();
+        if (mStreams != null) {
+            if (index >= 0 && index < mStreams.size()) {
+                return mStreams.get(index);
+            }
+        } else if (mStreamResolver != null) {
+            InputStream stream = mStreamResolver.apply(index);
+            if (stream != null) {
+                return stream;
+            }
         }
+        throw new RemoteException("Invalid stream: " + index);
+    }
+
+    /**
+     * Returns the number of streams that have been attached to the parcel via {@link #putStream}.
+     *
+     * @hide
+     */
+    public final int getStreamCount() {
+        return (mStreams != null) ? mStreams.size() : 0;
+    }
+
+    /**
+     * @hide
+     */
+    public final InputStream getStream(int index) {
+        return mStreams.get(index);
+    }
+
+    /**
+     * Sets the function that looks up the streams of a parcel that has been received from a
+     * remote process.
+     *
+     * @hide
+     */
+    public final void setStreamResolver(IntFunction<InputStream> resolver) {
+        mStreamResolver = resolver;
+    }
+
+    public final boolean getBoolean() throws RemoteException {
+        checkInput(1);
+        return mBuffer.get() != 0;
     }
 
     public final byte getByte() throws RemoteException {
-        checkInput();
-        try {
-            return mDataInputStream.readByte();
-        } catch (IOException e) {
-            throw new RemoteException(e);
-        }
+        checkInput(1);
+        return mBuffer.get();
     }
 
     public final char getChar() throws RemoteException {
-        checkInput();
-        try {
-            return mDataInputStream.readChar();
-        } catch (IOException e) {
-            throw new RemoteException(e);
+        if (mIsCompact) {
+            return (char) getVarint();
         }
+        checkInput(2);
+        return mBuffer.getChar();
     }
 
     public final short getShort() throws RemoteException {
-        checkInput();
-        try {
-            return mDataInputStream.readShort();
-        } catch (IOException e) {
-            throw new RemoteException(e);
+        if (mIsCompact) {
+            final int value = getVarint();
+            return (short) ((value >>> 1) ^ -(value & 1));
         }
+        checkInput(2);
+        return mBuffer.getShort();
     }
 
     /**
      * Read an integer value from the parcel at the current dataPosition().
      */
     public final int getInt() throws RemoteException {
-        checkInput();
-        try {
-            return mDataInputStream.readInt();
-        } catch (IOException e) {
-            throw new RemoteException(e);
+        if (mIsCompact) {
+            final int value = getVarint();
+            return (value >>> 1) ^ -(value & 1);
         }
+        checkInput(4);
+        return mBuffer.getInt();
     }
 
     /**
      * Read a long integer value from the parcel at the current dataPosition().
      */
     public final long getLong() throws RemoteException {
-        checkInput();
-        try {
-            return mDataInputStream.readLong();
-        } catch (IOException e) {
-            throw new RemoteException(e);
+        if (mIsCompact) {
+            final long value = getVarlong();
+            return (value >>> 1) ^ -(value & 1);
         }
+        checkInput(8);
+        return mBuffer.getLong();
     }
 
     /**
      * Read a floating point value from the parcel at the current
      * dataPosition().
-     * @throws IOException 
      */
     public final float getFloat() throws RemoteException {
-        checkInput();
-        try {
-            return mDataInputStream.readFloat();
-        } catch (IOException e) {
-            throw new RemoteException(e);
-        }
+        checkInput(4);
+        return mBuffer.getFloat();
     }
 
     /**
      * Read a double precision floating point value from the parcel at the
      * current dataPosition().
-     * @throws IOException 
      */
     public final double getDouble() throws RemoteException {
-        checkInput();
-        try {
-            return mDataInputStream.readDouble();
-        } catch (IOException e) {
-            throw new RemoteException(e);
-        }
+        checkInput(8);
+        return mBuffer.getDouble();
     }
 
     /**
      * Read a string value from the parcel at the current dataPosition().
-     * @throws IOException 
      */
     public final String getString() throws RemoteException {
-        checkInput();
-        try {
-            return mDataInputStream.readUTF();
-        } catch (IOException e) {
-            throw new RemoteException(e);
+        int size;
+        if (mIsCompact) {
+            size = getVarint();
+        } else {
+            checkInput(2);
+            size = mBuffer.getShort() & 0xffff;
+            if (size == LONG_STRING_LENGTH) {
+                size = getInt();
+            }
         }
+        if (size < 0) {
+            throw new RemoteException(new UTFDataFormatException("Invalid string length: " + size));
+        }
+        checkInput(size);
+        final int position = mBuffer.position();
+        final String value;
+        if (mBuffer.hasArray()) {
+            value = new String(mBuffer.array(), mBuffer.arrayOffset() + position, size, StandardCharsets.UTF_8);
+        } else {
+            final byte[] data = getScratchBuffer(size);
+            mBuffer.get(data, 0, size);
+            value = new String(data, 0, size, StandardCharsets.UTF_8);
+        }
+        mBuffer.position(position + size);
+        return value;
     }
 
     public final byte[] getBytes() throws RemoteException {
-        checkInput();
-        if (mInputStream.available() >= 0) {
-            byte[] buffer = new byte[mInputStream.available()];
-            mInputStream.read(buffer);
-            return buffer;
+        checkInput(0);
+        byte[] buffer = new byte[mSize - mBuffer.position()];
+        mBuffer.get(buffer);
+        return buffer;
+    }
+
+    public final byte[] getBytes(int size) throws RemoteException {
+        checkInput(0);
+        size = Math.min(mSize - mBuffer.position(), size);
+        byte[] buffer = new byte[size];
+        mBuffer.get(buffer);
+        return buffer;
+    }
+
+    /**
+     * Read up to {@code buffer.remaining()} bytes from the parcel into a buffer.
+     *
+     * @return The number of bytes that have been read.
+     */
+    public final int getBytes(ByteBuffer buffer) throws RemoteException {
+        checkInput(0);
+        final int position = mBuffer.position();
+        final int size = Math.min(mSize - position, buffer.remaining());
+        ByteBuffer data = mBuffer.duplicate();
+        data.limit(position + size);
+        buffer.put(data);
+        mBuffer.position(position + size);
+        return size;
+    }
+
+    /**
+     * Read a boolean array that has been written by {@link #putBooleanArray}.
+     */
+    public final boolean[] getBooleanArray() throws RemoteException {
+        final int length = getArrayLength(1);
+        if (length < 0) {
+            return null;
+        }
+        boolean[] array = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = mBuffer.get() != 0;
+        }
+        return array;
+    }
+
+    /**
+     * Read a character array that has been written by {@link #putCharArray}.
+     */
+    public final char[] getCharArray() throws RemoteException {
+        final int length = getArrayLength(mIsCompact ? 1 : 2);
+        if (length < 0) {
+            return null;
+        }
+        char[] array = new char[length];
+        if (mIsCompact) {
+            for (int i = 0; i < length; i++) {
+                array[i] = (char) getVarint();
+            }
+        } else {
+            mBuffer.asCharBuffer().get(array);
+            mBuffer.position(mBuffer.position() + 2 * length);
+        }
+        return array;
+    }
+
+    /**
+     * Read a short integer array that has been written by {@link #putShortArray}.
+     */
+    public final short[] getShortArray() throws RemoteException {
+        final int length = getArrayLength(mIsCompact ? 1 : 2);
+        if (length < 0) {
+            return null;
+        }
+        short[] array = new short[length];
+        if (mIsCompact) {
+            for (int i = 0; i < length; i++) {
+                final int value = getVarint();
+                array[i] = (short) ((value >>> 1) ^ -(value & 1));
+            }
         } else {
+            mBuffer.asShortBuffer().get(array);
+            mBuffer.position(mBuffer.position() + 2 * length);
+        }
+        return array;
+    }
+
+    /**
+     * Read an integer array that has been written by {@link #putIntArray}.
+     */
+    public final int[] getIntArray() throws RemoteException {
+        final int length = getArrayLength(mIsCompact ? 1 : 4);
+        if (length < 0) {
             return null;
         }
+        int[] array = new int[length];
+        if (mIsCompact) {
+            for (int i = 0; i < length; i++) {
+                final int value = getVarint();
+                array[i] = (value >>> 1) ^ -(value & 1);
+            }
+        } else {
+            mBuffer.asIntBuffer().get(array);
+            mBuffer.position(mBuffer.position() + 4 * length);
+        }
+        return array;
     }
 
-    public final byte[] getBytes(int size) throws RemoteException {
-        checkInput();
-        if (mInputStream.available() >= 0) {
-            size = Math.min(mInputStream.available(), size);
-            byte[] buffer = new byte[size];
-            mInputStream.read(buffer, 0, size);
-            return buffer;
+    /**
+     * Read a long integer array that has been written by {@link #putLongArray}.
+     */
+    public final long[] getLongArray() throws RemoteException {
+        final int length = getArrayLength(mIsCompact ? 1 : 8);
+        if (length < 0) {
+            return null;
+        }
+        long[] array = new long[length];
+        if (mIsCompact) {
+            for (int i = 0; i < length; i++) {
+                final long value = getVarlong();
+                array[i] = (value >>> 1) ^ -(value & 1);
+            }
         } else {
+            mBuffer.asLongBuffer().get(array);
+            mBuffer.position(mBuffer.position() + 8 * length);
+        }
+        return array;
+    }
+
+    /**
+     * Read a floating point array that has been written by {@link #putFloatArray}.
+     */
+    public final float[] getFloatArray() throws RemoteException {
+        final int length = getArrayLength(4);
+        if (length < 0) {
             return null;
         }
+        float[] array = new float[length];
+        mBuffer.asFloatBuffer().get(array);
+        mBuffer.position(mBuffer.position() + 4 * length);
+        return array;
+    }
+
+    /**
+     * Read a double precision floating point array that has been written by
+     * {@link #putDoubleArray}.
+     */
+    public final double[] getDoubleArray() throws RemoteException {
+        final int length = getArrayLength(8);
+        if (length < 0) {
+            return null;
+        }
+        double[] array = new double[length];
+        mBuffer.asDoubleBuffer().get(array);
+        mBuffer.position(mBuffer.position() + 8 * length);
+        return array;
     }
 
     public final IBinder getBinder() throws RemoteException {
@@ -375,56 +902,574 @@ public final class Parcel {
         return Runtime.getRuntime().getBinder(uri);
     }
 
+    /**
+     * Write a Bundle into the parcel. The values are encoded by {@link #putValue}, so the Bundle
+     * may only contain values of the types supported there.
+     */
+    public final void putBundle(Bundle bundle) throws RemoteException {
+        putValue(bundle);
+    }
+
+    /**
+     * Read a Bundle that has been written by {@link #putBundle}.
+     */
+    public final Bundle getBundle() throws RemoteException {
+        Object value = getValue();
+        if (value != null && !(value instanceof Bundle)) {
+            throw new RemoteException("Invalid bundle");
+        }
+        return (Bundle) value;
+    }
+
+    /**
+     * Write a value of one of the types that lightweight transactions carry into the parcel:
+     * null, boxed primitives, strings, primitive and string arrays, lists of such values,
+     * {@link Bundle}s, {@link Intent}s, {@link ComponentName}s and {@link IBinder}s. Each value is
+     * prefixed by a one byte type tag. Binders are written as URIs, see {@link #putBinder}.
+     *
+     * @throws RemoteException if the value or one of its elements has an unsupported type.
+     *
+     * @hide
+     */
+    public final void putValue(Object value) throws RemoteException {
+        if (value == null) {
+            putByte(VAL_NULL);
+        } else if (value instanceof String) {
+            putByte(VAL_STRING);
+            putString((String) value);
+        } else if (value instanceof Integer) {
+            putByte(VAL_INTEGER);
+            putInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            putByte(VAL_BOOLEAN);
+            putBoolean((Boolean) value);
+        } else if (value instanceof Long) {
+            putByte(VAL_LONG);
+            putLong((Long) value);
+        } else if (value instanceof Bundle) {
+            putByte(VAL_BUNDLE);
+            ((Bundle) value).writeToParcel(this);
+        } else if (value instanceof Intent) {
+            final Intent intent = (Intent) value;
+            putByte(VAL_INTENT);
+            putValue(intent.getAction());
+            putValue(intent.getComponent());
+            putValue(intent.getExtras());
+        } else if (value instanceof ComponentName) {
+            final ComponentName component = (ComponentName) value;
+            putByte(VAL_COMPONENT_NAME);
+            putString(component.getPackageName());
+            putString(component.getClassName());
+        } else if (value instanceof IBinder) {
+            putByte(VAL_BINDER);
+            putBinder((IBinder) value);
+        } else if (value instanceof Byte) {
+            putByte(VAL_BYTE);
+            putByte((Byte) value);
+        } else if (value instanceof Character) {
+            putByte(VAL_CHAR);
+            putChar((Character) value);
+        } else if (value instanceof Short) {
+            putByte(VAL_SHORT);
+            putShort((Short) value);
+        } else if (value instanceof Float) {
+            putByte(VAL_FLOAT);
+            putFloat((Float) value);
+        } else if (value instanceof Double) {
+            putByte(VAL_DOUBLE);
+            putDouble((Double) value);
+        } else if (value instanceof byte[]) {
+            final byte[] array = (byte[]) value;
+            putByte(VAL_BYTE_ARRAY);
+            putInt(array.length);
+            putBytes(array);
+        } else if (value instanceof boolean[]) {
+            putByte(VAL_BOOLEAN_ARRAY);
+            putBooleanArray((boolean[]) value);
+        } else if (value instanceof char[]) {
+            putByte(VAL_CHAR_ARRAY);
+            putCharArray((char[]) value);
+        } else if (value instanceof short[]) {
+            putByte(VAL_SHORT_ARRAY);
+            putShortArray((short[]) value);
+        } else if (value instanceof int[]) {
+            putByte(VAL_INT_ARRAY);
+            putIntArray((int[]) value);
+        } else if (value instanceof long[]) {
+            putByte(VAL_LONG_ARRAY);
+            putLongArray((long[]) value);
+        } else if (value instanceof float[]) {
+            putByte(VAL_FLOAT_ARRAY);
+            putFloatArray((float[]) value);
+        } else if (value instanceof double[]) {
+            putByte(VAL_DOUBLE_ARRAY);
+            putDoubleArray((double[]) value);
+        } else if (value instanceof String[]) {
+            final String[] array = (String[]) value;
+            putByte(VAL_STRING_ARRAY);
+            putInt(array.length);
+            for (String element : array) {
+                putValue(element);
+            }
+        } else if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            putByte(VAL_LIST);
+            putInt(list.size());
+            for (Object element : list) {
+                putValue(element);
+            }
+        } else {
+            throw new RemoteException("Unsupported value type: " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Read a value that has been written by {@link #putValue}. Lists are returned as
+     * {@link ArrayList}s, binders as proxies unless they refer to a local binder.
+     *
+     * @hide
+     */
+    public final Object getValue() throws RemoteException {
+        return getValue(getByte());
+    }
+
+    /**
+     * Read a value of the given type that has been written by {@link #putValue}.
+     */
+    final Object getValue(byte type) throws RemoteException {
+        switch (type) {
+        case VAL_NULL:
+            return null;
+        case VAL_STRING:
+            return getString();
+        case VAL_INTEGER:
+            return getInt();
+        case VAL_BOOLEAN:
+            return getBoolean();
+        case VAL_LONG:
+            return getLong();
+        case VAL_BUNDLE: {
+            final int size = getLength(2);
+            Bundle bundle = new Bundle(size);
+            bundle.readFromParcel(this, size);
+            return bundle;
+        }
+        case VAL_INTENT: {
+            Intent intent = new Intent(getTypedValue(String.class));
+            intent.setComponent(getTypedValue(ComponentName.class));
+            Bundle extras = getTypedValue(Bundle.class);
+            if (extras != null) {
+                intent.putExtras(extras);
+            }
+            return intent;
+        }
+        case VAL_COMPONENT_NAME:
+            return new ComponentName(getString(), getString());
+        case VAL_BINDER:
+            return getBinder();
+        case VAL_BYTE:
+            return getByte();
+        case VAL_CHAR:
+            return getChar();
+        case VAL_SHORT:
+            return getShort();
+        case VAL_FLOAT:
+            return getFloat();
+        case VAL_DOUBLE:
+            return getDouble();
+        case VAL_BYTE_ARRAY:
+            return getBytes(getLength(1));
+        case VAL_BOOLEAN_ARRAY:
+            return getBooleanArray();
+        case VAL_CHAR_ARRAY:
+            return getCharArray();
+        case VAL_SHORT_ARRAY:
+            return getShortArray();
+        case VAL_INT_ARRAY:
+            return getIntArray();
+        case VAL_LONG_ARRAY:
+            return getLongArray();
+        case VAL_FLOAT_ARRAY:
+            return getFloatArray();
+        case VAL_DOUBLE_ARRAY:
+            return getDoubleArray();
+        case VAL_STRING_ARRAY: {
+            String[] array = new String[getLength(1)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = getTypedValue(String.class);
+            }
+            return array;
+        }
+        case VAL_LIST: {
+            final int size = getLength(1);
+            ArrayList<Object> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(getValue());
+            }
+            return list;
+        }
+        default:
+            throw new RemoteException("Invalid value type: " + type);
+        }
+    }
+
+    private <T> T getTypedValue(Class<T> clazz) throws RemoteException {
+        Object value = getValue();
+        if (value != null && !clazz.isInstance(value)) {
+            throw new RemoteException("Invalid value type: " + value.getClass().getName());
+        }
+        return clazz.cast(value);
+    }
+
+    /**
+     * Reads the length of an array or container and checks it against the remaining data, so
+     * that corrupt data cannot trigger huge allocations.
+     */
+    private int getLength(int minElementSize) throws RemoteException {
+        final int length = getInt();
+        // Integral elements of compact parcels may take a single byte.
+        if (length < 0 || (long) length * (mIsCompact ? 1 : minElementSize) > mSize - mBuffer.position()) {
+            throw new RemoteException("Invalid length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Reads the length of a primitive array, -1 for null arrays, and makes sure that the parcel
+     * contains at least {@code length * elementSize} more bytes.
+     */
+    private int getArrayLength(int elementSize) throws RemoteException {
+        final int length = getInt();
+        if (length == -1) {
+            return -1;
+        }
+        if (length < 0 || (long) length * elementSize > mSize - mBuffer.position()) {
+            throw new RemoteException("Invalid length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the length of a primitive array and reserves {@code length * elementSize} bytes for
+     * its elements.
+     *
+     * @return false for null arrays.
+     */
+    private boolean putArrayLength(int length, int elementSize) throws RemoteException {
+        checkOutput();
+        putInt(length);
+        if (length < 0) {
+            return false;
+        }
+        final long size = (long) length * elementSize;
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("Parcel too large");
+        }
+        ensureCapacity((int) size);
+        return true;
+    }
+
+    /**
+     * Returns the data of the parcel in the first {@link #size()} bytes of the returned array. The
+     * array is the buffer of the parcel, unless the parcel uses a direct buffer.
+     */
     public final byte[] getByteArray() {
-        return mOutputStream.getByteArray();
+        if (mBuffer.hasArray() && mBuffer.arrayOffset() == 0) {
+            return mBuffer.array();
+        }
+        byte[] data = new byte[size()];
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.limit(data.length).position(0);
+        buffer.get(data);
+        return data;
     }
 
+    /**
+     * Writes the data of the parcel to an output stream without copying it, unless the parcel
+     * uses a direct buffer.
+     *
+     * @hide
+     */
+    public final void writeTo(OutputStream outputStream) throws IOException {
+        final int size = size();
+        if (mBuffer.hasArray()) {
+            outputStream.write(mBuffer.array(), mBuffer.arrayOffset(), size);
+        } else {
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.limit(size).position(0);
+            byte[] scratchBuffer = getScratchBuffer(Math.min(size, SCRATCH_BUFFER_SIZE));
+            while (buffer.hasRemaining()) {
+                int count = Math.min(buffer.remaining(), scratchBuffer.length);
+                buffer.get(scratchBuffer, 0, count);
+                outputStream.write(scratchBuffer, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Returns an input stream that reads the parcel data from the current position. The stream
+     * shares its position with the parcel and switches the parcel to input mode.
+     */
     public final ByteArrayInputStream asInputStream() {
+        asInput();
         if (mInputStream == null) {
-            mInputStream = new ByteArrayInputStream(mOutputStream.getByteArray(), 0, mOutputStream.size());
-            mDataInputStream = new DataInputStream(mInputStream);
+            mInputStream = new InputStreamView();
         }
         return mInputStream;
     }
 
+    /**
+     * Returns an output stream that appends to the parcel data. The stream switches the parcel
+     * to output mode.
+     */
     public final ByteArrayOutputStream asOutputStream() {
-        if (mInputStream != null) {
-            mInputStream = null;
-            mDataInputStream = null;
+        asOutput();
+        if (mOutputStream == null) {
+            mOutputStream = new OutputStreamView();
         }
         return mOutputStream;
     }
 
     public final Parcel asInput() {
-        asInputStream();
+        if (!mIsInput) {
+            mSize = mBuffer.position();
+            mBuffer.position(0);
+            mIsInput = true;
+        }
         return this;
     }
 
     public final Parcel asOutput() {
-        asOutputStream();
+        if (mIsInput) {
+            mBuffer.limit(mBuffer.capacity());
+            mBuffer.position(mSize);
+            mIsInput = false;
+        }
         return this;
     }
 
+    private void putVarint(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            mBuffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        mBuffer.put((byte) value);
+    }
+
+    private void putVarlong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            mBuffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        mBuffer.put((byte) value);
+    }
+
+    private int getVarint() throws RemoteException {
+        checkInput(0);
+        final int limit = Math.min(mSize, mBuffer.position() + 5);
+        int value = 0;
+        for (int shift = 0; mBuffer.position() < limit; shift += 7) {
+            final byte b = mBuffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new RemoteException((mBuffer.position() == mSize) ? new EOFException() : new IOException("Malformed variable length integer"));
+    }
+
+    private long getVarlong() throws RemoteException {
+        checkInput(0);
+        final int limit = Math.min(mSize, mBuffer.position() + 10);
+        long value = 0;
+        for (int shift = 0; mBuffer.position() < limit; shift += 7) {
+            final byte b = mBuffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new RemoteException((mBuffer.position() == mSize) ? new EOFException() : new IOException("Malformed variable length integer"));
+    }
+
     private final void checkOutput() {
-        if (mInputStream != null) {
+        if (mIsInput) {
             throw new IllegalStateException("Parcel is in input mode");
         }
     }
 
-    private final void checkInput() {
-        if (mInputStream == null) {
+    private final void checkInput(int size) throws RemoteException {
+        if (!mIsInput) {
             throw new IllegalStateException("Parcel is in output mode");
         }
+        if (mSize - mBuffer.position() < size) {
+            throw new RemoteException(new EOFException());
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (mBuffer.remaining() < size) {
+            final int position = mBuffer.position();
+            final long capacity = Math.max((long) position + size, 2L * mBuffer.capacity());
+            if (capacity > Integer.MAX_VALUE - 8) {
+                if ((long) position + size > Integer.MAX_VALUE - 8) {
+                    throw new OutOfMemoryError("Parcel too large");
+                }
+            }
+            ByteBuffer buffer = mGrowthPool.acquire((int) Math.min(capacity, Integer.MAX_VALUE - 8));
+            mBuffer.flip();
+            buffer.put(mBuffer);
+            setBuffer(buffer, mGrowthPool);
+        }
+    }
+
+    private void setBuffer(ByteBuffer buffer, ByteBufferPool pool) {
+        if (mBufferPool != null) {
+            mBufferPool.release(mBuffer);
+        }
+        mBuffer = buffer;
+        mBufferPool = pool;
+    }
+
+    /**
+     * An input stream on the parcel data that shares its position with the parcel.
+     */
+    private final class InputStreamView extends ByteArrayInputStream {
+        InputStreamView() {
+            super(EMPTY_ARRAY);
+        }
+
+        @Override
+        public int available() {
+            return mIsInput ? mSize - Parcel.this.mBuffer.position() : 0;
+        }
+
+        @Override
+        public void mark(int limit) {
+            mMark = Parcel.this.mBuffer.position();
+        }
+
+        @Override
+        public int read() {
+            return (available() > 0) ? Parcel.this.mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (buffer == null) {
+                throw new NullPointerException();
+            } else if ((offset < 0) || (count < 0) || ((offset + count) > buffer.length)) {
+                throw new IndexOutOfBoundsException();
+            }
+            final int available = available();
+            if (available <= 0) {
+                return -1;
+            }
+            if (count == 0) {
+                return 0;
+            }
+            count = Math.min(available, count);
+            Parcel.this.mBuffer.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public void reset() {
+            Parcel.this.mBuffer.position(Math.min(mMark, mSize));
+        }
+
+        @Override
+        public long skip(long count) {
+            if (count <= 0) {
+                return 0;
+            }
+            int skipped = (int) Math.min(available(), count);
+            Parcel.this.mBuffer.position(Parcel.this.mBuffer.position() + skipped);
+            return skipped;
+        }
+    }
+
+    /**
+     * An output stream that appends to the parcel data.
+     */
+    private final class OutputStreamView extends ByteArrayOutputStream {
+        OutputStreamView() {
+            super(EMPTY_ARRAY);
+        }
+
+        @Override
+        public void reset() {
+            asOutput();
+            Parcel.this.mBuffer.position(0);
+        }
+
+        @Override
+        public int size() {
+            return Parcel.this.size();
+        }
+
+        @Override
+        public byte[] toByteArray() {
+            return Arrays.copyOf(Parcel.this.getByteArray(), Parcel.this.size());
+        }
+
+        @Override
+        public byte[] getByteArray() {
+            return Parcel.this.getByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return new String(Parcel.this.getByteArray(), 0, Parcel.this.size());
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) {
+            if ((offset < 0) || (count < 0) || ((offset + count) > buffer.length)) {
+                throw new IndexOutOfBoundsException();
+            }
+            checkOutput();
+            ensureCapacity(count);
+            Parcel.this.mBuffer.put(buffer, offset, count);
+        }
+
+        @Override
+        public void write(int b) {
+            checkOutput();
+            ensureCapacity(1);
+            Parcel.this.mBuffer.put((byte) b);
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream) throws IOException {
+            Parcel.this.writeTo(outputStream);
+        }
     }
 
     public static final URI toUri(IBinder base, IBinder binder) throws RemoteException {
-        try {
-            URI descriptor = new URI(binder.getInterfaceDescriptor());
-            URI uri = new URI(base.getUri().getScheme(), binder.getUri().getAuthority(), "/if=" + descriptor.getPath().substring(1), descriptor.getQuery(), null);
-            return uri;
-        } catch (URISyntaxException e) {
-            throw new RemoteException(e);
+        return URI.create(toUriString(base.getUri().getScheme(), binder));
+    }
+
+    /**
+     * Builds the URI of a binder, e.g. mindroid://1.42/if=examples/eliza/IEliza. The path part
+     * only depends on the interface descriptor and is cached, so no URIs have to be parsed or
+     * built for each binder that is written into a parcel.
+     */
+    private static String toUriString(String scheme, IBinder binder) throws RemoteException {
+        final String descriptor = binder.getInterfaceDescriptor();
+        String path = sBinderPaths.get(descriptor);
+        if (path == null) {
+            try {
+                URI uri = new URI(descriptor);
+                path = new URI(null, null, "/if=" + uri.getPath().substring(1), uri.getQuery(), null).toString();
+            } catch (URISyntaxException e) {
+                throw new RemoteException(e);
+            }
+            sBinderPaths.put(descriptor, path);
         }
+        return scheme + "://" + binder.getUri().getRawAuthority() + path;
     }
 
     public static final IBinder fromUri(URI uri) throws RemoteException {
@@ -1231,7 +2276,7 @@ public final class Parcel {
 
     @Override
     public String toString() {
-        int dataSize = mOutputStream.size();
+        int dataSize = size();
         int size = PARCEL_PROLOG.length() + PARCEL_DATA_PROLOG.length()
                 + PARCEL_EPILOG.length() + PARCEL_DATA_EPILOG.length()
                 + dataSize * 2;
@@ -1244,9 +2289,8 @@ public final class Parcel {
         StringBuilder builder = new StringBuilder(size);
         builder.append(PARCEL_PROLOG);
         builder.append(PARCEL_DATA_PROLOG);
-        byte[] data = mOutputStream.getByteArray();
         for (int i = 0; i < dataSize; ++i) {
-            int byteValue = data[i];
+            int byteValue = mBuffer.get(i);
             builder.append(HEX_CHARS.charAt((byteValue & 0xF0) >> 4));
             builder.append(HEX_CHARS.charAt(byteValue & 0x0F));
         }
@@ -34,20 +34,24 @@ import mindroid.content.pm.ServiceInfo;
 import mindroid.app.ContextImpl;
 import mindroid.app.Service;
 import mindroid.util.Log;
+import mindroid.util.concurrent.Executors;
 
 public class Process {
     private static final String LOG_TAG = "Process";
     private static final HashMap<Integer, String> sPids = new HashMap<>();
+    // Virtual threads cannot be members of a process thread group, so they carry their pid here.
+    private static final InheritableThreadLocal<Integer> sPid = new InheritableThreadLocal<>();
     private final String mName;
     private final ThreadGroup mThreadGroup;
-    private final HandlerThread mMainThread;
+    private final boolean mVirtualThreads;
+    private Looper mMainLooper;
     private IProcess.Stub mStub;
     private IPackageManager mPackageManager;
     private final HashMap<ComponentName, Service> mServices;
     private final Debug mDebug;
     private boolean mUncaughtException = false;
 
-    Process(String name) {
+    Process(String name, boolean virtualThreads) {
         mName = name;
         mThreadGroup = new ThreadGroup("Process {" + name + "}") {
             public void uncaughtException(Thread thread, Throwable e) {
@@ -64,7 +68,7 @@ public class Process {
             }
         };
         mServices = new HashMap<>();
-        mMainThread = new HandlerThread(mThreadGroup, "Process {" + name + "}");
+        mVirtualThreads = virtualThreads && Executors.isVirtualThreadSupported();
         mDebug = Debug.Creator.createInstance();
     }
 
@@ -75,8 +79,13 @@ public class Process {
             sPids.put(getId(), mName);
         }
 
-        mMainThread.start();
-        mStub = new ProcessImpl(mMainThread.getLooper());
+        mMainLooper = HandlerThread.startLooper(mThreadGroup, "Process {" + mName + "}", mVirtualThreads);
+        if (mVirtualThreads) {
+            // Runs before any other message of the process.
+            final int pid = getId();
+            new Handler(mMainLooper).post(() -> sPid.set(pid));
+        }
+        mStub = new ProcessImpl(mMainLooper);
 
         mDebug.start(this);
 
@@ -118,10 +127,12 @@ public class Process {
             }
         }
 
-        if (mMainThread.quit()) {
-            mMainThread.interrupt();
+        if (mMainLooper != null) {
+            mMainLooper.quit();
+            Thread thread = mMainLooper.getThread();
+            thread.interrupt();
             try {
-                mMainThread.join();
+                thread.join();
             } catch (InterruptedException e) {
             }
         }
@@ -148,12 +159,12 @@ public class Process {
         return mThreadGroup;
     }
 
-    HandlerThread getMainThread() {
-        return mMainThread;
+    Thread getMainThread() {
+        return (mMainLooper != null) ? mMainLooper.getThread() : null;
     }
 
     boolean isAlive() {
-        return mMainThread.isAlive();
+        return mMainLooper != null && mMainLooper.getThread().isAlive();
     }
 
     private class ProcessImpl extends IProcess.Stub {
@@ -222,7 +233,7 @@ public class Process {
                     }
                 }
 
-                service.attach(new ContextImpl(mMainThread, intent.getComponent()), this, intent.getComponent().getClassName());
+                service.attach(new ContextImpl(mMainLooper, intent.getComponent()), this, intent.getComponent().getClassName());
                 service.onCreate();
                 result.putBoolean("result", true);
 
@@ -392,6 +403,10 @@ public class Process {
      * Returns the identifier of this process.
      */
     public static final int myPid() {
+        Integer pid = sPid.get();
+        if (pid != null) {
+            return pid;
+        }
         ThreadGroup threadGroup = Thread.currentThread().getThreadGroup();
         if (threadGroup != null) {
             return threadGroup.hashCode();
@@ -33,6 +33,7 @@ import mindroid.util.Log;
 import mindroid.util.Pair;
 import mindroid.util.concurrent.CancellationException;
 import mindroid.util.concurrent.ExecutionException;
+import mindroid.util.concurrent.Executors;
 import mindroid.util.concurrent.Future;
 import mindroid.util.concurrent.Promise;
 import mindroid.runtime.system.Runtime;
@@ -45,40 +46,37 @@ public final class ServiceManager {
     private static final HashMap<String, IBinder> sSystemServices = new HashMap<>();
     private static final int SHUTDOWN_TIMEOUT = 10000; //ms
     private final ProcessManager mProcessManager;
-    private final HandlerThread mMainThread;
+    private Looper mMainLooper;
     private HashMap<String, ProcessRecord> mProcesses = new HashMap<>();
     private HashMap<ComponentName, ServiceRecord> mServices = new HashMap<>();
     private int mStartId = 0;
     private IPackageManager mPackageManager;
 
     static class ProcessManager {
-        private final HandlerThread mThread;
+        private Looper mLooper;
         private Handler mHandler;
         private HashMap<String, Pair> mProcesses = new HashMap<>();
 
-        public ProcessManager() {
-            mThread = new HandlerThread("ProcessManager");
-        }
-
         public void start() {
-            mThread.start();
-            mHandler = new Handler(mThread.getLooper());
+            mLooper = HandlerThread.startLooper(null, "ProcessManager", Executors.isVirtualThreadEnabled(null));
+            mHandler = new Handler(mLooper);
         }
 
         public void shutdown() {
-            if (mThread.quit()) {
+            if (mLooper != null) {
+                mLooper.quit();
                 try {
                     Log.println('D', LOG_TAG, "Shutting down ProcessManager");
-                    mThread.join();
+                    mLooper.getThread().join();
                     Log.println('D', LOG_TAG, "ProcessManager has been shut down");
                 } catch (InterruptedException e) {
                 }
             }
         }
 
-        public synchronized IProcess startProcess(String name) {
+        public synchronized IProcess startProcess(String name, boolean virtualThreads) {
             if (!mProcesses.containsKey(name)) {
-                Process process = new Process(name);
+                Process process = new Process(name, virtualThreads);
                 IProcess p = process.start();
                 mProcesses.put(name, new Pair(process, p));
                 return p;
@@ -188,14 +186,13 @@ public final class ServiceManager {
 
     public ServiceManager() {
         mProcessManager = new ProcessManager();
-        mMainThread = new HandlerThread(LOG_TAG);
     }
 
     public void start() {
         mProcessManager.start();
 
-        mMainThread.start();
-        sStub = new ServiceManagerImpl(mMainThread.getLooper());
+        mMainLooper = HandlerThread.startLooper(null, LOG_TAG, Executors.isVirtualThreadEnabled(null));
+        sStub = new ServiceManagerImpl(mMainLooper);
 
         addService(Context.SERVICE_MANAGER, sStub);
     }
@@ -220,10 +217,11 @@ public final class ServiceManager {
 
         removeService(sStub);
 
-        if (mMainThread.quit()) {
+        if (mMainLooper != null) {
+            mMainLooper.quit();
             try {
                 Log.println('D', LOG_TAG, "Shutting down ServiceManager");
-                mMainThread.join();
+                mMainLooper.getThread().join();
                 Log.println('D', LOG_TAG, "ServiceManager has been shut down");
             } catch (InterruptedException e) {
             }
@@ -381,14 +379,14 @@ public final class ServiceManager {
         }
     }
 
-    private IProcess prepareProcess(String name) {
+    private IProcess prepareProcess(String name, boolean virtualThreads) {
         IProcess process;
         synchronized (mProcesses) {
             if (mProcesses.containsKey(name)) {
                 final ProcessRecord processRecord = mProcesses.get(name);
                 process = processRecord.process;
             } else {
-                process = mProcessManager.startProcess(name);
+                process = mProcessManager.startProcess(name, virtualThreads);
                 mProcesses.put(name, new ProcessRecord(name, process));
             }
         }
@@ -432,7 +430,8 @@ public final class ServiceManager {
         final ProcessRecord processRecord;
         final ServiceRecord serviceRecord;
         if (!mServices.containsKey(service.getComponent())) {
-            process = prepareProcess(serviceInfo.processName);
+            boolean virtualThreads = serviceInfo.applicationInfo.virtualThreads || Executors.isVirtualThreadEnabled(serviceInfo.processName);
+            process = prepareProcess(serviceInfo.processName, virtualThreads);
             if (process == null) {
                 return false;
             }
@@ -129,6 +129,16 @@ public final class SystemClock {
         return System.nanoTime() / 1000000;
     }
 
+    /**
+     * Returns nanoseconds since boot, not counting time spent in deep sleep. This is the time-base
+     * of {@link #uptimeMillis} at full resolution.
+     * 
+     * @return nanoseconds of non-sleep uptime since boot.
+     */
+    public static long uptimeNanos() {
+        return System.nanoTime();
+    }
+
     /**
      * Returns milliseconds since boot, including time spent in sleep.
      * 
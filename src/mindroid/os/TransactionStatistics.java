@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2013 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.os;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Binder transaction statistics per interface descriptor and method ({@code what} code). When
+ * enabled via {@link #setEnabled}, local transactions record their queueing time (between
+ * {@link IBinder#transact} and dispatch) and execution time. Remote transactions record their
+ * round-trip time and the number of transactions that are still waiting for a reply.
+ *
+ * <p>
+ * Recording only uses {@link LongAdder}s and lock-free histograms, so the statistics can stay
+ * enabled in production.
+ *
+ * @hide
+ */
+public final class TransactionStatistics {
+    private static final String UNKNOWN_DESCRIPTOR = "<unknown>";
+    private static volatile boolean sEnabled = false;
+    private static final ConcurrentHashMap<String, InterfaceStatistics> sLocalInterfaces = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, InterfaceStatistics> sRemoteInterfaces = new ConcurrentHashMap<>();
+
+    private TransactionStatistics() {
+    }
+
+    /**
+     * Enables or disables recording of transaction statistics.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Discards all recorded statistics. Transactions that are still in flight are not counted
+     * anymore when they complete.
+     */
+    public static void reset() {
+        sLocalInterfaces.clear();
+        sRemoteInterfaces.clear();
+    }
+
+    /**
+     * Returns the statistics of a local method, creating them if necessary.
+     */
+    public static MethodStatistics getLocalMethod(String descriptor, int what) {
+        return getMethod(sLocalInterfaces, descriptor, what, false);
+    }
+
+    /**
+     * Returns the statistics of a remote method, creating them if necessary.
+     */
+    public static MethodStatistics getRemoteMethod(String descriptor, int what) {
+        return getMethod(sRemoteInterfaces, descriptor, what, true);
+    }
+
+    private static MethodStatistics getMethod(ConcurrentHashMap<String, InterfaceStatistics> interfaces, String descriptor, int what, boolean remote) {
+        if (descriptor == null) {
+            descriptor = UNKNOWN_DESCRIPTOR;
+        }
+        InterfaceStatistics interfaceStatistics = interfaces.get(descriptor);
+        if (interfaceStatistics == null) {
+            interfaceStatistics = interfaces.computeIfAbsent(descriptor, InterfaceStatistics::new);
+        }
+        MethodStatistics methodStatistics = interfaceStatistics.mMethods.get(what);
+        if (methodStatistics == null) {
+            final InterfaceStatistics i = interfaceStatistics;
+            methodStatistics = interfaceStatistics.mMethods.computeIfAbsent(what, w -> new MethodStatistics(i.mDescriptor, w, remote));
+        }
+        return methodStatistics;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of all methods, local methods first.
+     */
+    public static List<Snapshot> getSnapshot() {
+        List<Snapshot> snapshot = new ArrayList<>();
+        for (ConcurrentHashMap<String, InterfaceStatistics> interfaces : List.of(sLocalInterfaces, sRemoteInterfaces)) {
+            List<MethodStatistics> methods = new ArrayList<>();
+            for (InterfaceStatistics interfaceStatistics : interfaces.values()) {
+                methods.addAll(interfaceStatistics.mMethods.values());
+            }
+            methods.sort((m1, m2) -> {
+                int result = m1.mDescriptor.compareTo(m2.mDescriptor);
+                return (result != 0) ? result : Integer.compare(m1.mWhat, m2.mWhat);
+            });
+            for (MethodStatistics method : methods) {
+                snapshot.add(new Snapshot(method));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Prints the statistics of all methods.
+     */
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        if (!sEnabled) {
+            builder.append("Transaction statistics are disabled").append(System.lineSeparator());
+        }
+        for (Snapshot s : getSnapshot()) {
+            builder.append(s.isRemote() ? "Remote " : "Local ").append(s.getDescriptor());
+            builder.append(" #").append(s.getWhat()).append(":");
+            builder.append(" calls ").append(s.getCallCount());
+            builder.append(" errors ").append(s.getErrorCount());
+            if (s.isRemote()) {
+                builder.append(" in flight ").append(s.getInFlightCount());
+                builder.append(" round-trip time");
+                s.dump(builder, s.mExecutionTime, s.mMaxExecutionTime);
+            } else {
+                builder.append(" queueing time");
+                s.dump(builder, s.mQueueTime, s.mMaxQueueTime);
+                builder.append(", execution time");
+                s.dump(builder, s.mExecutionTime, s.mMaxExecutionTime);
+            }
+            builder.append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+
+    private static final class InterfaceStatistics {
+        final String mDescriptor;
+        final ConcurrentHashMap<Integer, MethodStatistics> mMethods = new ConcurrentHashMap<>();
+
+        InterfaceStatistics(String descriptor) {
+            mDescriptor = descriptor;
+        }
+    }
+
+    /**
+     * Statistics of one method of an interface.
+     */
+    public static final class MethodStatistics {
+        final String mDescriptor;
+        final int mWhat;
+        final boolean mRemote;
+        final LongAdder mCalls = new LongAdder();
+        final LongAdder mErrors = new LongAdder();
+        final LongAdder mInFlight = new LongAdder();
+        final Histogram mQueueTime = new Histogram();
+        final Histogram mExecutionTime = new Histogram();
+
+        MethodStatistics(String descriptor, int what, boolean remote) {
+            mDescriptor = descriptor;
+            mWhat = what;
+            mRemote = remote;
+        }
+
+        /**
+         * Records a local transaction.
+         *
+         * @param queueTime The time in nanoseconds between sending and dispatching the transaction.
+         * @param executionTime The time in nanoseconds the binder took to process the transaction.
+         * @param error Whether the transaction has failed with an exception.
+         */
+        public void record(long queueTime, long executionTime, boolean error) {
+            mCalls.increment();
+            if (error) {
+                mErrors.increment();
+            }
+            mQueueTime.add(queueTime / 1000);
+            mExecutionTime.add(executionTime / 1000);
+        }
+
+        /**
+         * Records the start of a remote transaction.
+         *
+         * @return The start time to pass to {@link #onTransactionFinished}.
+         */
+        public long onTransactionStarted() {
+            mCalls.increment();
+            mInFlight.increment();
+            return SystemClock.uptimeNanos();
+        }
+
+        /**
+         * Records the reply, the failure or, for oneway transactions, the sending of a remote
+         * transaction.
+         */
+        public void onTransactionFinished(long startTime, boolean error) {
+            mInFlight.decrement();
+            if (error) {
+                mErrors.increment();
+            }
+            mExecutionTime.add((SystemClock.uptimeNanos() - startTime) / 1000);
+        }
+    }
+
+    /**
+     * Point-in-time copy of the statistics of one method. Times are in microseconds.
+     */
+    public static final class Snapshot {
+        private final String mDescriptor;
+        private final int mWhat;
+        private final boolean mRemote;
+        private final long mCalls;
+        private final long mErrors;
+        private final long mInFlight;
+        private final long[] mQueueTime;
+        private final long mMaxQueueTime;
+        private final long[] mExecutionTime;
+        private final long mMaxExecutionTime;
+
+        Snapshot(MethodStatistics method) {
+            mDescriptor = method.mDescriptor;
+            mWhat = method.mWhat;
+            mRemote = method.mRemote;
+            mCalls = method.mCalls.sum();
+            mErrors = method.mErrors.sum();
+            mInFlight = Math.max(0, method.mInFlight.sum());
+            mQueueTime = method.mQueueTime.getBuckets();
+            mMaxQueueTime = method.mQueueTime.getMax();
+            mExecutionTime = method.mExecutionTime.getBuckets();
+            mMaxExecutionTime = method.mExecutionTime.getMax();
+        }
+
+        public String getDescriptor() {
+            return mDescriptor;
+        }
+
+        public int getWhat() {
+            return mWhat;
+        }
+
+        public boolean isRemote() {
+            return mRemote;
+        }
+
+        public long getCallCount() {
+            return mCalls;
+        }
+
+        public long getErrorCount() {
+            return mErrors;
+        }
+
+        /**
+         * Returns the number of remote transactions that are waiting for a reply.
+         */
+        public long getInFlightCount() {
+            return mInFlight;
+        }
+
+        /**
+         * Returns the upper bound of the histogram bucket that contains the given percentile of
+         * the queueing time. Remote transactions have no queueing time.
+         */
+        public long getQueueTimePercentile(double percentile) {
+            return Histogram.getPercentile(mQueueTime, mMaxQueueTime, percentile);
+        }
+
+        /**
+         * Returns the upper bound of the histogram bucket that contains the given percentile of
+         * the execution time, or of the round-trip time for remote transactions.
+         */
+        public long getExecutionTimePercentile(double percentile) {
+            return Histogram.getPercentile(mExecutionTime, mMaxExecutionTime, percentile);
+        }
+
+        public long getMaxExecutionTime() {
+            return mMaxExecutionTime;
+        }
+
+        void dump(StringBuilder builder, long[] buckets, long max) {
+            builder.append(" p50 ").append(Histogram.getPercentile(buckets, max, 50)).append("us");
+            builder.append(" p99 ").append(Histogram.getPercentile(buckets, max, 99)).append("us");
+            builder.append(" max ").append(max).append("us");
+        }
+    }
+
+    /**
+     * Lock-free histogram with power of two buckets. Bucket i counts the values in the range
+     * [2^(i-1), 2^i - 1], bucket 0 counts zeros.
+     */
+    private static final class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(Long.SIZE + 1);
+        private volatile long mMax;
+
+        void add(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+            if (value > mMax) {
+                // Racy, but close enough for a maximum.
+                mMax = value;
+            }
+        }
+
+        long[] getBuckets() {
+            long[] buckets = new long[mBuckets.length()];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            return buckets;
+        }
+
+        long getMax() {
+            return mMax;
+        }
+
+        static long getPercentile(long[] buckets, long max, double percentile) {
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            final long threshold = (long) Math.ceil(count * percentile / 100);
+            count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                count += buckets[i];
+                if (count >= threshold && count > 0) {
+                    long upperBound = (i == 0) ? 0 : (i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upperBound, max);
+                }
+            }
+            return 0;
+        }
+    }
+}
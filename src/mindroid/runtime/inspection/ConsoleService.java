@@ -21,8 +21,11 @@ import mindroid.content.Context;
 import mindroid.content.Intent;
 import mindroid.lang.Runtime;
 import mindroid.os.IBinder;
+import mindroid.os.Looper;
+import mindroid.os.LooperStatistics;
 import mindroid.os.RemoteException;
 import mindroid.os.ServiceManager;
+import mindroid.os.TransactionStatistics;
 import mindroid.util.concurrent.ExecutionException;
 import mindroid.util.concurrent.Promise;
 import java.lang.management.BufferPoolMXBean;
@@ -47,6 +50,7 @@ import java.util.stream.Collectors;
 
 public class ConsoleService extends Service {
     private static final String LOG_TAG = "Console";
+    private static final int MAX_MESSAGE_TYPES = 10;
 
     private HashMap<String, Command> mCommands = new HashMap<>();
 
@@ -143,6 +147,52 @@ public class ConsoleService extends Service {
 
         addCommand("dump uptime", "Print Java VM uptime", (args) -> getUptime());
 
+        addCommand("dump loopers", "Print dispatch statistics of all loopers", (args) -> getLooperStatistics());
+
+        addCommand("looper statistics", "Control looper statistics: on | off | reset", (args) -> {
+            if (args == null || args.length != 1) {
+                throw new IllegalArgumentException("Usage: looper statistics on | off | reset");
+            }
+            switch (args[0]) {
+            case "on":
+                LooperStatistics.setEnabled(true);
+                break;
+            case "off":
+                LooperStatistics.setEnabled(false);
+                break;
+            case "reset":
+                for (Looper looper : Looper.getLoopers()) {
+                    looper.getStatistics().reset();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Usage: looper statistics on | off | reset");
+            }
+            return null;
+        });
+
+        addCommand("dump transactions", "Print binder transaction statistics per interface and method", (args) -> TransactionStatistics.dump());
+
+        addCommand("transaction statistics", "Control binder transaction statistics: on | off | reset", (args) -> {
+            if (args == null || args.length != 1) {
+                throw new IllegalArgumentException("Usage: transaction statistics on | off | reset");
+            }
+            switch (args[0]) {
+            case "on":
+                TransactionStatistics.setEnabled(true);
+                break;
+            case "off":
+                TransactionStatistics.setEnabled(false);
+                break;
+            case "reset":
+                TransactionStatistics.reset();
+                break;
+            default:
+                throw new IllegalArgumentException("Usage: transaction statistics on | off | reset");
+            }
+            return null;
+        });
+
         addCommand("gc", "Run garbage collection", (args) -> {
             java.lang.Runtime.getRuntime().gc();
             return null;
@@ -245,6 +295,20 @@ public class ConsoleService extends Service {
         }
     }
 
+    private static String getLooperStatistics() {
+        StringBuilder builder = new StringBuilder();
+        if (!LooperStatistics.isEnabled()) {
+            builder.append("Looper statistics are disabled").append(System.lineSeparator());
+        }
+        List<Looper> loopers = Looper.getLoopers();
+        loopers.sort(Comparator.comparing((Looper looper) -> looper.getThread().getName()));
+        for (Looper looper : loopers) {
+            builder.append(looper).append(":").append(System.lineSeparator());
+            builder.append(looper.getStatistics().dump(MAX_MESSAGE_TYPES)).append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+
     private static String getUptime() {
         RuntimeMXBean runtimeBean = ManagementFactory.getRuntimeMXBean();
         Duration uptime = Duration.ofMillis(runtimeBean.getUptime());
@@ -133,6 +133,10 @@ public interface ICommandHandler extends IInterface {
         public Promise<String> execute(String[] arguments) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.execute(arguments);
+            } else if (mStub != null) {
+                Promise<String> promise = new Promise<>();
+                mStub.transact(Stub.MSG_EXECUTE, 0, arguments, null, promise, 0);
+                return promise;
             } else {
                 return mProxy.execute(arguments);
             }
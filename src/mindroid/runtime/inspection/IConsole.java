@@ -173,6 +173,14 @@ public interface IConsole extends IInterface {
         public boolean addCommand(String command, String description, ICommandHandler commandHandler) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.addCommand(command, description, ICommandHandler.Stub.asInterface(commandHandler.asBinder()));
+            } else if (mStub != null) {
+                Bundle data = new Bundle();
+                data.putString("command", command);
+                data.putString("description", description);
+                data.putBinder("binder", commandHandler.asBinder());
+                Promise<Boolean> promise = new Promise<>();
+                mStub.transact(Stub.MSG_ADD_COMMAND, 0, null, data, promise, 0);
+                return Binder.get(promise);
             } else {
                 return mProxy.addCommand(command, description, commandHandler);
             }
@@ -181,6 +189,10 @@ public interface IConsole extends IInterface {
         public boolean removeCommand(String command) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.removeCommand(command);
+            } else if (mStub != null) {
+                Promise<Boolean> promise = new Promise<>();
+                mStub.transact(Stub.MSG_REMOVE_COMMAND, 0, command, null, promise, 0);
+                return Binder.get(promise);
             } else {
                 return mProxy.removeCommand(command);
             }
@@ -189,6 +201,13 @@ public interface IConsole extends IInterface {
         public Promise<String> executeCommand(String command, String[] arguments) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.executeCommand(command, arguments);
+            } else if (mStub != null) {
+                Bundle data = new Bundle();
+                data.putString("command", command);
+                data.putStringArray("arguments", arguments);
+                Promise<String> promise = new Promise<>();
+                mStub.transact(Stub.MSG_EXECUTE_COMMAND, 0, null, data, promise, 0);
+                return promise;
             } else {
                 return mProxy.executeCommand(command, arguments);
             }
@@ -197,6 +216,10 @@ public interface IConsole extends IInterface {
         public Map<String, String> listCommands() throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.listCommands();
+            } else if (mStub != null) {
+                Promise<Map<String, String>> promise = new Promise<>();
+                mStub.transact(Stub.MSG_LIST_COMMANDS, 0, null, null, promise, 0);
+                return Binder.get(promise);
             } else {
                 return mProxy.listCommands();
             }
@@ -198,6 +198,8 @@ public interface IDiscoveryListener extends IInterface {
         public void onDiscoveryStarted() throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.onDiscoveryStarted();
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_ON_DISCOVERY_STARTED, 0, null, null, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.onDiscoveryStarted();
             }
@@ -207,6 +209,8 @@ public interface IDiscoveryListener extends IInterface {
         public void onDiscoveryStopped() throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.onDiscoveryStopped();
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_ON_DISCOVERY_STOPPED, 0, null, null, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.onDiscoveryStopped();
             }
@@ -216,6 +220,8 @@ public interface IDiscoveryListener extends IInterface {
         public void onServiceFound(ServiceInfo service) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.onServiceFound(service);
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_ON_SERVICE_FOUND, 0, service, null, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.onServiceFound(service);
             }
@@ -225,6 +231,8 @@ public interface IDiscoveryListener extends IInterface {
         public void onServiceLost(ServiceInfo service) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.onServiceLost(service);
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_ON_SERVICE_LOST, 0, service, null, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.onServiceLost(service);
             }
@@ -234,6 +242,8 @@ public interface IDiscoveryListener extends IInterface {
         public void onStartDiscoveryFailed(Throwable cause) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.onStartDiscoveryFailed(cause);
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_ON_START_DISCOVERY_FAILED, 0, cause, null, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.onStartDiscoveryFailed(cause);
             }
@@ -243,6 +253,8 @@ public interface IDiscoveryListener extends IInterface {
         public void onStopDiscoveryFailed(Throwable cause) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.onStopDiscoveryFailed(cause);
+            } else if (mStub != null) {
+                mStub.transact(Stub.MSG_ON_STOP_DISCOVERY_FAILED, 0, cause, null, null, IBinder.FLAG_ONEWAY);
             } else {
                 mProxy.onStopDiscoveryFailed(cause);
             }
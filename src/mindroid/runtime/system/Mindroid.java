@@ -21,19 +21,30 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -42,6 +53,7 @@ import mindroid.os.Binder;
 import mindroid.os.Bundle;
 import mindroid.os.IBinder;
 import mindroid.os.IInterface;
+import mindroid.os.MessageQueue;
 import mindroid.os.Parcel;
 import mindroid.os.RemoteException;
 import mindroid.runtime.sd.IDiscoveryListener;
@@ -56,9 +68,13 @@ public class Mindroid extends Plugin {
     private static String LOG_TAG = "Mindroid";
     private static final String TIMEOUT = "timeout";
     private static final long DEFAULT_TRANSACTION_TIMEOUT = 10000;
+    private static final long THROTTLE_TIMEOUT = 10000;
     private static final boolean DEBUG = false;
+    private static final int MAX_STREAM_SENDERS = 64;
     private static final ScheduledThreadPoolExecutor sExecutor;
+    private static final ThreadPoolExecutor sStreamExecutor;
 
+    private final String mScheme;
     private int mNodeId;
     private ServiceDiscoveryConfigurationReader.Configuration mConfiguration;
     private Server mServer;
@@ -84,6 +100,30 @@ public class Mindroid extends Plugin {
         sExecutor.setKeepAliveTime(10, TimeUnit.SECONDS);
         sExecutor.allowCoreThreadTimeOut(true);
         sExecutor.setRemoveOnCancelPolicy(true);
+
+        // Streams beyond MAX_STREAM_SENDERS wait for a sender thread.
+        sStreamExecutor = new ThreadPoolExecutor(MAX_STREAM_SENDERS, MAX_STREAM_SENDERS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName("StreamSenderDaemon");
+                return t;
+            }
+        });
+        sStreamExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public Mindroid() {
+        this("mindroid");
+    }
+
+    /**
+     * Creates a plugin that speaks the mindroid protocol for another URI scheme, e.g. over another
+     * transport (see {@link #createServerSocket} and {@link #createSocket}).
+     */
+    protected Mindroid(String scheme) {
+        mScheme = scheme;
     }
 
     @Override
@@ -94,12 +134,12 @@ public class Mindroid extends Plugin {
         if (mConfiguration != null) {
             ServiceDiscoveryConfigurationReader.Configuration.Node node = mConfiguration.nodes.get(mNodeId);
             if (node != null) {
-                ServiceDiscoveryConfigurationReader.Configuration.Plugin plugin = node.plugins.get("mindroid");
+                ServiceDiscoveryConfigurationReader.Configuration.Plugin plugin = node.plugins.get(mScheme);
                 if (plugin != null) {
                     ServiceDiscoveryConfigurationReader.Configuration.Server server = plugin.server;
                     if (server != null) {
                         try {
-                            mServer = new Server();
+                            mServer = new Server(createServerSocket());
                             mServer.start(server.uri);
                         } catch (IOException e) {
                             Log.println('E', LOG_TAG, e.getMessage(), e);
@@ -147,6 +187,15 @@ public class Mindroid extends Plugin {
 
     @Override
     public synchronized void detachProxy(long proxyId, long binderId) {
+        int nodeId = (int) ((binderId >> 32) & 0xFFFFFFFFL);
+        Map<Long, WeakReference<IBinder>> proxies = mProxies.get(nodeId);
+        if (proxies != null) {
+            proxies.remove(proxyId);
+            if (proxies.isEmpty()) {
+                mProxies.remove(nodeId);
+            }
+        }
+
         // TODO: Lazy connection shutdown for clients without proxies.
 //        int nodeId = (int) ((binderId >> 32) & 0xFFFFFFFFL);
 //        if (mProxies.containsKey(nodeId)) {
@@ -212,6 +261,20 @@ public class Mindroid extends Plugin {
 
     @Override
     public Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags) throws RemoteException {
+        return getClient(binder).transact(binder, what, data, flags);
+    }
+
+    @Override
+    public void transact(IBinder binder, int what, int num, Object obj, Bundle data, Promise<?> result, int flags) throws RemoteException {
+        getClient(binder).transact(binder, what, num, obj, data, result, flags);
+    }
+
+    @Override
+    public void transactBatch(IBinder binder, IBinder.Batch batch) throws RemoteException {
+        getClient(binder).transactBatch(binder, batch);
+    }
+
+    private Client getClient(IBinder binder) throws RemoteException {
         int nodeId = (int) ((binder.getId() >> 32) & 0xFFFFFFFFL);
         Client client;
         synchronized (this) {
@@ -225,7 +288,7 @@ public class Mindroid extends Plugin {
                             ServiceDiscoveryConfigurationReader.Configuration.Server server = plugin.server;
                             if (server != null) {
                                 try {
-                                    client = new Client(node.id);
+                                    client = new Client(node.id, createSocket());
                                     client.start(server.uri);
                                     if (!client.isClosed()) {
                                         mClients.put(nodeId, client);
@@ -249,7 +312,7 @@ public class Mindroid extends Plugin {
                 }
             }
         }
-        return client.transact(binder, what, data, flags);
+        return client;
     }
 
     @Override
@@ -303,6 +366,20 @@ public class Mindroid extends Plugin {
         return null;
     }
 
+    /**
+     * Creates the socket on which the server of this node accepts connections.
+     */
+    protected ServerSocket createServerSocket() throws IOException {
+        return new ServerSocket();
+    }
+
+    /**
+     * Creates the socket of a connection to another node.
+     */
+    protected Socket createSocket() throws IOException {
+        return new Socket();
+    }
+
     public void onShutdown(AbstractClient client) {
         synchronized (this) {
             mClients.remove(client.getNodeId(), client);
@@ -312,7 +389,30 @@ public class Mindroid extends Plugin {
     private static class Message {
         public static final int MESSAGE_TYPE_TRANSACTION = 1;
         public static final int MESSAGE_TYPE_EXCEPTION_TRANSACTION = 2;
+        // Oneway transactions: what is the transaction count, data holds (what, size, parcel) triples.
+        public static final int MESSAGE_TYPE_BATCH_TRANSACTION = 3;
+        // Stream frames: transactionId and what identify the stream, see StreamChannel.
+        public static final int MESSAGE_TYPE_STREAM_DATA = 4;
+        public static final int MESSAGE_TYPE_STREAM_ABORT = 5;
+        public static final int MESSAGE_TYPE_STREAM_ACK = 6;
+        public static final int MESSAGE_TYPE_STREAM_CANCEL = 7;
+        // Lightweight transactions: data holds (reply expected, num, obj, data), see Parcel#putValue.
+        // The reply is a regular transaction message that holds the encoded result.
+        public static final int MESSAGE_TYPE_LIGHTWEIGHT_TRANSACTION = 8;
+        // Capability exchange: what holds the CAPABILITY_ bits of the sender. The client sends it
+        // when it connects and the server answers with its own capabilities. Peers that do not
+        // know this message ignore it as an invalid message type.
+        public static final int MESSAGE_TYPE_HELLO = 9;
+        public static final int CAPABILITY_DICTIONARY = 1;
+        public static final int CAPABILITIES = CAPABILITY_DICTIONARY;
+        // Flags are carried in the upper half of the type field.
+        private static final int MESSAGE_TYPE_MASK = 0xFFFF;
+        // The data holds parcels in the compact format, see Parcel#setCompact.
+        public static final int MESSAGE_FLAG_COMPACT = 1 << 16;
+        // The strings of the message header use the dictionary, see MessageOutputStream.
+        public static final int MESSAGE_FLAG_DICTIONARY = 1 << 17;
         public static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024; //64MB
+        private static final byte[] EMPTY_DATA = new byte[0];
 
         private Message(int type, String uri, int transactionId, int what, byte[] data, int size) {
             this(type, uri, transactionId, what, data, size, null);
@@ -336,6 +436,46 @@ public class Mindroid extends Plugin {
             return new Message(MESSAGE_TYPE_TRANSACTION, uri, transactionId, what, data, size);
         }
 
+        /**
+         * Creates a message that writes the data of the parcel to the connection without copying it.
+         */
+        public static Message newMessage(String uri, int transactionId, int what, Parcel data) {
+            Message message = new Message(MESSAGE_TYPE_TRANSACTION, uri, transactionId, what, null, data.size());
+            message.parcel = data;
+            message.flags = data.isCompact() ? MESSAGE_FLAG_COMPACT : 0;
+            return message;
+        }
+
+        public static Message newLightweightMessage(String uri, int transactionId, int what, Parcel data) {
+            Message message = new Message(MESSAGE_TYPE_LIGHTWEIGHT_TRANSACTION, uri, transactionId, what, null, data.size());
+            message.parcel = data;
+            message.flags = data.isCompact() ? MESSAGE_FLAG_COMPACT : 0;
+            return message;
+        }
+
+        /**
+         * Creates a batch message. The frame holds the fixed size (what, size) headers of the
+         * transactions, {@code compact} is the format of the transaction parcels.
+         */
+        public static Message newBatchMessage(String uri, int transactionId, int count, Parcel frame, boolean compact) {
+            Message message = new Message(MESSAGE_TYPE_BATCH_TRANSACTION, uri, transactionId, count, null, frame.size());
+            message.parcel = frame;
+            message.flags = compact ? MESSAGE_FLAG_COMPACT : 0;
+            return message;
+        }
+
+        public static Message newHelloMessage(int capabilities) {
+            return new Message(MESSAGE_TYPE_HELLO, "", 0, capabilities, EMPTY_DATA, 0);
+        }
+
+        public static Message newStreamMessage(int type, int transactionId, int index, byte[] data, int size) {
+            return new Message(type, "", transactionId, index, data, size);
+        }
+
+        public static Message newStreamMessage(int type, int transactionId, int index) {
+            return new Message(type, "", transactionId, index, EMPTY_DATA, 0);
+        }
+
         public static Message newExceptionMessage(String uri, int transactionId, int what, byte[] data) {
             return newExceptionMessage(uri, transactionId, what, data, data.length, null);
         }
@@ -352,9 +492,11 @@ public class Mindroid extends Plugin {
             return new Message(MESSAGE_TYPE_EXCEPTION_TRANSACTION, uri, transactionId, what, data, size, cause);
         }
 
-        public static Message newMessage(DataInputStream inputStream) throws IOException {
-            int type = inputStream.readInt();
-            String uri = inputStream.readUTF();
+        public static Message newMessage(MessageInputStream inputStream) throws IOException {
+            final int typeAndFlags = inputStream.readInt();
+            final int type = typeAndFlags & MESSAGE_TYPE_MASK;
+            final boolean dictionary = (typeAndFlags & MESSAGE_FLAG_DICTIONARY) != 0;
+            String uri = inputStream.readString(dictionary);
             int transactionId = inputStream.readInt();
             int what = inputStream.readInt();
             int size = inputStream.readInt();
@@ -363,13 +505,15 @@ public class Mindroid extends Plugin {
             }
             byte[] data = new byte[size];
             inputStream.readFully(data, 0, size);
-            if (type == MESSAGE_TYPE_TRANSACTION) {
-                return new Message(type, uri, transactionId, what, data, size);
+            if (type != MESSAGE_TYPE_EXCEPTION_TRANSACTION) {
+                Message message = new Message(type, uri, transactionId, what, data, size);
+                message.flags = typeAndFlags & ~(MESSAGE_TYPE_MASK | MESSAGE_FLAG_DICTIONARY);
+                return message;
             } else {
                 Throwable exception = null;
                 int exceptionCount = inputStream.readInt();
                 if (exceptionCount > 0) {
-                    String exceptionClassName = inputStream.readUTF();
+                    String exceptionClassName = inputStream.readString(dictionary);
                     try {
                         exception = (Throwable) Class.forName(exceptionClassName).newInstance();
                     } catch (InstantiationException | IllegalAccessException | ClassNotFoundException | ClassCastException e) {
@@ -380,21 +524,26 @@ public class Mindroid extends Plugin {
             }
         }
 
-        public final void write(DataOutputStream outputStream) throws IOException {
+        public final void write(MessageOutputStream outputStream) throws IOException {
             if (size < 0 || size > MAX_MESSAGE_SIZE) {
                 throw new IOException("Invalid output message size: uri=" + uri + ", transactionId=" + transactionId + ", what=" + what + ", size=" + size);
             }
             synchronized (outputStream) {
-                outputStream.writeInt(this.type);
-                outputStream.writeUTF(this.uri);
+                final boolean dictionary = outputStream.isDictionaryEnabled();
+                outputStream.writeInt(this.type | this.flags | (dictionary ? MESSAGE_FLAG_DICTIONARY : 0));
+                outputStream.writeString(this.uri, dictionary);
                 outputStream.writeInt(this.transactionId);
                 outputStream.writeInt(this.what);
                 outputStream.writeInt(this.size);
-                outputStream.write(this.data, 0, this.size);
-                if (type != MESSAGE_TYPE_TRANSACTION) {
+                if (this.parcel != null) {
+                    this.parcel.writeTo(outputStream);
+                } else {
+                    outputStream.write(this.data, 0, this.size);
+                }
+                if (type == MESSAGE_TYPE_EXCEPTION_TRANSACTION) {
                     if (this.cause != null && !RemoteException.class.isInstance(this.cause)) {
                         outputStream.writeInt(1);
-                        outputStream.writeUTF(this.cause.getClass().getName());
+                        outputStream.writeString(this.cause.getClass().getName(), dictionary);
                     } else {
                         outputStream.writeInt(0);
                     }
@@ -403,20 +552,572 @@ public class Mindroid extends Plugin {
             }
         }
 
+        /**
+         * Returns a parcel in input mode that wraps the data of the message.
+         */
+        Parcel newParcel() {
+            return newParcel(0, size);
+        }
+
+        Parcel newParcel(int offset, int length) {
+            Parcel parcel = Parcel.obtain(data, offset, length);
+            parcel.setCompact((flags & MESSAGE_FLAG_COMPACT) != 0);
+            return parcel;
+        }
+
         int type;
+        int flags;
         String uri;
         int transactionId;
         int what;
         byte[] data;
         int size;
+        Parcel parcel;
         Throwable cause;
     }
 
+    /**
+     * The sending side of a connection. Strings of the message headers, e.g. binder URIs and
+     * exception class names, are sent in full only once per connection. Each one is assigned the
+     * next index of a per-connection dictionary and later messages only carry that index. Both
+     * ends start with an empty dictionary and entries are defined in-band, so setting up a
+     * connection takes no extra round trip.
+     *
+     * <p>
+     * The strings are written as a two byte reference: a positive reference is the index of a
+     * known string plus one, a negative reference defines the entry at index -(reference + 1) and
+     * is followed by the string, zero is followed by a string that is not added to the dictionary
+     * because the dictionary is full.
+     *
+     * <p>
+     * The dictionary is only used once the peer has announced that it supports it, see
+     * {@link Message#MESSAGE_TYPE_HELLO}. Until then, and with older peers, the strings are
+     * written with {@link #writeUTF}. Each message flags which encoding its header uses.
+     */
+    private static class MessageOutputStream extends DataOutputStream {
+        static final int MAX_DICTIONARY_SIZE = 4096;
+        private final HashMap<String, Integer> mDictionary = new HashMap<>();
+        private volatile boolean mIsDictionaryEnabled = false;
+
+        MessageOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        boolean isDictionaryEnabled() {
+            return mIsDictionaryEnabled;
+        }
+
+        /**
+         * Sets the capabilities that the peer has announced with its hello message.
+         */
+        void setPeerCapabilities(int capabilities) {
+            mIsDictionaryEnabled = (capabilities & Message.CAPABILITY_DICTIONARY) != 0;
+        }
+
+        /**
+         * Writes a string of a message header. The caller must hold the lock of the stream for
+         * the whole message, so that the peer sees the definition of an entry before its first
+         * reference.
+         */
+        void writeString(String string, boolean dictionary) throws IOException {
+            if (!dictionary) {
+                writeUTF(string);
+                return;
+            }
+            Integer index = mDictionary.get(string);
+            if (index != null) {
+                writeShort(index + 1);
+            } else if (mDictionary.size() < MAX_DICTIONARY_SIZE) {
+                index = mDictionary.size();
+                mDictionary.put(string, index);
+                writeShort(-(index + 1));
+                writeUTF(string);
+            } else {
+                writeShort(0);
+                writeUTF(string);
+            }
+        }
+    }
+
+    /**
+     * The receiving side of a connection, see {@link MessageOutputStream}.
+     */
+    private static class MessageInputStream extends DataInputStream {
+        private final ArrayList<String> mDictionary = new ArrayList<>();
+
+        MessageInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        String readString(boolean dictionary) throws IOException {
+            if (!dictionary) {
+                return readUTF();
+            }
+            final int reference = readShort();
+            if (reference > 0) {
+                if (reference > mDictionary.size()) {
+                    throw new IOException("Invalid string reference: " + reference);
+                }
+                return mDictionary.get(reference - 1);
+            } else if (reference < 0) {
+                final int index = -(reference + 1);
+                if (index != mDictionary.size() || index >= MessageOutputStream.MAX_DICTIONARY_SIZE) {
+                    throw new IOException("Invalid string definition: " + index);
+                }
+                String string = readUTF();
+                mDictionary.add(string);
+                return string;
+            } else {
+                return readUTF();
+            }
+        }
+    }
+
+    private static StreamChannel getStreamChannel(Bundle context, OutputStream outputStream) {
+        synchronized (context) {
+            StreamChannel streams = (StreamChannel) context.getObject("streams");
+            if (streams == null) {
+                MessageOutputStream dataOutputStream = new MessageOutputStream(outputStream);
+                context.putObject("dataOutputStream", dataOutputStream);
+                streams = new StreamChannel(dataOutputStream);
+                context.putObject("streams", streams);
+            }
+            return streams;
+        }
+    }
+
+    /**
+     * Multiplexes the streams that are attached to parcels (see {@link Parcel#putStream}) over a
+     * connection. Each stream is sent in chunks of at most CHUNK_SIZE bytes after the message of
+     * its transaction, interleaved with all other messages of the connection. An empty chunk ends
+     * the stream. The receiver acknowledges the chunks that have been consumed and the sender never
+     * has more than WINDOW_SIZE bytes of a stream in flight. So neither side buffers more than a
+     * few chunks per stream, regardless of the stream size.
+     * <p>
+     * The streams of a received parcel can be opened while its transaction is in progress, see
+     * {@link #begin} and {@link #end}. Streams that nobody has opened by then are cancelled and
+     * stream data for transactions that are no longer in progress is refused.
+     */
+    private static class StreamChannel {
+        private static final int CHUNK_SIZE = 64 * 1024;
+        private static final int WINDOW_SIZE = 4 * CHUNK_SIZE;
+        private static final long STALL_TIMEOUT = 60000;
+        private final MessageOutputStream mOutputStream;
+        private final Map<Long, IncomingStream> mIncomingStreams = new ConcurrentHashMap<>();
+        private final Map<Long, OutgoingStream> mOutgoingStreams = new ConcurrentHashMap<>();
+        // The deadlines of the transactions in progress in order of arrival, 0 means no deadline.
+        // Guards the creation and the opening of incoming streams.
+        private final LinkedHashMap<Integer, Long> mTransactions = new LinkedHashMap<>();
+        private volatile boolean mIsClosed = false;
+
+        StreamChannel(MessageOutputStream outputStream) {
+            mOutputStream = outputStream;
+        }
+
+        MessageOutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        /**
+         * Starts sending the streams of a parcel whose message has already been written.
+         */
+        void send(int transactionId, Parcel parcel) {
+            for (int i = 0; i < parcel.getStreamCount(); i++) {
+                OutgoingStream stream = new OutgoingStream(transactionId, i, parcel.getStream(i));
+                mOutgoingStreams.put(stream.mKey, stream);
+                if (mIsClosed) {
+                    stream.cancel();
+                }
+                try {
+                    sStreamExecutor.execute(stream);
+                } catch (RejectedExecutionException e) {
+                    mOutgoingStreams.remove(stream.mKey, stream);
+                    closeQuietly(stream.mStream);
+                    try {
+                        Message.newStreamMessage(Message.MESSAGE_TYPE_STREAM_ABORT, transactionId, i).write(mOutputStream);
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Starts a transaction whose parcel has been received. Its streams can be opened until
+         * {@link #end} is called or the timeout in milliseconds has expired (0 for no timeout).
+         */
+        void begin(int transactionId, long timeout) {
+            List<Integer> expiredTransactions = null;
+            synchronized (mTransactions) {
+                final long now = System.currentTimeMillis();
+                Iterator<Map.Entry<Integer, Long>> itr = mTransactions.entrySet().iterator();
+                while (itr.hasNext()) {
+                    Map.Entry<Integer, Long> entry = itr.next();
+                    if (entry.getValue() == 0 || entry.getValue() > now) {
+                        break;
+                    }
+                    itr.remove();
+                    if (expiredTransactions == null) {
+                        expiredTransactions = new ArrayList<>();
+                    }
+                    expiredTransactions.add(entry.getKey());
+                }
+                mTransactions.put(transactionId, (timeout > 0) ? now + timeout : 0);
+            }
+            if (expiredTransactions != null) {
+                for (int expiredTransactionId : expiredTransactions) {
+                    end(expiredTransactionId);
+                }
+            }
+        }
+
+        /**
+         * Ends a transaction and cancels the streams of its parcel that have not been opened.
+         */
+        void end(int transactionId) {
+            List<IncomingStream> streams = null;
+            synchronized (mTransactions) {
+                mTransactions.remove(transactionId);
+                for (IncomingStream stream : mIncomingStreams.values()) {
+                    if ((int) (stream.mKey >>> 32) == transactionId && !stream.mIsOpened) {
+                        if (streams == null) {
+                            streams = new ArrayList<>();
+                        }
+                        streams.add(stream);
+                    }
+                }
+            }
+            if (streams != null) {
+                for (IncomingStream stream : streams) {
+                    stream.close();
+                }
+            }
+        }
+
+        /**
+         * Returns the stream with the given index of a parcel that has been received.
+         */
+        InputStream getInputStream(int transactionId, int index) {
+            final long key = toKey(transactionId, index);
+            IncomingStream stream;
+            synchronized (mTransactions) {
+                stream = mIncomingStreams.get(key);
+                if (stream == null) {
+                    stream = new IncomingStream(key);
+                    if (mTransactions.containsKey(transactionId)) {
+                        mIncomingStreams.put(key, stream);
+                    } else {
+                        stream.finish(new IOException("Stream has been released"));
+                    }
+                }
+                stream.mIsOpened = true;
+            }
+            return stream;
+        }
+
+        /**
+         * Handles stream messages.
+         *
+         * @return false if the message does not belong to a stream.
+         */
+        boolean onMessage(Message message) throws IOException {
+            final long key = toKey(message.transactionId, message.what);
+            switch (message.type) {
+            case Message.MESSAGE_TYPE_STREAM_DATA: {
+                IncomingStream stream;
+                synchronized (mTransactions) {
+                    stream = mIncomingStreams.get(key);
+                    if (stream == null && mTransactions.containsKey(message.transactionId)) {
+                        stream = new IncomingStream(key);
+                        mIncomingStreams.put(key, stream);
+                    }
+                }
+                if (stream == null) {
+                    if (message.size > 0) {
+                        Message.newStreamMessage(Message.MESSAGE_TYPE_STREAM_CANCEL, message.transactionId, message.what).write(mOutputStream);
+                    }
+                    return true;
+                }
+                if (message.size > 0) {
+                    stream.offer(message.data, message.size);
+                } else {
+                    stream.finish(null);
+                }
+                return true;
+            }
+            case Message.MESSAGE_TYPE_STREAM_ABORT: {
+                IncomingStream stream = mIncomingStreams.get(key);
+                if (stream != null) {
+                    stream.finish(new IOException("Stream has been aborted by the sender"));
+                }
+                return true;
+            }
+            case Message.MESSAGE_TYPE_STREAM_ACK: {
+                OutgoingStream stream = mOutgoingStreams.get(key);
+                if (stream != null) {
+                    if (message.size != Integer.BYTES) {
+                        throw new IOException("Invalid stream acknowledgement: size=" + message.size);
+                    }
+                    stream.release(ByteBuffer.wrap(message.data).getInt());
+                }
+                return true;
+            }
+            case Message.MESSAGE_TYPE_STREAM_CANCEL: {
+                OutgoingStream stream = mOutgoingStreams.get(key);
+                if (stream != null) {
+                    stream.cancel();
+                }
+                return true;
+            }
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * Fails all incoming streams and stops sending all outgoing streams.
+         */
+        void close() {
+            mIsClosed = true;
+            synchronized (mTransactions) {
+                mTransactions.clear();
+            }
+            for (IncomingStream stream : mIncomingStreams.values()) {
+                stream.finish(new IOException("Connection has been closed"));
+            }
+            mIncomingStreams.clear();
+            for (OutgoingStream stream : mOutgoingStreams.values()) {
+                stream.cancel();
+            }
+        }
+
+        private static long toKey(int transactionId, int index) {
+            return ((long) transactionId << 32) | (index & 0xFFFFFFFFL);
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+        private class IncomingStream extends InputStream {
+            private final long mKey;
+            private final ArrayDeque<byte[]> mChunks = new ArrayDeque<>();
+            private byte[] mChunk;
+            private int mChunkSize;
+            private int mPosition;
+            private int mAvailable = 0;
+            private boolean mIsFinished = false;
+            private IOException mError;
+            private boolean mIsClosed = false;
+            // Guarded by the transactions of the stream channel.
+            private boolean mIsOpened = false;
+            private byte[] mSingleByte;
+
+            IncomingStream(long key) {
+                mKey = key;
+            }
+
+            synchronized void offer(byte[] chunk, int size) throws IOException {
+                if (mIsFinished) {
+                    throw new IOException("Invalid stream data after end of stream");
+                }
+                if (!mIsClosed) {
+                    // The chunk arrays are always exactly sized, see Message.newMessage.
+                    mChunks.offer(chunk);
+                    mAvailable += size;
+                    notifyAll();
+                }
+            }
+
+            void finish(IOException error) {
+                synchronized (this) {
+                    if (mIsFinished) {
+                        return;
+                    }
+                    mIsFinished = true;
+                    mError = error;
+                    notifyAll();
+                    if (!mIsClosed) {
+                        return;
+                    }
+                }
+                mIncomingStreams.remove(mKey, this);
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (mSingleByte == null) {
+                    mSingleByte = new byte[1];
+                }
+                return (read(mSingleByte, 0, 1) > 0) ? (mSingleByte[0] & 0xFF) : -1;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                Objects.checkFromIndexSize(offset, length, buffer.length);
+                if (length == 0) {
+                    return 0;
+                }
+                final int size;
+                int credit = 0;
+                synchronized (this) {
+                    while (mChunk == null) {
+                        if (mIsClosed) {
+                            throw new IOException("Stream has been closed");
+                        }
+                        mChunk = mChunks.poll();
+                        if (mChunk != null) {
+                            mChunkSize = mChunk.length;
+                            mPosition = 0;
+                        } else if (mIsFinished) {
+                            mIncomingStreams.remove(mKey, this);
+                            if (mError != null) {
+                                throw mError;
+                            }
+                            return -1;
+                        } else {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException();
+                            }
+                        }
+                    }
+                    size = Math.min(length, mChunkSize - mPosition);
+                    System.arraycopy(mChunk, mPosition, buffer, offset, size);
+                    mPosition += size;
+                    mAvailable -= size;
+                    if (mPosition == mChunkSize) {
+                        mChunk = null;
+                        if (!mIsFinished) {
+                            credit = mChunkSize;
+                        }
+                    }
+                }
+                if (credit > 0) {
+                    byte[] data = ByteBuffer.allocate(Integer.BYTES).putInt(credit).array();
+                    try {
+                        Message.newStreamMessage(Message.MESSAGE_TYPE_STREAM_ACK, (int) (mKey >>> 32), (int) mKey, data, data.length).write(mOutputStream);
+                    } catch (IOException ignore) {
+                        // The connection is broken and will fail the stream.
+                    }
+                }
+                return size;
+            }
+
+            @Override
+            public synchronized int available() {
+                return mAvailable;
+            }
+
+            @Override
+            public void close() {
+                synchronized (this) {
+                    if (mIsClosed) {
+                        return;
+                    }
+                    mIsClosed = true;
+                    mChunks.clear();
+                    mChunk = null;
+                    mAvailable = 0;
+                    notifyAll();
+                    if (mIsFinished) {
+                        mIncomingStreams.remove(mKey, this);
+                        return;
+                    }
+                }
+                // The stream is removed when the sender acknowledges the cancellation with an abort.
+                try {
+                    Message.newStreamMessage(Message.MESSAGE_TYPE_STREAM_CANCEL, (int) (mKey >>> 32), (int) mKey).write(mOutputStream);
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        private class OutgoingStream implements Runnable {
+            private final long mKey;
+            private final int mTransactionId;
+            private final int mIndex;
+            private final InputStream mStream;
+            private int mCredit = WINDOW_SIZE;
+            private boolean mIsCancelled = false;
+
+            OutgoingStream(int transactionId, int index, InputStream stream) {
+                mKey = toKey(transactionId, index);
+                mTransactionId = transactionId;
+                mIndex = index;
+                mStream = stream;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    while (true) {
+                        int size = mStream.read(buffer, 0, CHUNK_SIZE);
+                        if (size < 0) {
+                            Message.newStreamMessage(Message.MESSAGE_TYPE_STREAM_DATA, mTransactionId, mIndex).write(mOutputStream);
+                            break;
+                        } else if (size > 0) {
+                            if (!acquire(size)) {
+                                Message.newStreamMessage(Message.MESSAGE_TYPE_STREAM_ABORT, mTransactionId, mIndex).write(mOutputStream);
+                                break;
+                            }
+                            Message.newStreamMessage(Message.MESSAGE_TYPE_STREAM_DATA, mTransactionId, mIndex, buffer, size).write(mOutputStream);
+                        }
+                    }
+                } catch (IOException e) {
+                    try {
+                        Message.newStreamMessage(Message.MESSAGE_TYPE_STREAM_ABORT, mTransactionId, mIndex).write(mOutputStream);
+                    } catch (IOException ignore) {
+                    }
+                } finally {
+                    mOutgoingStreams.remove(mKey, this);
+                    closeQuietly(mStream);
+                }
+            }
+
+            private synchronized boolean acquire(int size) {
+                final long deadline = System.currentTimeMillis() + STALL_TIMEOUT;
+                while (mCredit < size && !mIsCancelled) {
+                    long timeout = deadline - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        Log.w(LOG_TAG, "Aborting stalled stream of transaction " + mTransactionId);
+                        return false;
+                    }
+                    try {
+                        wait(timeout);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+                if (mIsCancelled) {
+                    return false;
+                }
+                mCredit -= size;
+                return true;
+            }
+
+            synchronized void release(int credit) {
+                mCredit += credit;
+                notifyAll();
+            }
+
+            synchronized void cancel() {
+                mIsCancelled = true;
+                notifyAll();
+            }
+        }
+    }
+
     private class Server extends AbstractServer {
         private final byte[] BINDER_TRANSACTION_FAILURE = "Binder transaction failure".getBytes(StandardCharsets.UTF_8);
 
-        public Server() throws IOException {
-            super();
+        public Server(ServerSocket serverSocket) throws IOException {
+            super(serverSocket);
         }
 
         @Override
@@ -427,20 +1128,21 @@ public class Mindroid extends Plugin {
         @Override
         public void onDisconnected(Connection connection, Throwable cause) {
             Log.d(LOG_TAG, "Client disconnected from " + connection.getRemoteSocketAddress());
+            StreamChannel streams = (StreamChannel) connection.getContext().getObject("streams");
+            if (streams != null) {
+                streams.close();
+            }
         }
 
         @Override
         public void onTransact(Bundle context, InputStream inputStream, OutputStream outputStream) throws IOException {
             if (!context.containsKey("dataInputStream")) {
-                DataInputStream dataInputStream = new DataInputStream(inputStream);
+                MessageInputStream dataInputStream = new MessageInputStream(inputStream);
                 context.putObject("dataInputStream", dataInputStream);
             }
-            if (!context.containsKey("datOutputStream")) {
-                DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-                context.putObject("dataOutputStream", dataOutputStream);
-            }
-            DataInputStream dataInputStream = (DataInputStream) context.getObject("dataInputStream");
-            DataOutputStream dataOutputStream = (DataOutputStream) context.getObject("dataOutputStream");
+            MessageInputStream dataInputStream = (MessageInputStream) context.getObject("dataInputStream");
+            final StreamChannel streams = getStreamChannel(context, outputStream);
+            MessageOutputStream dataOutputStream = streams.getOutputStream();
 
             try {
                 Message message = Message.newMessage(dataInputStream);
@@ -449,12 +1151,24 @@ public class Mindroid extends Plugin {
                     try {
                         IBinder binder = mRuntime.getBinder(URI.create(message.uri));
                         if (binder != null) {
-                            Promise<Parcel> result = binder.transact(message.what, Parcel.obtain(message.data), 0);
+                            Parcel data = message.newParcel();
+                            data.setStreamResolver(index -> streams.getInputStream(message.transactionId, index));
+                            streams.begin(message.transactionId, 0);
+                            Promise<Parcel> result = null;
+                            try {
+                                result = binder.transact(message.what, data, 0);
+                            } finally {
+                                if (result == null) {
+                                    streams.end(message.transactionId);
+                                }
+                            }
+                            throttle(binder);
                             if (result != null) {
                                 result.then((value, exception) -> {
                                     try {
                                         if (exception == null) {
-                                            Message.newMessage(message.uri, message.transactionId, message.what, value.getByteArray(), value.size()).write(dataOutputStream);
+                                            Message.newMessage(message.uri, message.transactionId, message.what, value).write(dataOutputStream);
+                                            streams.send(message.transactionId, value);
                                         } else {
                                             final Throwable cause;
                                             if (exception instanceof CompletionException && exception.getCause() != null) {
@@ -469,6 +1183,8 @@ public class Mindroid extends Plugin {
                                             ((Closeable) context.getObject("connection")).close();
                                         } catch (IOException ignore) {
                                         }
+                                    } finally {
+                                        streams.end(message.transactionId);
                                     }
                                 });
                             }
@@ -482,7 +1198,35 @@ public class Mindroid extends Plugin {
                         Log.e(LOG_TAG, e.getMessage(), e);
                         Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, e).write(dataOutputStream);
                     }
-                } else {
+                } else if (message.type == Message.MESSAGE_TYPE_LIGHTWEIGHT_TRANSACTION) {
+                    try {
+                        IBinder binder = mRuntime.getBinder(URI.create(message.uri));
+                        if (binder != null) {
+                            onLightweightTransaction(context, binder, message, dataOutputStream);
+                            throttle(binder);
+                        } else {
+                            Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, new RemoteException("Invalid service URI")).write(dataOutputStream);
+                        }
+                    } catch (IllegalArgumentException | RemoteException e) {
+                        Log.e(LOG_TAG, e.getMessage(), e);
+                        Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, e).write(dataOutputStream);
+                    }
+                } else if (message.type == Message.MESSAGE_TYPE_BATCH_TRANSACTION) {
+                    try {
+                        IBinder binder = mRuntime.getBinder(URI.create(message.uri));
+                        if (binder != null) {
+                            binder.transactBatch(newBatch(message));
+                            throttle(binder);
+                        } else {
+                            Log.e(LOG_TAG, "Invalid service URI: " + message.uri);
+                        }
+                    } catch (IllegalArgumentException | RemoteException e) {
+                        Log.e(LOG_TAG, e.getMessage(), e);
+                    }
+                } else if (message.type == Message.MESSAGE_TYPE_HELLO) {
+                    Message.newHelloMessage(Message.CAPABILITIES).write(dataOutputStream);
+                    dataOutputStream.setPeerCapabilities(message.what);
+                } else if (!streams.onMessage(message)) {
                     Log.e(LOG_TAG, "Invalid message type: " + message.type);
                 }
             } catch (IOException e) {
@@ -492,6 +1236,104 @@ public class Mindroid extends Plugin {
                 throw e;
             }
         }
+
+        /**
+         * Stops reading from the connection while the message queue of a local binder is above its
+         * high watermark, see {@link MessageQueue#setWatermarks}. The socket buffers then fill up
+         * and throttle the client instead of the message queue growing without bounds.
+         */
+        private void throttle(IBinder binder) {
+            if (!(binder instanceof Binder)) {
+                return;
+            }
+            MessageQueue messageQueue = ((Binder) binder).getMessageQueue();
+            if (messageQueue == null) {
+                return;
+            }
+            try {
+                if (!messageQueue.awaitLowWatermark(THROTTLE_TIMEOUT)) {
+                    Log.w(LOG_TAG, "Resuming to read from connection although " + binder.getUri() + " is still overloaded");
+                }
+            } catch (InterruptedException e) {
+                // The connection is closing.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void onLightweightTransaction(Bundle context, IBinder binder, Message message, MessageOutputStream dataOutputStream) throws RemoteException {
+            final boolean twoway;
+            final int num;
+            final Object obj;
+            final Bundle data;
+            Parcel parcel = message.newParcel();
+            try {
+                twoway = parcel.getBoolean();
+                num = parcel.getInt();
+                obj = parcel.getValue();
+                data = parcel.getBundle();
+            } finally {
+                parcel.recycle();
+            }
+            if (!twoway) {
+                binder.transact(message.what, num, obj, data, null, Binder.FLAG_ONEWAY);
+                return;
+            }
+
+            final Promise<Object> result = new Promise<>(Executors.SYNCHRONOUS_EXECUTOR);
+            result.then((value, exception) -> {
+                Parcel reply = Parcel.obtainCompact();
+                try {
+                    Throwable cause = null;
+                    if (exception == null) {
+                        try {
+                            reply.putValue(value);
+                        } catch (RemoteException e) {
+                            cause = e;
+                        }
+                    } else if (exception instanceof CompletionException && exception.getCause() != null) {
+                        cause = exception.getCause();
+                    } else {
+                        cause = exception;
+                    }
+                    if (cause == null) {
+                        Message.newMessage(message.uri, message.transactionId, message.what, reply).write(dataOutputStream);
+                    } else {
+                        Message.newExceptionMessage(message.uri, message.transactionId, message.what, BINDER_TRANSACTION_FAILURE, cause).write(dataOutputStream);
+                    }
+                } catch (IOException e) {
+                    try {
+                        ((Closeable) context.getObject("connection")).close();
+                    } catch (IOException ignore) {
+                    }
+                } finally {
+                    reply.recycle();
+                }
+            });
+            binder.transact(message.what, num, obj, data, result, 0);
+        }
+
+        private IBinder.Batch newBatch(Message message) throws IOException {
+            final int count = message.what;
+            if (count < 0) {
+                throw new IOException("Invalid batch size: " + count);
+            }
+            IBinder.Batch batch = new IBinder.Batch(count);
+            ByteBuffer buffer = ByteBuffer.wrap(message.data, 0, message.size);
+            try {
+                for (int i = 0; i < count; i++) {
+                    int what = buffer.getInt();
+                    int size = buffer.getInt();
+                    if (size < 0 || size > buffer.remaining()) {
+                        throw new IOException("Invalid batch transaction size: uri=" + message.uri + ", what=" + what + ", size=" + size);
+                    }
+                    batch.add(what, message.newParcel(buffer.position(), size));
+                    buffer.position(buffer.position() + size);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Invalid batch transaction: uri=" + message.uri, e);
+            }
+            return batch;
+        }
     }
 
     private class Client extends AbstractClient {
@@ -500,8 +1342,8 @@ public class Mindroid extends Plugin {
         private final AtomicBoolean mIsClosed = new AtomicBoolean(false);
         private List<IBinder.Supervisor> mSupervisors = new ArrayList<>();
 
-        public Client(int nodeId) throws IOException {
-            super(nodeId);
+        public Client(int nodeId, Socket socket) throws IOException {
+            super(nodeId, socket);
         }
 
         public void shutdown(Throwable cause) {
@@ -520,12 +1362,8 @@ public class Mindroid extends Plugin {
             final int transactionId = mTransactionIdGenerator.getAndIncrement();
             Promise<Parcel> result;
             try {
-                Bundle context = getContext();
-                if (!context.containsKey("datOutputStream")) {
-                    DataOutputStream dataOutputStream = new DataOutputStream(getOutputStream());
-                    context.putObject("dataOutputStream", dataOutputStream);
-                }
-                DataOutputStream dataOutputStream = (DataOutputStream) context.getObject("dataOutputStream");
+                StreamChannel streams = getStreamChannel(getContext(), getOutputStream());
+                MessageOutputStream dataOutputStream = streams.getOutputStream();
 
                 if ((flags & Binder.FLAG_ONEWAY) != 0) {
                     result = null;
@@ -538,7 +1376,8 @@ public class Mindroid extends Plugin {
                     mTransactions.put(transactionId, promise);
                 }
 
-                Message.newMessage(binder.getUri().toString(), transactionId, what, data.getByteArray(), data.size()).write(dataOutputStream);
+                Message.newMessage(binder.getUri().toString(), transactionId, what, data).write(dataOutputStream);
+                streams.send(transactionId, data);
             } catch (IOException e) {
                 mTransactions.remove(transactionId);
                 shutdown(e);
@@ -547,6 +1386,86 @@ public class Mindroid extends Plugin {
             return result;
         }
 
+        public void transact(IBinder binder, int what, int num, Object obj, Bundle data, Promise<?> result, int flags) throws RemoteException {
+            final int transactionId = mTransactionIdGenerator.getAndIncrement();
+            // The arguments are encoded by the plugin, so they always use the compact format.
+            Parcel parcel = Parcel.obtainCompact();
+            try {
+                parcel.putBoolean(result != null);
+                parcel.putInt(num);
+                parcel.putValue(obj);
+                parcel.putBundle(data);
+
+                MessageOutputStream dataOutputStream = getStreamChannel(getContext(), getOutputStream()).getOutputStream();
+                if (result != null) {
+                    // The generated proxy types the promise with the return type of the method and
+                    // the stub encodes a value of that type, see Parcel#putValue.
+                    @SuppressWarnings("unchecked") final Promise<Object> target = (Promise<Object>) result;
+                    final Promise<Parcel> promise = new Promise<>(Executors.SYNCHRONOUS_EXECUTOR);
+                    promise.orTimeout((data != null) ? data.getLong(TIMEOUT, DEFAULT_TRANSACTION_TIMEOUT) : DEFAULT_TRANSACTION_TIMEOUT)
+                            .then((value, exception) -> {
+                                mTransactions.remove(transactionId);
+                                if (exception == null) {
+                                    try {
+                                        target.complete(value.getValue());
+                                    } catch (RemoteException e) {
+                                        target.completeWith(e);
+                                    } finally {
+                                        value.recycle();
+                                    }
+                                } else if (exception instanceof CompletionException && exception.getCause() != null) {
+                                    target.completeWith(exception.getCause());
+                                } else {
+                                    target.completeWith(exception);
+                                }
+                            });
+                    mTransactions.put(transactionId, promise);
+                }
+
+                Message.newLightweightMessage(binder.getUri().toString(), transactionId, what, parcel).write(dataOutputStream);
+            } catch (IOException e) {
+                mTransactions.remove(transactionId);
+                shutdown(e);
+                throw new RemoteException("Binder transaction failure", e);
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        public void transactBatch(IBinder binder, IBinder.Batch batch) throws RemoteException {
+            // The format is flagged once per batch message.
+            final boolean compact = batch.getData(0).isCompact();
+            for (int i = 1; i < batch.size(); i++) {
+                if (batch.getData(i).isCompact() != compact) {
+                    for (int j = 0; j < batch.size(); j++) {
+                        transact(binder, batch.getWhat(j), batch.getData(j), Binder.FLAG_ONEWAY);
+                    }
+                    return;
+                }
+            }
+
+            final int transactionId = mTransactionIdGenerator.getAndIncrement();
+            try {
+                MessageOutputStream dataOutputStream = getStreamChannel(getContext(), getOutputStream()).getOutputStream();
+
+                Parcel frame = Parcel.obtain();
+                try {
+                    for (int i = 0; i < batch.size(); i++) {
+                        Parcel data = batch.getData(i);
+                        frame.putInt(batch.getWhat(i));
+                        frame.putInt(data.size());
+                        frame.appendFrom(data, 0, data.size());
+                    }
+                    Message.newBatchMessage(binder.getUri().toString(), transactionId, batch.size(), frame, compact).write(dataOutputStream);
+                } finally {
+                    frame.recycle();
+                }
+            } catch (IOException e) {
+                shutdown(e);
+                throw new RemoteException("Binder transaction failure", e);
+            }
+        }
+
         public synchronized void link(IBinder.Supervisor supervisor) {
             if (mIsClosed.get()) {
                 supervisor.onExit(0);
@@ -562,6 +1481,12 @@ public class Mindroid extends Plugin {
         @Override
         public void onConnected() {
             Log.d(LOG_TAG, "Connected to " + getRemoteSocketAddress());
+            try {
+                Message.newHelloMessage(Message.CAPABILITIES).write(getStreamChannel(getContext(), getOutputStream()).getOutputStream());
+            } catch (IOException e) {
+                // The next transaction fails and shuts down the client.
+                Log.w(LOG_TAG, "Failed to send hello message to " + getRemoteSocketAddress(), e);
+            }
         }
 
         @Override
@@ -570,24 +1495,43 @@ public class Mindroid extends Plugin {
             Log.d(LOG_TAG, "Disconnected from " + getRemoteSocketAddress());
             mSupervisors.forEach(supervisor -> supervisor.onExit(0));
             mSupervisors.clear();
+            try {
+                StreamChannel streams = (StreamChannel) getContext().getObject("streams");
+                if (streams != null) {
+                    streams.close();
+                }
+            } catch (IOException ignore) {
+            }
         }
 
         @Override
         public void onTransact(Bundle context, InputStream inputStream, OutputStream outputStream) throws IOException {
             if (!context.containsKey("dataInputStream")) {
-                DataInputStream dataInputStream = new DataInputStream(inputStream);
+                MessageInputStream dataInputStream = new MessageInputStream(inputStream);
                 context.putObject("dataInputStream", dataInputStream);
             }
-            DataInputStream dataInputStream = (DataInputStream) context.getObject("dataInputStream");
+            MessageInputStream dataInputStream = (MessageInputStream) context.getObject("dataInputStream");
+            final StreamChannel streams = getStreamChannel(context, outputStream);
 
             try {
                 Message message = Message.newMessage(dataInputStream);
+                if (message.type == Message.MESSAGE_TYPE_HELLO) {
+                    streams.getOutputStream().setPeerCapabilities(message.what);
+                    return;
+                }
+                if (streams.onMessage(message)) {
+                    return;
+                }
 
                 final Promise<Parcel> promise = mTransactions.get(message.transactionId);
                 if (promise != null) {
                     mTransactions.remove(message.transactionId);
                     if (message.type == Message.MESSAGE_TYPE_TRANSACTION) {
-                        promise.complete(Parcel.obtain(message.data).asInput());
+                        Parcel reply = message.newParcel();
+                        reply.setStreamResolver(index -> streams.getInputStream(message.transactionId, index));
+                        // The caller reads the streams after the transaction, so they expire like stalled streams.
+                        streams.begin(message.transactionId, StreamChannel.STALL_TIMEOUT);
+                        promise.complete(reply.asInput());
                     } else {
                         promise.completeWith(message.cause);
                     }
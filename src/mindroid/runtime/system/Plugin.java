@@ -57,6 +57,25 @@ public abstract class Plugin {
 
     public abstract Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags) throws RemoteException;
 
+    /**
+     * Sends a batch of oneway transactions. Plugins that support batches on the wire override
+     * this, the default implementation sends the transactions one by one.
+     */
+    public void transactBatch(IBinder binder, IBinder.Batch batch) throws RemoteException {
+        for (int i = 0; i < batch.size(); i++) {
+            transact(binder, batch.getWhat(i), batch.getData(i), Binder.FLAG_ONEWAY);
+        }
+    }
+
+    /**
+     * Sends a lightweight transaction (see {@link IBinder#transact(int, int, Object, Bundle, Promise, int)}).
+     * Plugins that are able to marshal the arguments override this, the default implementation
+     * fails since the objects of lightweight transactions cannot leave the process as they are.
+     */
+    public void transact(IBinder binder, int what, int num, Object obj, Bundle data, Promise<?> result, int flags) throws RemoteException {
+        throw new RemoteException("Binder transaction failure: Lightweight transactions are not supported");
+    }
+
     public abstract void link(IBinder binder, IBinder.Supervisor supervisor, Bundle extras) throws RemoteException;
     public abstract boolean unlink(IBinder binder, IBinder.Supervisor supervisor, Bundle extras);
 
@@ -17,6 +17,8 @@
 package mindroid.runtime.system;
 
 import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -33,6 +35,7 @@ import mindroid.os.IBinder;
 import mindroid.os.IInterface;
 import mindroid.os.Parcel;
 import mindroid.os.RemoteException;
+import mindroid.os.TransactionStatistics;
 import mindroid.runtime.sd.DiscoveryListener;
 import mindroid.runtime.sd.IDiscoveryListener;
 import mindroid.util.Log;
@@ -47,8 +50,12 @@ public class Runtime {
     private static Runtime sRuntime;
     private final int mNodeId;
     private final Map<String, Plugin> mPlugins = new ConcurrentHashMap<>();
-    private final Map<Long, WeakReference<Binder>> mBinderIds = new ConcurrentHashMap<>();
-    private final Map<String, WeakReference<Binder>> mBinderUris = new ConcurrentHashMap<>();
+    private final Map<Long, BinderReference> mBinderIds = new ConcurrentHashMap<>();
+    private final Map<String, BinderReference> mBinderUris = new ConcurrentHashMap<>();
+    private final Map<Long, ProxyReference> mProxies = new ConcurrentHashMap<>();
+    // Binders and proxies are detached by the reaper thread as soon as they have been collected.
+    private final ReferenceQueue<Object> mReferenceQueue = new ReferenceQueue<>();
+    private final Thread mReaper;
     private final Map<String, Binder> mServices = new HashMap<>();
     private final Set<DiscoveryListener> mDiscoveryListeners = ConcurrentHashMap.newKeySet();
     private final AtomicInteger mBinderIdGenerator = new AtomicInteger(1);
@@ -92,6 +99,15 @@ public class Runtime {
             }
             mIds.addAll(ids);
         }
+
+        mReaper = new Thread("BinderReaper") {
+            @Override
+            public void run() {
+                reap();
+            }
+        };
+        mReaper.setDaemon(true);
+        mReaper.start();
     }
 
     public static Runtime getRuntime() {
@@ -136,6 +152,7 @@ public class Runtime {
                 }
                 plugin.tearDown();
             }
+            runtime.mReaper.interrupt();
         }
     }
 
@@ -147,6 +164,22 @@ public class Runtime {
         return mConfiguration;
     }
 
+    /**
+     * Returns the number of binders that are attached to the runtime system and have not been
+     * garbage collected yet.
+     */
+    public int getBinderCount() {
+        return mBinderIds.size();
+    }
+
+    /**
+     * Returns the number of proxies that are attached to the runtime system and have neither been
+     * disposed nor garbage collected yet.
+     */
+    public int getProxyCount() {
+        return mProxies.size();
+    }
+
     public final long attachBinder(Binder binder) {
         if (binder == null) {
             throw new NullPointerException();
@@ -156,7 +189,7 @@ public class Runtime {
             id = ((long) mNodeId << 32) | (mBinderIdGenerator.getAndIncrement() & 0xFFFFFFFFL);
         } while (mIds.contains(id));
         if (!mBinderIds.containsKey(id)) {
-            mBinderIds.put(id, new WeakReference<Binder>(binder));
+            mBinderIds.put(id, new BinderReference(binder, id, null, mReferenceQueue));
             mIds.add(id);
         } else {
             Log.wtf(LOG_TAG, "Invalid binder id: " + id);
@@ -172,7 +205,7 @@ public class Runtime {
             throw new IllegalArgumentException("Binder URI must not be null");
         }
         if (!mBinderUris.containsKey(uri.toString())) {
-            mBinderUris.put(uri.toString(), new WeakReference<Binder>(binder));
+            mBinderUris.put(uri.toString(), new BinderReference(binder, toBinderId(binder), uri.toString(), mReferenceQueue));
 
             Plugin plugin = mPlugins.get(binder.getUri().getScheme());
             if (plugin != null) {
@@ -198,7 +231,7 @@ public class Runtime {
     public final Binder getBinder(long id) {
         int nodeId = (int) ((id >> 32) & 0xFFFFFFFFL);
         if (nodeId == 0 || mNodeId == nodeId) {
-            WeakReference<Binder> binder = mBinderIds.get(((long) mNodeId << 32) | id);
+            BinderReference binder = mBinderIds.get(((long) mNodeId << 32) | id);
             if (binder != null) {
                 return binder.get();
             } else {
@@ -225,7 +258,7 @@ public class Runtime {
             }
             if (mNodeId == nodeId) {
                 final String key = uri.getScheme() + "://" + uri.getAuthority();
-                WeakReference<Binder> b = mBinderUris.get(key);
+                BinderReference b = mBinderUris.get(key);
                 IBinder binder;
                 if (MINDROID_SCHEME.equals(uri.getScheme())) {
                     if (b != null && (binder = b.get()) != null) {
@@ -245,7 +278,7 @@ public class Runtime {
                             if (plugin != null) {
                                 Binder stub = plugin.getStub((Binder) binder);
                                 if (stub != null) {
-                                    mBinderUris.put(key, new WeakReference<Binder>(stub));
+                                    mBinderUris.put(key, new BinderReference(stub, toBinderId(stub), key, mReferenceQueue));
                                 }
                                 return stub;
                             } else {
@@ -288,8 +321,8 @@ public class Runtime {
                             long newId = ((long) mNodeId << 32) | (s.id & 0xFFFFFFFFL);
                             ((Binder) service).setId(newId);
                             mIds.add(newId);
-                            mBinderIds.put(newId, new WeakReference<Binder>((Binder) service));
-                            mBinderUris.put(service.getUri().toString(), new WeakReference<Binder>((Binder) service));
+                            mBinderIds.put(newId, new BinderReference((Binder) service, newId, null, mReferenceQueue));
+                            mBinderUris.put(service.getUri().toString(), new BinderReference((Binder) service, newId, service.getUri().toString(), mReferenceQueue));
                         }
                     }
                 }
@@ -370,6 +403,7 @@ public class Runtime {
 
     public final long attachProxy(Binder.Proxy proxy) {
         long proxyId = mProxyIdGenerator.getAndIncrement();
+        mProxies.put(proxyId, new ProxyReference(proxy, proxyId, mReferenceQueue));
         Plugin plugin = mPlugins.get(proxy.getUri().getScheme());
         if (plugin != null) {
             plugin.attachProxy(proxyId, proxy);
@@ -378,6 +412,7 @@ public class Runtime {
     }
 
     public final void detachProxy(long id, URI uri, long proxyId) {
+        mProxies.remove(proxyId);
         Plugin plugin = mPlugins.get(uri.getScheme());
         if (plugin != null) {
             plugin.detachProxy(proxyId, id);
@@ -396,6 +431,9 @@ public class Runtime {
     public final Promise<Parcel> transact(IBinder binder, int what, Parcel data, int flags) throws RemoteException {
         Plugin plugin = mPlugins.get(binder.getUri().getScheme());
         if (plugin != null) {
+            if (TransactionStatistics.isEnabled()) {
+                return transact(plugin, binder, what, data, flags);
+            }
             Promise<Parcel> promise = plugin.transact(binder, what, data, flags);
             if (((flags & Binder.FLAG_ONEWAY) == 0) && promise == null) {
                 throw new RemoteException("Binder transaction failure");
@@ -406,6 +444,95 @@ public class Runtime {
         }
     }
 
+    public final void transact(IBinder binder, int what, int num, Object obj, Bundle data, Promise<?> result, int flags) throws RemoteException {
+        Plugin plugin = mPlugins.get(binder.getUri().getScheme());
+        if (plugin != null) {
+            if (TransactionStatistics.isEnabled()) {
+                transact(plugin, binder, what, num, obj, data, result, flags);
+            } else {
+                plugin.transact(binder, what, num, obj, data, result, flags);
+            }
+        } else {
+            throw new RemoteException("Binder transaction failure");
+        }
+    }
+
+    public final void transactBatch(IBinder binder, IBinder.Batch batch) throws RemoteException {
+        Plugin plugin = mPlugins.get(binder.getUri().getScheme());
+        if (plugin != null) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (TransactionStatistics.isEnabled()) {
+                transactBatch(plugin, binder, batch);
+            } else {
+                plugin.transactBatch(binder, batch);
+            }
+        } else {
+            throw new RemoteException("Binder transaction failure");
+        }
+    }
+
+    private Promise<Parcel> transact(Plugin plugin, IBinder binder, int what, Parcel data, int flags) throws RemoteException {
+        final TransactionStatistics.MethodStatistics statistics = TransactionStatistics.getRemoteMethod(binder.getInterfaceDescriptor(), what);
+        final long startTime = statistics.onTransactionStarted();
+        Promise<Parcel> promise = null;
+        boolean error = true;
+        try {
+            promise = plugin.transact(binder, what, data, flags);
+            if (((flags & Binder.FLAG_ONEWAY) == 0) && promise == null) {
+                throw new RemoteException("Binder transaction failure");
+            }
+            error = false;
+        } finally {
+            if (promise != null) {
+                promise.then((value, exception) -> {
+                    statistics.onTransactionFinished(startTime, exception != null);
+                });
+            } else {
+                statistics.onTransactionFinished(startTime, error);
+            }
+        }
+        return promise;
+    }
+
+    private void transact(Plugin plugin, IBinder binder, int what, int num, Object obj, Bundle data, Promise<?> result, int flags) throws RemoteException {
+        final TransactionStatistics.MethodStatistics statistics = TransactionStatistics.getRemoteMethod(binder.getInterfaceDescriptor(), what);
+        final long startTime = statistics.onTransactionStarted();
+        boolean error = true;
+        try {
+            plugin.transact(binder, what, num, obj, data, result, flags);
+            error = false;
+        } finally {
+            if (result != null && !error) {
+                result.then((value, exception) -> {
+                    statistics.onTransactionFinished(startTime, exception != null);
+                });
+            } else {
+                statistics.onTransactionFinished(startTime, error);
+            }
+        }
+    }
+
+    private void transactBatch(Plugin plugin, IBinder binder, IBinder.Batch batch) throws RemoteException {
+        final int size = batch.size();
+        final TransactionStatistics.MethodStatistics[] statistics = new TransactionStatistics.MethodStatistics[size];
+        final long[] startTimes = new long[size];
+        for (int i = 0; i < size; i++) {
+            statistics[i] = TransactionStatistics.getRemoteMethod(binder.getInterfaceDescriptor(), batch.getWhat(i));
+            startTimes[i] = statistics[i].onTransactionStarted();
+        }
+        boolean error = true;
+        try {
+            plugin.transactBatch(binder, batch);
+            error = false;
+        } finally {
+            for (int i = 0; i < size; i++) {
+                statistics[i].onTransactionFinished(startTimes[i], error);
+            }
+        }
+    }
+
     public final void link(IBinder binder, IBinder.Supervisor supervisor, Bundle extras) throws RemoteException {
         Plugin plugin = mPlugins.get(binder.getUri().getScheme());
         if (plugin != null) {
@@ -505,4 +632,78 @@ public class Runtime {
             }
         }
     }
+
+    private long toBinderId(Binder binder) {
+        return ((long) mNodeId << 32) | (binder.getId() & 0xFFFFFFFFL);
+    }
+
+    private void reap() {
+        try {
+            while (true) {
+                Reference<?> reference = mReferenceQueue.remove();
+                try {
+                    if (reference instanceof BinderReference) {
+                        detachBinder((BinderReference) reference);
+                    } else if (reference instanceof ProxyReference) {
+                        detachProxy((ProxyReference) reference);
+                    }
+                } catch (RuntimeException e) {
+                    Log.println('E', LOG_TAG, "Failed to detach binder", e);
+                }
+            }
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    private void detachBinder(BinderReference reference) {
+        if (reference.mUri == null) {
+            if (mBinderIds.remove(reference.mId, reference)) {
+                mIds.remove(reference.mId);
+            }
+        } else {
+            // Only detach binders that have not been replaced or detached in the meantime.
+            if (mBinderUris.remove(reference.mUri, reference)) {
+                Plugin plugin = mPlugins.get(URI.create(reference.mUri).getScheme());
+                if (plugin != null) {
+                    plugin.detachBinder(reference.mId);
+                }
+            }
+        }
+    }
+
+    private void detachProxy(ProxyReference reference) {
+        if (mProxies.remove(reference.mProxyId, reference)) {
+            Plugin plugin = mPlugins.get(reference.mUri.getScheme());
+            if (plugin != null) {
+                plugin.detachProxy(reference.mProxyId, reference.mId);
+            }
+        }
+    }
+
+    /**
+     * Registry entry of a binder, either by id or by URI.
+     */
+    private static final class BinderReference extends WeakReference<Binder> {
+        final long mId;
+        final String mUri;
+
+        BinderReference(Binder binder, long id, String uri, ReferenceQueue<Object> queue) {
+            super(binder, queue);
+            mId = id;
+            mUri = uri;
+        }
+    }
+
+    private static final class ProxyReference extends WeakReference<Binder.Proxy> {
+        final long mId;
+        final URI mUri;
+        final long mProxyId;
+
+        ProxyReference(Binder.Proxy proxy, long proxyId, ReferenceQueue<Object> queue) {
+            super(proxy, queue);
+            mId = proxy.getId();
+            mUri = proxy.getUri();
+            mProxyId = proxyId;
+        }
+    }
 }
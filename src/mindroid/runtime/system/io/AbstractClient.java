@@ -59,18 +59,23 @@ public abstract class AbstractClient {
 
         try {
             URI url = new URI(uri);
-            if (!"tcp".equals(url.getScheme())) {
+            final SocketAddress address;
+            if ("tcp".equals(url.getScheme())) {
+                mHost = url.getHost();
+                mPort = url.getPort();
+                address = new InetSocketAddress(mHost, mPort);
+            } else if ("shm".equals(url.getScheme())) {
+                address = new SharedMemoryAddress(url.getPath());
+            } else {
                 throw new IllegalArgumentException("Invalid URI scheme: " + url.getScheme());
             }
-            mHost = url.getHost();
-            mPort = url.getPort();
 
             try {
                 if (localAddress != null) {
                     mSocket.bind(localAddress);
                 }
 
-                mSocket.connect(new InetSocketAddress(mHost, mPort), CONNECTION_ESTABLISHMENT_TIMEOUT);
+                mSocket.connect(address, CONNECTION_ESTABLISHMENT_TIMEOUT);
                 mConnection = new Connection(mSocket);
                 onConnected();
             } catch (IOException e) {
@@ -59,10 +59,14 @@ public abstract class AbstractServer {
             throw new IOException("Invalid URI: " + uri);
         }
 
-        if ("tcp".equals(url.getScheme())) {
+        if ("tcp".equals(url.getScheme()) || "shm".equals(url.getScheme())) {
             try {
                 mServerSocket.setReuseAddress(true);
-                mServerSocket.bind(new InetSocketAddress(InetAddress.getByName(url.getHost()), url.getPort()));
+                if ("tcp".equals(url.getScheme())) {
+                    mServerSocket.bind(new InetSocketAddress(InetAddress.getByName(url.getHost()), url.getPort()));
+                } else {
+                    mServerSocket.bind(new SharedMemoryAddress(url.getPath()));
+                }
 
                 mThread = new Thread("Server [" + mServerSocket.getLocalSocketAddress() + "]") {
                     public void run() {
@@ -82,7 +86,7 @@ public abstract class AbstractServer {
                 };
                 mThread.start();
             } catch (IOException e) {
-                Log.e(LOG_TAG, "Cannot bind to server socket on port " + url.getPort());
+                Log.e(LOG_TAG, "Cannot bind to server socket on " + uri + ": " + e.getMessage());
             }
         } else {
             throw new IllegalArgumentException("Invalid URI scheme: " + url.getScheme());
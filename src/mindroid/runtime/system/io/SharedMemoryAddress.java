@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018 E.S.R.Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.runtime.system.io;
+
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The address of a {@link SharedMemoryServerSocket}, i.e. the directory in which clients place
+ * their connection requests, or of one end of a {@link SharedMemorySocket}. Addresses are written
+ * as {@code shm://} URIs, e.g. {@code shm:///dev/shm/mindroid-1}.
+ */
+public final class SharedMemoryAddress extends SocketAddress {
+    private static final long serialVersionUID = 1L;
+    private final String mPath;
+
+    public SharedMemoryAddress(String path) {
+        if (path == null || path.isEmpty()) {
+            throw new IllegalArgumentException("Invalid path: " + path);
+        }
+        mPath = path;
+    }
+
+    public SharedMemoryAddress(Path path) {
+        this(path.toString());
+    }
+
+    public Path getPath() {
+        return Paths.get(mPath);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return (obj instanceof SharedMemoryAddress) && mPath.equals(((SharedMemoryAddress) obj).mPath);
+    }
+
+    @Override
+    public int hashCode() {
+        return mPath.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "shm://" + mPath;
+    }
+}
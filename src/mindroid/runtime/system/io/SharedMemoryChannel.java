@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2018 E.S.R.Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.runtime.system.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection between two processes on the same host that exchanges data through a memory-mapped
+ * file. The file holds a small header and two single-producer single-consumer ring buffers, one
+ * per direction. Each side only advances the write position of its outgoing ring and the read
+ * position of its incoming ring, so the rings need no locks.
+ *
+ * <p>
+ * Java has no futex, so a side that waits for data or space spins on the position of its peer,
+ * then yields and finally parks with exponentially growing timeouts of up to
+ * {@value #MAX_PARK_TIME} ns. Busy connections therefore hand over frames within microseconds.
+ * After about a second of waiting a side is idle and parks for {@value #IDLE_PARK_TIME} ns at
+ * a time, so idle connections cost 20 wakeups per second and the first frame after a pause
+ * takes up to that long. Interrupting a parked thread wakes it up at once, which the client
+ * and server connections do when they are closed. Written data is published on
+ * {@link OutputStream#flush()} or when the ring is full, so the peer usually wakes up once per
+ * frame.
+ *
+ * <p>
+ * The client creates the file in the directory of the server and renames it to
+ * {@code *.connection} once the header has been initialized. The server maps the file, deletes
+ * its name and accepts the connection by setting the state in the header. Both sides hold a lock
+ * on a byte of the header while they are alive. The operating system releases the locks of
+ * processes that die, so a side that has been waiting for a while uses them to detect a crashed
+ * peer.
+ */
+final class SharedMemoryChannel implements Closeable {
+    static final String CONNECTION_SUFFIX = ".connection";
+    private static final String PENDING_SUFFIX = ".pending";
+    private static final int RING_CAPACITY = 1 << 20;
+    private static final int MAGIC = 0x4D534D43;
+    private static final int VERSION = 1;
+    private static final int STATE_REQUESTED = 1;
+    private static final int STATE_ACCEPTED = 2;
+
+    // Header layout. Values that are written by different sides are kept on separate cache lines.
+    private static final int CACHE_LINE_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int STATE_OFFSET = 12;
+    private static final int CLIENT_LOCK_OFFSET = 16;
+    private static final int SERVER_LOCK_OFFSET = 17;
+    private static final int CLIENT_CLOSED_OFFSET = CACHE_LINE_SIZE;
+    private static final int CLIENT_OUTPUT_SHUTDOWN_OFFSET = CACHE_LINE_SIZE + 4;
+    private static final int SERVER_CLOSED_OFFSET = 2 * CACHE_LINE_SIZE;
+    private static final int SERVER_OUTPUT_SHUTDOWN_OFFSET = 2 * CACHE_LINE_SIZE + 4;
+    // Ring 0 carries the data of the client, ring 1 the data of the server. The write position
+    // of a ring is followed by its read position on the next cache line.
+    private static final int RING_POSITIONS_OFFSET = 3 * CACHE_LINE_SIZE;
+    private static final int HEADER_SIZE = 8 * CACHE_LINE_SIZE;
+
+    private static final int SPIN_COUNT = 100;
+    private static final int YIELD_COUNT = 100;
+    private static final long MIN_PARK_TIME = 1000;
+    private static final long MAX_PARK_TIME = 1000000;
+    private static final int IDLE_PARK_COUNT = 1000;
+    private static final long IDLE_PARK_TIME = 50000000;
+    private static final long LIVENESS_CHECK_INTERVAL = 1000000000;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mBuffer;
+    private final FileLock mLock;
+    private final boolean mIsServer;
+    private final int mCapacity;
+    private final SharedMemoryAddress mLocalAddress;
+    private final SharedMemoryAddress mRemoteAddress;
+    private final Input mInputStream;
+    private final Output mOutputStream;
+    private volatile boolean mIsClosed = false;
+    private volatile boolean mIsInputShutdown = false;
+    private volatile boolean mIsOutputShutdown = false;
+    private volatile boolean mIsPeerDead = false;
+    private volatile long mLastLivenessCheck = System.nanoTime();
+
+    private SharedMemoryChannel(FileChannel channel, MappedByteBuffer buffer, FileLock lock, boolean server,
+            SharedMemoryAddress localAddress, SharedMemoryAddress remoteAddress) {
+        mChannel = channel;
+        mBuffer = buffer;
+        mLock = lock;
+        mIsServer = server;
+        mCapacity = buffer.getInt(CAPACITY_OFFSET);
+        mLocalAddress = localAddress;
+        mRemoteAddress = remoteAddress;
+        mInputStream = new Input(server ? 0 : 1);
+        mOutputStream = new Output(server ? 1 : 0);
+    }
+
+    /**
+     * Connects to the server with the given address.
+     *
+     * @param timeout The time in milliseconds to wait for the server to accept the connection, 0
+     * for no timeout.
+     */
+    static SharedMemoryChannel connect(SharedMemoryAddress address, int timeout) throws IOException {
+        final Path directory = address.getPath();
+        if (!SharedMemoryServerSocket.isBound(directory)) {
+            throw new ConnectException("Connection refused: " + address);
+        }
+
+        Path pending = Files.createTempFile(directory, "", PENDING_SUFFIX);
+        Path request = null;
+        FileChannel channel = null;
+        SharedMemoryChannel connection = null;
+        try {
+            channel = FileChannel.open(pending, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Mapping the file extends it to its full size.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * RING_CAPACITY);
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            buffer.putInt(CAPACITY_OFFSET, RING_CAPACITY);
+            FileLock lock = channel.lock(CLIENT_LOCK_OFFSET, 1, false);
+            INT.setRelease(buffer, STATE_OFFSET, STATE_REQUESTED);
+
+            String name = pending.getFileName().toString();
+            request = directory.resolve(name.substring(0, name.length() - PENDING_SUFFIX.length()) + CONNECTION_SUFFIX);
+            Files.move(pending, request, StandardCopyOption.ATOMIC_MOVE);
+            connection = new SharedMemoryChannel(channel, buffer, lock, false, new SharedMemoryAddress(request), address);
+            connection.awaitAcceptance(timeout);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            if (connection != null) {
+                connection.close();
+            } else if (channel != null) {
+                channel.close();
+            }
+            Files.deleteIfExists(pending);
+            if (request != null) {
+                Files.deleteIfExists(request);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Accepts the connection request of a client.
+     */
+    static SharedMemoryChannel accept(Path request, SharedMemoryAddress localAddress) throws IOException {
+        FileChannel channel = FileChannel.open(request, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        SharedMemoryChannel connection = null;
+        try {
+            // The mapping keeps the file alive, so nothing is left behind when both sides are gone.
+            Files.deleteIfExists(request);
+            final long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Invalid connection request: " + request);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            final int capacity = buffer.getInt(CAPACITY_OFFSET);
+            if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION
+                    || (int) INT.getAcquire(buffer, STATE_OFFSET) != STATE_REQUESTED
+                    || capacity <= 0 || Integer.bitCount(capacity) != 1 || size != HEADER_SIZE + 2L * capacity) {
+                throw new IOException("Invalid connection request: " + request);
+            }
+            FileLock lock = channel.lock(SERVER_LOCK_OFFSET, 1, false);
+            connection = new SharedMemoryChannel(channel, buffer, lock, true, localAddress, new SharedMemoryAddress(request));
+            if (connection.isPeerClosed(true)) {
+                throw new SocketException("Connection request has been abandoned: " + request);
+            }
+            INT.setRelease(buffer, STATE_OFFSET, STATE_ACCEPTED);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            if (connection != null) {
+                connection.close();
+            } else {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    private void awaitAcceptance(int timeout) throws IOException {
+        final long deadline = System.nanoTime() + timeout * 1000000L;
+        for (int i = 0; (int) INT.getAcquire(mBuffer, STATE_OFFSET) != STATE_ACCEPTED; i++) {
+            if (isPeerClosed(false)) {
+                throw new ConnectException("Connection refused: " + mRemoteAddress);
+            }
+            if (timeout > 0 && System.nanoTime() - deadline > 0) {
+                throw new SocketTimeoutException("Connect timed out: " + mRemoteAddress);
+            }
+            await(i);
+        }
+    }
+
+    InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    SharedMemoryAddress getLocalAddress() {
+        return mLocalAddress;
+    }
+
+    SharedMemoryAddress getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    boolean isClosed() {
+        return mIsClosed;
+    }
+
+    void shutdownInput() {
+        mIsInputShutdown = true;
+    }
+
+    boolean isInputShutdown() {
+        return mIsInputShutdown;
+    }
+
+    /**
+     * Publishes the pending data and signals the end of the stream to the peer. The peer can still
+     * write to this side until it shuts down its output or closes the connection as well.
+     */
+    void shutdownOutput() throws IOException {
+        if (!mIsOutputShutdown) {
+            try {
+                mOutputStream.flush();
+            } finally {
+                mIsOutputShutdown = true;
+                INT.setRelease(mBuffer, mIsServer ? SERVER_OUTPUT_SHUTDOWN_OFFSET : CLIENT_OUTPUT_SHUTDOWN_OFFSET, 1);
+            }
+        }
+    }
+
+    boolean isOutputShutdown() {
+        return mIsOutputShutdown;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mIsClosed) {
+                return;
+            }
+            mIsClosed = true;
+        }
+        // Data that has not been flushed is discarded, like the data in the send buffer of a socket.
+        mIsOutputShutdown = true;
+        INT.setRelease(mBuffer, mIsServer ? SERVER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET, 1);
+        // Closing the channel releases the lock. The mapping stays valid for the threads that are
+        // still waiting on it.
+        mChannel.close();
+    }
+
+    /**
+     * Returns true if the peer has shut down its output, which ends the stream of this side, or if
+     * it has closed the connection or died.
+     */
+    private boolean isPeerOutputShutdown() {
+        return (int) INT.getAcquire(mBuffer, mIsServer ? CLIENT_OUTPUT_SHUTDOWN_OFFSET : SERVER_OUTPUT_SHUTDOWN_OFFSET) != 0
+                || isPeerClosed(false);
+    }
+
+    /**
+     * Returns true if the peer has closed the connection or died. Dead peers are detected by their
+     * lock, which is only checked every {@value #LIVENESS_CHECK_INTERVAL} ns unless {@code force}
+     * is set.
+     */
+    private boolean isPeerClosed(boolean force) {
+        if ((int) INT.getAcquire(mBuffer, mIsServer ? CLIENT_CLOSED_OFFSET : SERVER_CLOSED_OFFSET) != 0 || mIsPeerDead) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        if (force || now - mLastLivenessCheck > LIVENESS_CHECK_INTERVAL) {
+            mLastLivenessCheck = now;
+            try {
+                FileLock lock = mChannel.tryLock(mIsServer ? CLIENT_LOCK_OFFSET : SERVER_LOCK_OFFSET, 1, false);
+                if (lock != null) {
+                    lock.release();
+                    mIsPeerDead = true;
+                }
+            } catch (OverlappingFileLockException e) {
+                // The peer lives in this process.
+            } catch (IOException e) {
+                mIsPeerDead = !mIsClosed;
+            }
+        }
+        return mIsPeerDead;
+    }
+
+    /**
+     * Waits a little while for the peer, the longer the more often it has been called in a row.
+     */
+    private void await(int iteration) throws IOException {
+        if (mIsClosed) {
+            throw new SocketException("Socket is closed");
+        }
+        if (iteration < SPIN_COUNT) {
+            Thread.onSpinWait();
+        } else if (iteration < SPIN_COUNT + YIELD_COUNT) {
+            Thread.yield();
+        } else {
+            final int parkCount = iteration - SPIN_COUNT - YIELD_COUNT;
+            if (parkCount < IDLE_PARK_COUNT) {
+                final int exponent = Math.min(parkCount, Long.SIZE - 2);
+                LockSupport.parkNanos(Math.min(MIN_PARK_TIME << exponent, MAX_PARK_TIME));
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_TIME);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private int getDataOffset(int ring) {
+        return HEADER_SIZE + ring * mCapacity;
+    }
+
+    private static int getWritePositionOffset(int ring) {
+        return RING_POSITIONS_OFFSET + ring * 2 * CACHE_LINE_SIZE;
+    }
+
+    private static int getReadPositionOffset(int ring) {
+        return getWritePositionOffset(ring) + CACHE_LINE_SIZE;
+    }
+
+    private class Input extends InputStream {
+        private final int mDataOffset;
+        private final int mWritePositionOffset;
+        private final int mReadPositionOffset;
+        private final ByteBuffer mData;
+        private long mReadPosition = 0;
+        private long mWritePosition = 0;
+
+        Input(int ring) {
+            mDataOffset = getDataOffset(ring);
+            mWritePositionOffset = getWritePositionOffset(ring);
+            mReadPositionOffset = getReadPositionOffset(ring);
+            mData = mBuffer.duplicate();
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            if (!awaitData()) {
+                return -1;
+            }
+            final int value = mBuffer.get(mDataOffset + (int) (mReadPosition & (mCapacity - 1))) & 0xFF;
+            mReadPosition++;
+            LONG.setRelease(mBuffer, mReadPositionOffset, mReadPosition);
+            return value;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            Objects.checkFromIndexSize(offset, length, buffer.length);
+            if (length == 0) {
+                return 0;
+            }
+            if (!awaitData()) {
+                return -1;
+            }
+            int size = 0;
+            while (size < length && mReadPosition < mWritePosition) {
+                final int index = (int) (mReadPosition & (mCapacity - 1));
+                final int count = (int) Math.min(Math.min(length - size, mWritePosition - mReadPosition), mCapacity - index);
+                mData.position(mDataOffset + index);
+                mData.get(buffer, offset + size, count);
+                mReadPosition += count;
+                size += count;
+            }
+            LONG.setRelease(mBuffer, mReadPositionOffset, mReadPosition);
+            return size;
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            if (mIsClosed) {
+                throw new SocketException("Socket is closed");
+            }
+            mWritePosition = (long) LONG.getAcquire(mBuffer, mWritePositionOffset);
+            return (int) Math.min(mWritePosition - mReadPosition, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            SharedMemoryChannel.this.close();
+        }
+
+        /**
+         * Waits until there is data to read.
+         *
+         * @return false at the end of the stream.
+         */
+        private boolean awaitData() throws IOException {
+            for (int i = 0; mReadPosition == mWritePosition; i++) {
+                if (mIsInputShutdown) {
+                    return false;
+                }
+                mWritePosition = (long) LONG.getAcquire(mBuffer, mWritePositionOffset);
+                if (mReadPosition != mWritePosition) {
+                    break;
+                }
+                if (isPeerOutputShutdown()) {
+                    // The peer publishes its last data before it shuts down its output.
+                    mWritePosition = (long) LONG.getAcquire(mBuffer, mWritePositionOffset);
+                    return mReadPosition != mWritePosition;
+                }
+                await(i);
+            }
+            return true;
+        }
+    }
+
+    private class Output extends OutputStream {
+        private final int mDataOffset;
+        private final int mWritePositionOffset;
+        private final int mReadPositionOffset;
+        private final ByteBuffer mData;
+        private long mWritePosition = 0;
+        private long mReadPosition = 0;
+
+        Output(int ring) {
+            mDataOffset = getDataOffset(ring);
+            mWritePositionOffset = getWritePositionOffset(ring);
+            mReadPositionOffset = getReadPositionOffset(ring);
+            mData = mBuffer.duplicate();
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            awaitSpace();
+            mBuffer.put(mDataOffset + (int) (mWritePosition & (mCapacity - 1)), (byte) b);
+            mWritePosition++;
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            Objects.checkFromIndexSize(offset, length, buffer.length);
+            while (length > 0) {
+                final int space = awaitSpace();
+                final int index = (int) (mWritePosition & (mCapacity - 1));
+                final int count = Math.min(Math.min(length, space), mCapacity - index);
+                mData.position(mDataOffset + index);
+                mData.put(buffer, offset, count);
+                mWritePosition += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        /**
+         * Publishes the data that has been written to the peer.
+         */
+        @Override
+        public synchronized void flush() throws IOException {
+            checkOutput();
+            LONG.setRelease(mBuffer, mWritePositionOffset, mWritePosition);
+        }
+
+        @Override
+        public void close() throws IOException {
+            SharedMemoryChannel.this.close();
+        }
+
+        private void checkOutput() throws IOException {
+            if (mIsClosed) {
+                throw new SocketException("Socket is closed");
+            }
+            if (mIsOutputShutdown) {
+                throw new SocketException("Socket output is shutdown");
+            }
+            if (isPeerClosed(false)) {
+                throw new SocketException("Broken pipe");
+            }
+        }
+
+        /**
+         * Waits until there is space in the ring. The data that has been written so far is
+         * published first, since the peer may be waiting for it to free up space.
+         *
+         * @return The number of bytes that may be written.
+         */
+        private int awaitSpace() throws IOException {
+            int space = mCapacity - (int) (mWritePosition - mReadPosition);
+            if (space > 0) {
+                return space;
+            }
+            checkOutput();
+            LONG.setRelease(mBuffer, mWritePositionOffset, mWritePosition);
+            for (int i = 0; ; i++) {
+                mReadPosition = (long) LONG.getAcquire(mBuffer, mReadPositionOffset);
+                space = mCapacity - (int) (mWritePosition - mReadPosition);
+                if (space > 0) {
+                    return space;
+                }
+                checkOutput();
+                await(i);
+            }
+        }
+    }
+}
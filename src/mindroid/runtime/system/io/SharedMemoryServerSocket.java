@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2018 E.S.R.Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.runtime.system.io;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import mindroid.util.Log;
+
+/**
+ * A server socket that accepts {@link SharedMemorySocket} connections from processes on the same
+ * host. The server listens on a directory, preferably on a tmpfs like {@code /dev/shm}, in which
+ * clients place their connection requests. The server holds a lock on the file {@code server.lock}
+ * in that directory while it is bound, so only one server listens on a directory at a time and
+ * clients fail fast if there is no server.
+ */
+public class SharedMemoryServerSocket extends ServerSocket {
+    private static final String LOG_TAG = "SharedMemoryServerSocket";
+    private static final String LOCK_FILE_NAME = "server.lock";
+    private static final long ACCEPT_POLL_INTERVAL = 1000;
+    // Directories that are bound by this process. Checking the lock file would release the lock,
+    // since closing any channel of a file drops all locks of the process on that file.
+    private static final Set<Path> sBoundDirectories = ConcurrentHashMap.newKeySet();
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<Path> mRequests = new ArrayDeque<>();
+    private SharedMemoryAddress mAddress;
+    private Path mDirectory;
+    private FileChannel mLockFileChannel;
+    private WatchService mWatchService;
+    private volatile boolean mIsClosed = false;
+
+    public SharedMemoryServerSocket() throws IOException {
+        super();
+    }
+
+    @Override
+    public void bind(SocketAddress endpoint) throws IOException {
+        bind(endpoint, 0);
+    }
+
+    @Override
+    public void bind(SocketAddress endpoint, int backlog) throws IOException {
+        if (!(endpoint instanceof SharedMemoryAddress)) {
+            throw new IllegalArgumentException("Unsupported address type");
+        }
+        synchronized (mLock) {
+            if (mIsClosed) {
+                throw new SocketException("Socket is closed");
+            }
+            if (mAddress != null) {
+                throw new SocketException("Already bound");
+            }
+            final Path directory = ((SharedMemoryAddress) endpoint).getPath().toAbsolutePath();
+            Files.createDirectories(directory);
+            if (!sBoundDirectories.add(directory)) {
+                throw new BindException("Address already in use: " + endpoint);
+            }
+            FileChannel channel = null;
+            WatchService watchService = null;
+            try {
+                channel = FileChannel.open(directory.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    throw new BindException("Address already in use: " + endpoint);
+                }
+                watchService = directory.getFileSystem().newWatchService();
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            } catch (IOException | RuntimeException e) {
+                sBoundDirectories.remove(directory);
+                if (watchService != null) {
+                    watchService.close();
+                }
+                if (channel != null) {
+                    channel.close();
+                }
+                throw e;
+            }
+            mDirectory = directory;
+            mAddress = new SharedMemoryAddress(directory);
+            mLockFileChannel = channel;
+            mWatchService = watchService;
+        }
+    }
+
+    /**
+     * Waits for the next connection request and accepts it. Requests of clients that have given up
+     * or died in the meantime are dropped.
+     */
+    @Override
+    public Socket accept() throws IOException {
+        if (mAddress == null) {
+            throw new SocketException("Socket is not bound yet");
+        }
+        while (true) {
+            if (mIsClosed) {
+                throw new SocketException("Socket is closed");
+            }
+            Path request = mRequests.poll();
+            if (request == null) {
+                try (DirectoryStream<Path> requests = Files.newDirectoryStream(mDirectory, "*" + SharedMemoryChannel.CONNECTION_SUFFIX)) {
+                    for (Path path : requests) {
+                        mRequests.offer(path);
+                    }
+                }
+                request = mRequests.poll();
+            }
+            if (request == null) {
+                try {
+                    WatchKey key = mWatchService.poll(ACCEPT_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                } catch (ClosedWatchServiceException | InterruptedException e) {
+                    throw new SocketException("Socket is closed");
+                }
+                continue;
+            }
+            try {
+                return new SharedMemorySocket(SharedMemoryChannel.accept(request, mAddress));
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Dropping connection request: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (mLock) {
+            if (mIsClosed) {
+                return;
+            }
+            mIsClosed = true;
+            if (mAddress != null) {
+                try {
+                    mWatchService.close();
+                } finally {
+                    mLockFileChannel.close();
+                    sBoundDirectories.remove(mDirectory);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isBound() {
+        return mAddress != null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mIsClosed;
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public void setReuseAddress(boolean on) {
+        // Stale connection requests do not block the address.
+    }
+
+    @Override
+    public String toString() {
+        return "SharedMemoryServerSocket[" + ((mAddress != null) ? mAddress : "unbound") + "]";
+    }
+
+    /**
+     * Returns true if a server is bound to the directory.
+     */
+    static boolean isBound(Path directory) {
+        directory = directory.toAbsolutePath();
+        if (sBoundDirectories.contains(directory)) {
+            return true;
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE_NAME), StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                lock.release();
+                return false;
+            }
+            return true;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
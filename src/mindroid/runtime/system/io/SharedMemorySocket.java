@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 E.S.R.Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.runtime.system.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+
+/**
+ * A socket that connects to a {@link SharedMemoryServerSocket} on the same host. The data is
+ * exchanged through ring buffers in a memory-mapped file instead of the network stack, see
+ * SharedMemoryChannel. The socket has no {@link SocketImpl}, so only the connection, stream and
+ * address methods that are overridden here are supported.
+ */
+public class SharedMemorySocket extends Socket {
+    private SharedMemoryChannel mChannel;
+    private boolean mIsClosed = false;
+
+    public SharedMemorySocket() throws SocketException {
+        super((SocketImpl) null);
+    }
+
+    SharedMemorySocket(SharedMemoryChannel channel) throws SocketException {
+        this();
+        mChannel = channel;
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint) throws IOException {
+        connect(endpoint, 0);
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+        if (!(endpoint instanceof SharedMemoryAddress)) {
+            throw new IllegalArgumentException("Unsupported address type");
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout can't be negative");
+        }
+        synchronized (this) {
+            if (mIsClosed) {
+                throw new SocketException("Socket is closed");
+            }
+            if (mChannel != null) {
+                throw new SocketException("Already connected");
+            }
+        }
+        SharedMemoryChannel channel = SharedMemoryChannel.connect((SharedMemoryAddress) endpoint, timeout);
+        synchronized (this) {
+            if (mIsClosed) {
+                channel.close();
+                throw new SocketException("Socket is closed");
+            }
+            mChannel = channel;
+        }
+    }
+
+    @Override
+    public void bind(SocketAddress bindpoint) throws IOException {
+        if (bindpoint != null) {
+            throw new SocketException("Binding shared memory sockets is not supported");
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return getConnectedChannel().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return getConnectedChannel().getOutputStream();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        getConnectedChannel().shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        getConnectedChannel().shutdownOutput();
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        SharedMemoryChannel channel = mChannel;
+        return channel != null && channel.isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        SharedMemoryChannel channel = mChannel;
+        return channel != null && channel.isOutputShutdown();
+    }
+
+    @Override
+    public void close() throws IOException {
+        SharedMemoryChannel channel;
+        synchronized (this) {
+            mIsClosed = true;
+            channel = mChannel;
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+        return mIsClosed || (mChannel != null && mChannel.isClosed());
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mChannel != null;
+    }
+
+    @Override
+    public synchronized boolean isBound() {
+        return mChannel != null;
+    }
+
+    @Override
+    public synchronized SocketAddress getLocalSocketAddress() {
+        return (mChannel != null) ? mChannel.getLocalAddress() : null;
+    }
+
+    @Override
+    public synchronized SocketAddress getRemoteSocketAddress() {
+        return (mChannel != null) ? mChannel.getRemoteAddress() : null;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+        // Data is published on flush, there is no Nagle algorithm to turn off.
+    }
+
+    @Override
+    public boolean getTcpNoDelay() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedMemorySocket[" + ((mChannel != null) ? mChannel.getLocalAddress() + " <<>> " + mChannel.getRemoteAddress() : "unconnected") + "]";
+    }
+
+    private synchronized SharedMemoryChannel getConnectedChannel() throws SocketException {
+        if (mIsClosed) {
+            throw new SocketException("Socket is closed");
+        }
+        if (mChannel == null) {
+            throw new SocketException("Socket is not connected");
+        }
+        return mChannel;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 E.S.R.Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.runtime.system.plugins.shm;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import mindroid.os.Binder;
+import mindroid.os.IBinder;
+import mindroid.os.IInterface;
+import mindroid.runtime.system.Mindroid;
+import mindroid.runtime.system.io.SharedMemoryServerSocket;
+import mindroid.runtime.system.io.SharedMemorySocket;
+
+/**
+ * Connects nodes on the same host through shared memory instead of loopback TCP. The plugin
+ * speaks the mindroid protocol for the {@code shm} scheme over {@link SharedMemorySocket}s. Each
+ * node listens on a directory, preferably on a tmpfs:
+ *
+ * <pre>
+ *  &lt;plugin scheme="shm" class="mindroid.runtime.system.plugins.shm.SharedMemory"&gt;
+ *      &lt;server uri="shm:///dev/shm/mindroid-1" /&gt;
+ *  &lt;/plugin&gt;
+ * </pre>
+ *
+ * Services that are announced with {@code shm://interfaces/...} descriptors are resolved to
+ * {@code shm://} proxies. Every binder of a node serves {@code shm} transactions as it is. The
+ * plugin is not part of the default runtime configuration, see
+ * examples/SharedMemory/MindroidRuntimeSystem.xml.
+ */
+public class SharedMemory extends Mindroid {
+    private static final ConcurrentHashMap<String, Constructor<?>> sProxyConstructors = new ConcurrentHashMap<>();
+
+    public SharedMemory() {
+        super("shm");
+    }
+
+    @Override
+    protected ServerSocket createServerSocket() throws IOException {
+        return new SharedMemoryServerSocket();
+    }
+
+    @Override
+    protected Socket createSocket() throws IOException {
+        return new SharedMemorySocket();
+    }
+
+    @Override
+    public Binder getStub(Binder binder) {
+        return binder;
+    }
+
+    /**
+     * Returns the parcel based proxy that the interface compiler generates for the mindroid scheme,
+     * e.g. {@code examples.eliza.IEliza.Stub.Proxy} for {@code shm://interfaces/examples/eliza/IEliza}.
+     */
+    @Override
+    public IInterface getProxy(IBinder binder) {
+        final String descriptor = binder.getInterfaceDescriptor();
+        try {
+            Constructor<?> ctor = sProxyConstructors.get(descriptor);
+            if (ctor == null) {
+                String className = URI.create(descriptor).getPath().substring(1).replace('/', '.') + "$Stub$Proxy";
+                ctor = Class.forName(className).getDeclaredConstructor(IBinder.class);
+                ctor.setAccessible(true);
+                sProxyConstructors.put(descriptor, ctor);
+            }
+            return (IInterface) ctor.newInstance(binder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
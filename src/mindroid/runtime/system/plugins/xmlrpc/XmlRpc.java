@@ -149,6 +149,15 @@ public class XmlRpc extends Plugin {
 
     @Override
     public synchronized void detachProxy(long proxyId, long binderId) {
+        int nodeId = (int) ((binderId >> 32) & 0xFFFFFFFFL);
+        Map<Long, WeakReference<IBinder>> proxies = mProxies.get(nodeId);
+        if (proxies != null) {
+            proxies.remove(proxyId);
+            if (proxies.isEmpty()) {
+                mProxies.remove(nodeId);
+            }
+        }
+
         // TODO: Lazy connection shutdown for clients without proxies.
 //        int nodeId = (int) ((binderId >> 32) & 0xFFFFFFFFL);
 //        if (mProxies.containsKey(nodeId)) {
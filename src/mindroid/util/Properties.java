@@ -22,6 +22,10 @@ package mindroid.util;
 public final class Properties {
     public static final String DEVELOPER_MODE = "DEVELOPER_MODE";
     public static final String INTEGRATION_TESTING = "INTEGRATION_TESTING";
+    public static final String LOOPER_BATCH_SIZE = "LOOPER_BATCH_SIZE";
+    public static final String MESSAGE_POOL_SIZE = "MESSAGE_POOL_SIZE";
+    public static final String LOCAL_MESSAGE_POOL_SIZE = "LOCAL_MESSAGE_POOL_SIZE";
+    public static final String VIRTUAL_THREADS = "VIRTUAL_THREADS";
     
     private Properties() {
     }
@@ -26,6 +26,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import mindroid.os.Handler;
 import mindroid.os.HandlerThread;
+import mindroid.os.Looper;
 
 public class AsyncAwait {
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
@@ -51,7 +52,7 @@ public class AsyncAwait {
     public static final ExecutorService THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
             TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory);
 
-    private static final HandlerThread sThread;
+    private static final Looper sLooper;
 
     /**
      * An {@link Executor} that executes tasks one at a time in serial
@@ -60,9 +61,8 @@ public class AsyncAwait {
     public static final Executor SERIAL_EXECUTOR;
 
     static {
-        sThread = new HandlerThread("AsyncAwait #0");
-        sThread.start();
-        SERIAL_EXECUTOR = new Handler(sThread.getLooper()).asExecutor();
+        sLooper = HandlerThread.startLooper(null, "AsyncAwait #0", Executors.isVirtualThreadEnabled(null));
+        SERIAL_EXECUTOR = new Handler(sLooper).asExecutor();
     }
 
     private AsyncAwait() {
@@ -74,7 +74,7 @@ public class AsyncAwait {
 
     /** @hide */
     public static void tearDown() {
-        sThread.quit();
+        sLooper.quit();
         try {
             THREAD_POOL_EXECUTOR.shutdown();
             if (!THREAD_POOL_EXECUTOR.awaitTermination(10000, TimeUnit.MILLISECONDS)) {
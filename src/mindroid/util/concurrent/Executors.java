@@ -16,14 +16,155 @@
 
 package mindroid.util.concurrent;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import mindroid.util.Properties;
 
 public class Executors {
     public static final Executor SYNCHRONOUS_EXECUTOR = new SynchronousExecutor();
 
+    // Virtual threads are looked up reflectively to keep the Java 11 baseline.
+    private static final Method sOfVirtual;
+    private static final Method sName;
+    private static final Method sUncaughtExceptionHandler;
+    private static final Method sUnstarted;
+    private static final Method sNewVirtualThreadPerTaskExecutor;
+    // A method handle, since pools check every thread that obtains or recycles an object.
+    private static final MethodHandle sIsVirtual;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method uncaughtExceptionHandler = null;
+        Method unstarted = null;
+        Method newVirtualThreadPerTaskExecutor = null;
+        MethodHandle isVirtual = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            uncaughtExceptionHandler = builder.getMethod("uncaughtExceptionHandler", Thread.UncaughtExceptionHandler.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            newVirtualThreadPerTaskExecutor = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            // Fails if virtual threads are a disabled preview feature.
+            ofVirtual.invoke(null);
+            isVirtual = MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ofVirtual = null;
+            isVirtual = null;
+        }
+        sOfVirtual = ofVirtual;
+        sName = name;
+        sUncaughtExceptionHandler = uncaughtExceptionHandler;
+        sUnstarted = unstarted;
+        sNewVirtualThreadPerTaskExecutor = newVirtualThreadPerTaskExecutor;
+        sIsVirtual = isVirtual;
+    }
+
     private Executors() {
     }
 
+    /**
+     * Returns true if the Java VM supports virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return sOfVirtual != null;
+    }
+
+    /**
+     * Returns true if the given thread is a virtual thread. Virtual threads are cheap and usually
+     * short-lived, so per-thread caches do not pay off on them.
+     *
+     * @hide
+     */
+    public static boolean isVirtualThread(Thread thread) {
+        if (sIsVirtual == null) {
+            return false;
+        }
+        try {
+            return (boolean) sIsVirtual.invokeExact(thread);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if virtual threads are supported and enabled for the given process by the
+     * {@link Properties#VIRTUAL_THREADS} system property. The property is either "true" to enable
+     * virtual threads for all processes or a comma-separated list of process names. A null process
+     * name only matches "true" and is used for the system threads.
+     *
+     * @hide
+     */
+    public static boolean isVirtualThreadEnabled(String processName) {
+        if (!isVirtualThreadSupported()) {
+            return false;
+        }
+        String value = System.getProperty(Properties.VIRTUAL_THREADS);
+        if (value == null) {
+            return false;
+        }
+        if (value.trim().equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (processName != null) {
+            for (String name : value.split(",")) {
+                if (name.trim().equals(processName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates an unstarted virtual thread that runs the given task.
+     *
+     * @throws UnsupportedOperationException if the Java VM does not support virtual threads.
+     * @hide
+     */
+    public static Thread newVirtualThread(String name, Runnable task, Thread.UncaughtExceptionHandler handler) {
+        if (!isVirtualThreadSupported()) {
+            throw new UnsupportedOperationException("Virtual threads are not supported");
+        }
+        try {
+            Object builder = sOfVirtual.invoke(null);
+            builder = sName.invoke(builder, name);
+            if (handler != null) {
+                builder = sUncaughtExceptionHandler.invoke(builder, handler);
+            }
+            return (Thread) sUnstarted.invoke(builder, task);
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported", e);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread, e.g. for
+     * {@link mindroid.os.Binder#Binder(Executor)}.
+     *
+     * @throws UnsupportedOperationException if the Java VM does not support virtual threads.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!isVirtualThreadSupported()) {
+            throw new UnsupportedOperationException("Virtual threads are not supported");
+        }
+        try {
+            return (ExecutorService) sNewVirtualThreadPerTaskExecutor.invoke(null);
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported", e);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     private static class SynchronousExecutor implements Executor {
         @Override
         public void execute(Runnable command) {
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2013 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.util.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An executor that runs the tasks of each key in order, one at a time, while tasks of different
+ * keys run concurrently on a shared executor. At most {@code maxConcurrency} tasks run at the same
+ * time, so several ordered executors can share one thread pool without starving each other.
+ *
+ * <p>
+ * Unlike a {@link mindroid.os.LooperGroup}, keys are not pinned to threads. A slow key only
+ * delays its own tasks. Keys take turns after every task, so a busy key cannot starve the
+ * others.
+ *
+ * <p>
+ * Binder stubs created with an ordered executor process the transactions of each calling process
+ * in order while different callers are served in parallel.
+ *
+ * <pre>
+ *  Binder binder = new Binder(new OrderedExecutor(sharedThreadPool, 4));
+ * </pre>
+ */
+public class OrderedExecutor implements Executor {
+    private final Executor mExecutor;
+    private final int mMaxConcurrency;
+    private final Object mLock = new Object();
+    // Queues of all keys with pending or running tasks.
+    private final HashMap<Object, SerialQueue> mQueues = new HashMap<>();
+    // Queues with pending tasks that are not running, in the order in which they take turns.
+    private final ArrayDeque<SerialQueue> mReadyQueues = new ArrayDeque<>();
+    private final Worker mWorker = new Worker();
+    private int mWorkerCount = 0;
+
+    /**
+     * Creates an ordered executor.
+     *
+     * @param executor The executor that runs the tasks, e.g. a thread pool shared by several
+     * services.
+     * @param maxConcurrency The maximum number of tasks that run at the same time.
+     */
+    public OrderedExecutor(Executor executor, int maxConcurrency) {
+        if (executor == null) {
+            throw new NullPointerException("Executor must not be null");
+        }
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Invalid concurrency: " + maxConcurrency);
+        }
+        mExecutor = executor;
+        mMaxConcurrency = maxConcurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return mMaxConcurrency;
+    }
+
+    /**
+     * Runs a task that does not need to be ordered with respect to any other task.
+     */
+    @Override
+    public void execute(Runnable command) {
+        enqueue(null, command);
+    }
+
+    /**
+     * Runs the task after all previous tasks of the given key have been run.
+     */
+    public void execute(int key, Runnable command) {
+        enqueue(key, command);
+    }
+
+    /**
+     * Runs the task after all previous tasks of the given key have been run.
+     */
+    public void execute(Object key, Runnable command) {
+        if (key == null) {
+            throw new NullPointerException("Key must not be null");
+        }
+        enqueue(key, command);
+    }
+
+    /**
+     * Returns the number of keys with pending or running tasks.
+     */
+    public int getActiveKeyCount() {
+        synchronized (mLock) {
+            return mQueues.size();
+        }
+    }
+
+    private void enqueue(Object key, Runnable command) {
+        if (command == null) {
+            throw new NullPointerException("Runnable must not be null");
+        }
+        final SerialQueue queue;
+        synchronized (mLock) {
+            if (key != null) {
+                SerialQueue q = mQueues.get(key);
+                if (q == null) {
+                    q = new SerialQueue(key);
+                    mQueues.put(key, q);
+                }
+                queue = q;
+            } else {
+                queue = new SerialQueue(null);
+            }
+            queue.mTasks.offer(command);
+            if (!queue.mRunning && queue.mTasks.size() == 1) {
+                mReadyQueues.offer(queue);
+            }
+            if (mWorkerCount >= mMaxConcurrency) {
+                return;
+            }
+            mWorkerCount++;
+        }
+        try {
+            mExecutor.execute(mWorker);
+        } catch (RejectedExecutionException e) {
+            synchronized (mLock) {
+                mWorkerCount--;
+                // Another worker may already have taken the task.
+                if (!queue.mTasks.removeLastOccurrence(command)) {
+                    return;
+                }
+                if (queue.mTasks.isEmpty()) {
+                    mReadyQueues.remove(queue);
+                    if (!queue.mRunning && queue.mKey != null) {
+                        mQueues.remove(queue.mKey);
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static final class SerialQueue {
+        final Object mKey;
+        final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        boolean mRunning = false;
+
+        SerialQueue(Object key) {
+            mKey = key;
+        }
+    }
+
+    /**
+     * Runs ready tasks until there are none left. Up to {@code maxConcurrency} workers are
+     * submitted to the underlying executor, each one gives its thread back when it runs out of
+     * work.
+     */
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                SerialQueue queue;
+                Runnable task;
+                synchronized (mLock) {
+                    queue = mReadyQueues.poll();
+                    if (queue == null) {
+                        mWorkerCount--;
+                        return;
+                    }
+                    task = queue.mTasks.poll();
+                    queue.mRunning = true;
+                }
+
+                boolean completed = false;
+                try {
+                    task.run();
+                    completed = true;
+                } finally {
+                    boolean resubmit = false;
+                    synchronized (mLock) {
+                        queue.mRunning = false;
+                        if (!queue.mTasks.isEmpty()) {
+                            mReadyQueues.offer(queue);
+                        } else if (queue.mKey != null) {
+                            mQueues.remove(queue.mKey);
+                        }
+                        if (!completed) {
+                            // The task has thrown, hand the remaining work over to a new worker.
+                            if (mReadyQueues.isEmpty()) {
+                                mWorkerCount--;
+                            } else {
+                                resubmit = true;
+                            }
+                        }
+                    }
+                    if (resubmit) {
+                        try {
+                            mExecutor.execute(this);
+                        } catch (RejectedExecutionException e) {
+                            synchronized (mLock) {
+                                mWorkerCount--;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
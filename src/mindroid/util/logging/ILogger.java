@@ -158,6 +158,14 @@ public interface ILogger extends IInterface {
         public Promise<String> assumeThat(String tag, String message, long timeout) throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 return mStub.assumeThat(tag, message, timeout);
+            } else if (mStub != null) {
+                Bundle data = new Bundle();
+                data.putString("tag", tag);
+                data.putString("message", message);
+                data.putLong("timeout", timeout);
+                Promise<String> promise = new Promise<>();
+                mStub.transact(Stub.MSG_ASSUME_THAT, 0, null, data, promise, 0);
+                return promise;
             } else {
                 return mProxy.assumeThat(tag, message, timeout);
             }
@@ -166,6 +174,10 @@ public interface ILogger extends IInterface {
         public void mark() throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.mark();
+            } else if (mStub != null) {
+                Promise<Void> promise = new Promise<>();
+                mStub.transact(Stub.MSG_MARK, 0, null, null, promise, 0);
+                Binder.get(promise);
             } else {
                 mProxy.mark();
             }
@@ -174,6 +186,10 @@ public interface ILogger extends IInterface {
         public void reset() throws RemoteException {
             if (mStub != null && mStub.isCurrentThread()) {
                 mStub.reset();
+            } else if (mStub != null) {
+                Promise<Void> promise = new Promise<>();
+                mStub.transact(Stub.MSG_RESET, 0, null, null, promise, 0);
+                Binder.get(promise);
             } else {
                 mProxy.reset();
             }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import mindroid.os.Binder;
+import mindroid.os.IBinder;
+import mindroid.os.Parcel;
+import mindroid.os.RemoteException;
+import mindroid.runtime.system.Runtime;
+import mindroid.util.concurrent.Executors;
+import mindroid.util.concurrent.Promise;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures local binder transactions. The binder runs its transactions synchronously on the
+ * calling thread, so the benchmark covers the whole transaction path including message recycling.
+ * Run with {@code -prof gc}: oneway transactions should not allocate at all, two-way transactions
+ * only allocate their result promise.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinderBenchmark {
+    private static final int MSG_PING = 1;
+
+    private Binder mBinder;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Runtime.start(1, null);
+        mBinder = new Binder(Executors.SYNCHRONOUS_EXECUTOR) {
+            @Override
+            protected void onTransact(int what, Parcel data, Promise<Parcel> result) throws RemoteException {
+                if (result != null) {
+                    result.complete(data);
+                }
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Runtime.shutdown();
+    }
+
+    @Benchmark
+    public Promise<Parcel> onewayTransaction() throws RemoteException {
+        return mBinder.transact(MSG_PING, null, IBinder.FLAG_ONEWAY);
+    }
+
+    @Benchmark
+    public Promise<Parcel> transaction() throws RemoteException {
+        return mBinder.transact(MSG_PING, null, 0);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import mindroid.os.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the array based Bundle with the HashMap based Bundle it has replaced. The hash map
+ * benchmarks reproduce the former Bundle, which boxed every primitive into a new object. Each
+ * Bundle holds a given number of ints, longs, booleans and strings, like the extras of an Intent.
+ * The build benchmarks fill a Bundle and read all values back, the lookup benchmarks only read and
+ * the copy benchmarks copy a Bundle, which shares the mappings of the original until it is
+ * modified. The copyAndPut benchmarks modify the copy. Run with {@code -prof gc} to compare the
+ * memory footprint: the normalized allocation rate of the copyAndPut benchmarks is about the size
+ * of a Bundle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BundleBenchmark {
+    @Param({ "4", "16" })
+    public int mEntries;
+
+    private String[] mKeys;
+    private Bundle mBundle;
+    private HashMapBundle mHashMapBundle;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mKeys = new String[mEntries];
+        for (int i = 0; i < mEntries; i++) {
+            mKeys[i] = "mindroid.intent.extra.KEY_" + i;
+        }
+        mBundle = new Bundle();
+        fill(mBundle);
+        mHashMapBundle = new HashMapBundle();
+        fill(mHashMapBundle);
+    }
+
+    @Benchmark
+    public long build() {
+        Bundle bundle = new Bundle();
+        fill(bundle);
+        return read(bundle);
+    }
+
+    @Benchmark
+    public long buildHashMap() {
+        HashMapBundle bundle = new HashMapBundle();
+        fill(bundle);
+        return read(bundle);
+    }
+
+    @Benchmark
+    public long lookup() {
+        return read(mBundle);
+    }
+
+    @Benchmark
+    public long lookupHashMap() {
+        return read(mHashMapBundle);
+    }
+
+    @Benchmark
+    public Bundle copy() {
+        return new Bundle(mBundle);
+    }
+
+    @Benchmark
+    public HashMapBundle copyHashMap() {
+        return new HashMapBundle(mHashMapBundle);
+    }
+
+    @Benchmark
+    public Bundle copyAndPut() {
+        Bundle bundle = new Bundle(mBundle);
+        bundle.putInt(mKeys[0], 42);
+        return bundle;
+    }
+
+    @Benchmark
+    public HashMapBundle copyAndPutHashMap() {
+        HashMapBundle bundle = new HashMapBundle(mHashMapBundle);
+        bundle.putInt(mKeys[0], 42);
+        return bundle;
+    }
+
+    private void fill(Bundle bundle) {
+        for (int i = 0; i < mKeys.length; i++) {
+            switch (i % 4) {
+            case 0:
+                bundle.putInt(mKeys[i], 1000 + i);
+                break;
+            case 1:
+                bundle.putLong(mKeys[i], 4711L * i);
+                break;
+            case 2:
+                bundle.putBoolean(mKeys[i], true);
+                break;
+            default:
+                bundle.putString(mKeys[i], mKeys[i]);
+                break;
+            }
+        }
+    }
+
+    private long read(Bundle bundle) {
+        long result = 0;
+        for (int i = 0; i < mKeys.length; i++) {
+            switch (i % 4) {
+            case 0:
+                result += bundle.getInt(mKeys[i]);
+                break;
+            case 1:
+                result += bundle.getLong(mKeys[i]);
+                break;
+            case 2:
+                result += bundle.getBoolean(mKeys[i]) ? 1 : 0;
+                break;
+            default:
+                result += bundle.getString(mKeys[i]).length();
+                break;
+            }
+        }
+        return result;
+    }
+
+    private void fill(HashMapBundle bundle) {
+        for (int i = 0; i < mKeys.length; i++) {
+            switch (i % 4) {
+            case 0:
+                bundle.putInt(mKeys[i], 1000 + i);
+                break;
+            case 1:
+                bundle.putLong(mKeys[i], 4711L * i);
+                break;
+            case 2:
+                bundle.putBoolean(mKeys[i], true);
+                break;
+            default:
+                bundle.putString(mKeys[i], mKeys[i]);
+                break;
+            }
+        }
+    }
+
+    private long read(HashMapBundle bundle) {
+        long result = 0;
+        for (int i = 0; i < mKeys.length; i++) {
+            switch (i % 4) {
+            case 0:
+                result += bundle.getInt(mKeys[i]);
+                break;
+            case 1:
+                result += bundle.getLong(mKeys[i]);
+                break;
+            case 2:
+                result += bundle.getBoolean(mKeys[i]) ? 1 : 0;
+                break;
+            default:
+                result += bundle.getString(mKeys[i]).length();
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The storage of the former Bundle.
+     */
+    public static final class HashMapBundle {
+        private final HashMap<String, Object> mMap;
+
+        HashMapBundle() {
+            mMap = new HashMap<>();
+        }
+
+        HashMapBundle(HashMapBundle other) {
+            mMap = new HashMap<>();
+            mMap.putAll(other.mMap);
+        }
+
+        void putBoolean(String key, boolean value) {
+            mMap.put(key, new Boolean(value));
+        }
+
+        void putInt(String key, int value) {
+            mMap.put(key, new Integer(value));
+        }
+
+        void putLong(String key, long value) {
+            mMap.put(key, new Long(value));
+        }
+
+        void putString(String key, String value) {
+            if (value != null) {
+                mMap.put(key, value);
+            }
+        }
+
+        boolean getBoolean(String key) {
+            Object o = mMap.get(key);
+            return (o instanceof Boolean) ? ((Boolean) o).booleanValue() : false;
+        }
+
+        int getInt(String key) {
+            Object o = mMap.get(key);
+            return (o instanceof Integer) ? ((Integer) o).intValue() : 0;
+        }
+
+        long getLong(String key) {
+            Object o = mMap.get(key);
+            return (o instanceof Long) ? ((Long) o).longValue() : 0L;
+        }
+
+        String getString(String key) {
+            Object o = mMap.get(key);
+            return (o instanceof String) ? (String) o : null;
+        }
+    }
+}
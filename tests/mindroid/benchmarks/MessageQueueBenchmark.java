@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import mindroid.os.Handler;
+import mindroid.os.Looper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of removing and looking up messages of one handler while the message queue
+ * holds a given number of pending messages of another handler. The looper is never started, so
+ * all messages stay in the queue.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageQueueBenchmark {
+    private static final int MSG_DEBOUNCE = 1;
+    private static final long TIMEOUT = 60000;
+
+    @Param({ "0", "100", "10000" })
+    public int pendingMessages;
+
+    private Handler mHandler;
+    private Handler mOtherHandler;
+    private final Runnable mRunnable = () -> {};
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mHandler = new Handler();
+        mOtherHandler = new Handler();
+        for (int i = 0; i < pendingMessages; i++) {
+            if ((i & 1) == 0) {
+                mOtherHandler.sendEmptyMessageDelayed(i % 100, TIMEOUT + i);
+            } else {
+                mOtherHandler.postDelayed(() -> {}, TIMEOUT + i);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mHandler.removeCallbacksAndMessages(null);
+        mOtherHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Benchmark
+    public boolean debounceMessage() {
+        mHandler.removeMessages(MSG_DEBOUNCE);
+        return mHandler.sendEmptyMessageDelayed(MSG_DEBOUNCE, TIMEOUT);
+    }
+
+    @Benchmark
+    public Runnable debounceCallback() {
+        mHandler.removeCallbacks(mRunnable);
+        return mHandler.postDelayed(mRunnable, TIMEOUT);
+    }
+
+    @Benchmark
+    public boolean coalesceMessage() {
+        return mHandler.sendEmptyMessageCoalesced(MSG_DEBOUNCE, TIMEOUT, Handler.COALESCE_KEEP_LATER_TIME);
+    }
+
+    @Benchmark
+    public Runnable coalesceCallback() {
+        return mHandler.postCoalesced(mRunnable, TIMEOUT, Handler.COALESCE_KEEP_LATER_TIME);
+    }
+
+    @Benchmark
+    public boolean hasMessages() {
+        return mHandler.hasMessages(MSG_DEBOUNCE);
+    }
+
+    @Benchmark
+    public boolean removeCallbacksAndMessages() {
+        mHandler.sendEmptyMessageDelayed(MSG_DEBOUNCE, TIMEOUT);
+        return mHandler.removeCallbacksAndMessages(null);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import mindroid.io.ByteArrayInputStream;
+import mindroid.io.ByteArrayOutputStream;
+import mindroid.io.DataInputStream;
+import mindroid.io.DataOutputStream;
+import mindroid.os.Parcel;
+import mindroid.os.RemoteException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the pooled ByteBuffer parcel with the stream based engine it has replaced. The stream
+ * benchmarks reproduce the former parcel: a DataOutputStream on a ByteArrayOutputStream for
+ * writing and a DataInputStream on a ByteArrayInputStream for reading. Each operation writes and
+ * reads a small message of a few primitives and a string, a large message of 64 KB, a string
+ * of about 4 KB or a sensor frame of 100k doubles. Run with {@code -prof gc} to compare the allocation rates. The compact
+ * benchmark measures the cost of the varint encoding of the compact parcel format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParcelBenchmark {
+    @Param({ "small", "large", "string", "doubles" })
+    public String mPayload;
+
+    private final byte[] mLargePayload = new byte[64 * 1024];
+    private final String mStringPayload = "mindroid://1.42/if=examples/eliza/IEliza ".repeat(100);
+    private final double[] mDoublesPayload = new double[100_000];
+
+    @Benchmark
+    public long parcel() throws RemoteException {
+        Parcel parcel = Parcel.obtain();
+        write(parcel);
+        parcel.asInput();
+        long result = read(parcel);
+        parcel.recycle();
+        return result;
+    }
+
+    @Benchmark
+    public long parcelWithoutRecycling() throws RemoteException {
+        Parcel parcel = Parcel.obtain();
+        write(parcel);
+        parcel.asInput();
+        return read(parcel);
+    }
+
+    @Benchmark
+    public long compactParcel() throws RemoteException {
+        Parcel parcel = Parcel.obtainCompact();
+        write(parcel);
+        parcel.asInput();
+        long result = read(parcel);
+        parcel.recycle();
+        return result;
+    }
+
+    @Benchmark
+    public long streams() throws RemoteException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        try {
+            if (mPayload.equals("small")) {
+                dataOutputStream.writeInt(42);
+                dataOutputStream.writeLong(4711L);
+                dataOutputStream.writeBoolean(true);
+                dataOutputStream.writeUTF("Hello Mindroid");
+            } else if (mPayload.equals("string")) {
+                dataOutputStream.writeUTF(mStringPayload);
+            } else if (mPayload.equals("doubles")) {
+                dataOutputStream.writeInt(mDoublesPayload.length);
+                for (double value : mDoublesPayload) {
+                    dataOutputStream.writeDouble(value);
+                }
+            } else {
+                dataOutputStream.writeInt(mLargePayload.length);
+                dataOutputStream.write(mLargePayload);
+            }
+            ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.getByteArray(), 0, outputStream.size());
+            DataInputStream dataInputStream = new DataInputStream(inputStream);
+            if (mPayload.equals("small")) {
+                return dataInputStream.readInt() + dataInputStream.readLong() + (dataInputStream.readBoolean() ? 1 : 0) + dataInputStream.readUTF().length();
+            } else if (mPayload.equals("string")) {
+                return dataInputStream.readUTF().length();
+            } else if (mPayload.equals("doubles")) {
+                double[] data = new double[dataInputStream.readInt()];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = dataInputStream.readDouble();
+                }
+                return data.length;
+            } else {
+                byte[] data = new byte[dataInputStream.readInt()];
+                dataInputStream.readFully(data);
+                return data.length;
+            }
+        } catch (IOException e) {
+            throw new RemoteException(e);
+        }
+    }
+
+    private void write(Parcel parcel) throws RemoteException {
+        if (mPayload.equals("small")) {
+            parcel.putInt(42);
+            parcel.putLong(4711L);
+            parcel.putBoolean(true);
+            parcel.putString("Hello Mindroid");
+        } else if (mPayload.equals("string")) {
+            parcel.putString(mStringPayload);
+        } else if (mPayload.equals("doubles")) {
+            parcel.putDoubleArray(mDoublesPayload);
+        } else {
+            parcel.putInt(mLargePayload.length);
+            parcel.putBytes(mLargePayload);
+        }
+    }
+
+    private long read(Parcel parcel) throws RemoteException {
+        if (mPayload.equals("small")) {
+            return parcel.getInt() + parcel.getLong() + (parcel.getBoolean() ? 1 : 0) + parcel.getString().length();
+        } else if (mPayload.equals("string")) {
+            return parcel.getString().length();
+        } else if (mPayload.equals("doubles")) {
+            return parcel.getDoubleArray().length;
+        } else {
+            return parcel.getBytes(parcel.getInt()).length;
+        }
+    }
+}
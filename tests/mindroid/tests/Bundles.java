@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import mindroid.os.Bundle;
+import mindroid.os.Parcel;
+
+/**
+ * Copies of a Bundle share its mappings until either of them is modified.
+ */
+public class Bundles {
+    @Test
+    void testCopyIsIndependent() {
+        Bundle original = newBundle();
+        Bundle copy = new Bundle(original);
+        assertBundle(copy);
+
+        copy.putInt("int", 2);
+        copy.putString("added", "copy");
+        copy.remove("string");
+        assertBundle(original);
+        assertFalse(original.containsKey("added"));
+        assertEquals(2, copy.getInt("int"));
+        assertEquals("copy", copy.getString("added"));
+        assertFalse(copy.containsKey("string"));
+        assertEquals(42L, copy.getLong("long"));
+    }
+
+    @Test
+    void testOriginalIsIndependent() {
+        Bundle original = newBundle();
+        Bundle copy = (Bundle) original.clone();
+        Bundle emptyCopy = new Bundle().putAll(original);
+
+        original.putDouble("double", 2.0);
+        original.remove("long");
+        assertBundle(copy);
+        assertBundle(emptyCopy);
+        assertEquals(2.0, original.getDouble("double"));
+        assertFalse(original.containsKey("long"));
+
+        original.clear();
+        assertTrue(original.isEmpty());
+        assertBundle(copy);
+    }
+
+    @Test
+    void testCopiesOfCopies() {
+        Bundle original = newBundle();
+        Bundle copy1 = new Bundle(original);
+        Bundle copy2 = new Bundle(copy1);
+        copy1.putInt("int", 2);
+        copy2.putInt("int", 3);
+        assertEquals(1, original.getInt("int"));
+        assertEquals(2, copy1.getInt("int"));
+        assertEquals(3, copy2.getInt("int"));
+        assertEquals("Hello", copy2.getString("string"));
+    }
+
+    @Test
+    void testParcelRoundTrip() {
+        try {
+            for (boolean compact : new boolean[] { false, true }) {
+                Bundle original = newBundle();
+                Bundle copy = new Bundle(original);
+                Parcel parcel = compact ? Parcel.obtainCompact() : Parcel.obtain();
+                parcel.putBundle(copy);
+                copy.putInt("int", 2);
+                parcel.asInput();
+                Bundle bundle = parcel.getBundle();
+                assertBundle(bundle);
+                assertBundle(original);
+                bundle.putInt("int", 3);
+                assertEquals(2, copy.getInt("int"));
+                parcel.recycle();
+            }
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private static Bundle newBundle() {
+        return new Bundle()
+                .putInt("int", 1)
+                .putLong("long", 42L)
+                .putDouble("double", 1.5)
+                .putBoolean("boolean", true)
+                .putString("string", "Hello")
+                .putIntArray("array", new int[] { 1, 2, 3 });
+    }
+
+    private static void assertBundle(Bundle bundle) {
+        assertEquals(6, bundle.size());
+        assertEquals(1, bundle.getInt("int"));
+        assertEquals(42L, bundle.getLong("long"));
+        assertEquals(1.5, bundle.getDouble("double"));
+        assertTrue(bundle.getBoolean("boolean"));
+        assertEquals("Hello", bundle.getString("string"));
+        assertArrayEquals(new int[] { 1, 2, 3 }, bundle.getIntArray("array"));
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import mindroid.os.Handler;
+import mindroid.os.HandlerThread;
+import mindroid.os.Message;
+import mindroid.os.MessageQueue;
+import mindroid.os.SystemClock;
+
+/**
+ * Dispatch order and bookkeeping of the pending messages of a looper.
+ */
+public class MessageQueues {
+    private static final long TIMEOUT = 10000;
+
+    private HandlerThread mThread;
+    private TestHandler mHandler;
+
+    @BeforeEach
+    public void setUp() {
+        mThread = new HandlerThread("MessageQueues");
+        mThread.start();
+        mHandler = new TestHandler(mThread);
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        mThread.quit();
+        mThread.join(TIMEOUT);
+    }
+
+    @Test
+    void testFifoOrder() {
+        // Messages with the same delivery time are dispatched in the order in which they were sent.
+        try {
+            final long when = SystemClock.uptimeMillis();
+            CountDownLatch gate = block();
+            for (int i = 1; i <= 3; i++) {
+                assertTrue(mHandler.sendEmptyMessageAtTime(i, when));
+            }
+            for (int i = 4; i <= 6; i++) {
+                assertTrue(mHandler.sendEmptyMessageAtTime(i, when + 100));
+            }
+            mHandler.expect(6);
+            gate.countDown();
+            assertEquals(List.of(1, 2, 3, 4, 5, 6), mHandler.await());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testDueMessageOvertakesDelayedMessages() {
+        try {
+            mHandler.expect(3);
+            assertTrue(mHandler.sendEmptyMessageDelayed(1, 200));
+            assertTrue(mHandler.sendEmptyMessageDelayed(2, 100));
+            assertTrue(mHandler.sendEmptyMessage(3));
+            assertEquals(List.of(3, 2, 1), mHandler.await());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testPastDeliveryTimes() {
+        // Messages sent for a time in the past are due right away, but still dispatched in time order.
+        try {
+            final long now = SystemClock.uptimeMillis();
+            CountDownLatch gate = block();
+            assertTrue(mHandler.sendEmptyMessageAtTime(1, now - 10));
+            assertTrue(mHandler.sendEmptyMessageAtTime(2, now - 30));
+            assertTrue(mHandler.sendEmptyMessageAtTime(3, now - 20));
+            mHandler.expect(3);
+            gate.countDown();
+            assertEquals(List.of(2, 3, 1), mHandler.await());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testQuitWhileSending() {
+        // Messages that are sent while the looper quits are either accepted or rejected. Rejected
+        // messages are never dispatched, and once a message has been rejected, all later ones are.
+        try {
+            Set<Integer> dispatchedMessages = ConcurrentHashMap.newKeySet();
+            Set<Integer> rejectedMessages = ConcurrentHashMap.newKeySet();
+            Set<Integer> acceptedMessages = ConcurrentHashMap.newKeySet();
+            Handler handler = new Handler(mThread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    dispatchedMessages.add(msg.what);
+                }
+            };
+            Thread[] producers = new Thread[4];
+            for (int i = 0; i < producers.length; i++) {
+                final int offset = i * 10000000;
+                producers[i] = new Thread(() -> {
+                    for (int what = offset; what < offset + 10000000; what++) {
+                        if (!handler.sendEmptyMessage(what)) {
+                            rejectedMessages.add(what);
+                            if (handler.sendEmptyMessage(what + 1)) {
+                                acceptedMessages.add(what + 1);
+                            }
+                            return;
+                        }
+                    }
+                }, "MessageQueuesProducer");
+                producers[i].start();
+            }
+            Thread.sleep(5);
+            mThread.quit();
+            for (Thread producer : producers) {
+                producer.join(TIMEOUT);
+            }
+            mThread.join(TIMEOUT);
+            assertFalse(mThread.isAlive());
+            assertEquals(producers.length, rejectedMessages.size());
+            assertTrue(acceptedMessages.isEmpty(), "Messages accepted after quit: " + acceptedMessages);
+            for (int what : rejectedMessages) {
+                assertFalse(dispatchedMessages.contains(what), "Message " + what + " dispatched after it was rejected");
+            }
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testBatches() {
+        // Messages of a batch keep their order and are claimed when the batch is detached, so
+        // removing them while the batch is dispatched has no effect on them.
+        try {
+            mThread.getLooper().setBatchSize(4);
+            List<Integer> messages = new ArrayList<>();
+            boolean[] results = new boolean[4];
+            CountDownLatch latch = new CountDownLatch(5);
+            Handler handler = new Handler(mThread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    messages.add(msg.what);
+                    if (msg.what == 1) {
+                        results[0] = hasMessages(2);
+                        results[1] = removeMessages(2);
+                        results[2] = hasMessages(6);
+                        results[3] = removeMessages(6);
+                    }
+                    latch.countDown();
+                }
+            };
+            CountDownLatch gate = block();
+            for (int i = 1; i <= 6; i++) {
+                assertTrue(handler.sendEmptyMessage(i));
+            }
+            gate.countDown();
+            assertTrue(latch.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            // The first batch is 1 to 4, message 6 is still pending.
+            assertFalse(results[0]);
+            assertFalse(results[1]);
+            assertTrue(results[2]);
+            assertTrue(results[3]);
+            mHandler.expect(1);
+            assertTrue(mHandler.sendEmptyMessage(7));
+            mHandler.await();
+            assertEquals(List.of(1, 2, 3, 4, 5), messages);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testIndexedMessages() {
+        try {
+            final Object token = new Object();
+            final Runnable runnable = () -> { };
+            CountDownLatch gate = block();
+            // Due and delayed messages, with and without the token.
+            assertTrue(mHandler.sendEmptyMessage(1));
+            assertTrue(mHandler.sendMessageDelayed(mHandler.obtainMessage(1, token), TIMEOUT));
+            assertTrue(mHandler.sendEmptyMessageDelayed(2, TIMEOUT));
+            assertTrue(mHandler.sendMessage(mHandler.obtainMessage(3, token)));
+            assertNotNull(mHandler.post(runnable));
+            assertNotNull(mHandler.postAtTime(runnable, token, SystemClock.uptimeMillis() + TIMEOUT));
+
+            assertTrue(mHandler.hasMessages(1));
+            assertTrue(mHandler.hasMessages(1, token));
+            assertFalse(mHandler.hasMessages(2, token));
+            assertFalse(mHandler.hasMessages(4));
+            assertTrue(mHandler.hasCallbacks(runnable));
+
+            assertTrue(mHandler.removeMessages(1, token));
+            assertFalse(mHandler.hasMessages(1, token));
+            assertTrue(mHandler.hasMessages(1));
+            assertFalse(mHandler.removeMessages(4));
+
+            assertTrue(mHandler.removeCallbacks(runnable, token));
+            assertTrue(mHandler.hasCallbacks(runnable));
+
+            assertTrue(mHandler.removeCallbacksAndMessages(token));
+            assertFalse(mHandler.hasMessages(3));
+            assertTrue(mHandler.hasMessages(1));
+            assertTrue(mHandler.hasMessages(2));
+
+            assertTrue(mHandler.removeCallbacksAndMessages(null));
+            assertFalse(mHandler.hasMessages(1));
+            assertFalse(mHandler.hasMessages(2));
+            assertFalse(mHandler.hasCallbacks(runnable));
+            assertFalse(mHandler.removeCallbacksAndMessages(null));
+
+            // None of the removed messages is dispatched.
+            assertTrue(mHandler.sendEmptyMessage(5));
+            mHandler.expect(1);
+            gate.countDown();
+            assertEquals(List.of(5), mHandler.await());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testManyWhatCodes() {
+        // Enough what codes to grow the index of the handler, and to purge its empty buckets.
+        try {
+            final int[] whats = new int[100];
+            for (int i = 0; i < whats.length; i++) {
+                whats[i] = (i % 2 == 0) ? i * 65536 : -i;
+            }
+            CountDownLatch gate = block();
+            for (int round = 0; round < 3; round++) {
+                for (int what : whats) {
+                    assertTrue(mHandler.sendEmptyMessageDelayed(what + round * 1000, TIMEOUT));
+                }
+                for (int i = 0; i < whats.length; i++) {
+                    assertTrue(mHandler.hasMessages(whats[i] + round * 1000));
+                    if (i % 3 != 0) {
+                        assertTrue(mHandler.removeMessages(whats[i] + round * 1000));
+                        assertFalse(mHandler.hasMessages(whats[i] + round * 1000));
+                    }
+                }
+            }
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < whats.length; i++) {
+                    assertEquals(i % 3 == 0, mHandler.hasMessages(whats[i] + round * 1000));
+                }
+            }
+            assertTrue(mHandler.removeCallbacksAndMessages(null));
+            for (int what : whats) {
+                assertFalse(mHandler.hasMessages(what));
+            }
+            gate.countDown();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testRejectPolicy() {
+        try {
+            mThread.getLooper().getQueue().setCapacity(2, MessageQueue.OVERLOAD_POLICY_REJECT, 0);
+            CountDownLatch gate = block();
+            assertTrue(mHandler.sendEmptyMessage(1));
+            assertTrue(mHandler.sendEmptyMessageDelayed(2, 100));
+            assertFalse(mHandler.sendEmptyMessage(3));
+            assertEquals(2, mThread.getLooper().getQueue().size());
+            mHandler.expect(2);
+            gate.countDown();
+            assertEquals(List.of(1, 2), mHandler.await());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testBlockPolicy() {
+        try {
+            mThread.getLooper().getQueue().setCapacity(1, MessageQueue.OVERLOAD_POLICY_BLOCK, TIMEOUT);
+            CountDownLatch gate = block();
+            assertTrue(mHandler.sendEmptyMessage(1));
+            boolean[] sent = new boolean[1];
+            Thread producer = new Thread(() -> sent[0] = mHandler.sendEmptyMessage(2), "MessageQueuesProducer");
+            producer.start();
+            producer.join(100);
+            assertTrue(producer.isAlive());
+            mHandler.expect(2);
+            gate.countDown();
+            producer.join(TIMEOUT);
+            assertTrue(sent[0]);
+            assertEquals(List.of(1, 2), mHandler.await());
+
+            // The producer gives up after the timeout.
+            mThread.getLooper().getQueue().setCapacity(1, MessageQueue.OVERLOAD_POLICY_BLOCK, 50);
+            gate = block();
+            assertTrue(mHandler.sendEmptyMessage(3));
+            assertFalse(mHandler.sendEmptyMessage(4));
+            gate.countDown();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testDropOldestPolicy() {
+        try {
+            mThread.getLooper().getQueue().setCapacity(2, MessageQueue.OVERLOAD_POLICY_DROP_OLDEST, 0);
+            CountDownLatch gate = block();
+            for (int i = 1; i <= 3; i++) {
+                assertTrue(mHandler.sendMessage(mHandler.obtainMessage(1, i, 0)));
+            }
+            // There is no pending message of the same what code to drop.
+            assertFalse(mHandler.sendEmptyMessage(2));
+            mHandler.expect(2);
+            gate.countDown();
+            assertEquals(List.of(1, 1), mHandler.await());
+            assertEquals(List.of(2, 3), mHandler.getArguments());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testCoalescePolicy() {
+        try {
+            mThread.getLooper().getQueue().setCapacity(2, MessageQueue.OVERLOAD_POLICY_COALESCE, 0);
+            CountDownLatch gate = block();
+            assertTrue(mHandler.sendMessage(mHandler.obtainMessage(1, 1, 0)));
+            assertTrue(mHandler.sendMessage(mHandler.obtainMessage(2, 1, 0)));
+            assertTrue(mHandler.sendMessage(mHandler.obtainMessage(1, 2, 0)));
+            assertFalse(mHandler.sendEmptyMessage(3));
+            mHandler.expect(2);
+            gate.countDown();
+            assertEquals(List.of(1, 2), mHandler.await());
+            assertEquals(List.of(2, 1), mHandler.getArguments());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testWatermarks() {
+        try {
+            CountDownLatch highWatermark = new CountDownLatch(1);
+            CountDownLatch lowWatermark = new CountDownLatch(1);
+            MessageQueue queue = mThread.getLooper().getQueue();
+            queue.setWatermarks(3, 1, new MessageQueue.OnWatermarkListener() {
+                @Override
+                public void onHighWatermark(MessageQueue messageQueue) {
+                    highWatermark.countDown();
+                }
+
+                @Override
+                public void onLowWatermark(MessageQueue messageQueue) {
+                    lowWatermark.countDown();
+                }
+            });
+            CountDownLatch gate = block();
+            assertTrue(mHandler.sendEmptyMessage(1));
+            assertTrue(mHandler.sendEmptyMessage(2));
+            assertEquals(1, highWatermark.getCount());
+            // The producer whose message reaches the high watermark is notified.
+            assertTrue(mHandler.sendEmptyMessage(3));
+            assertEquals(0, highWatermark.getCount());
+            assertEquals(1, lowWatermark.getCount());
+            mHandler.expect(3);
+            gate.countDown();
+            assertTrue(lowWatermark.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertEquals(List.of(1, 2, 3), mHandler.await());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testCoalescingKeepsEarlierTime() {
+        try {
+            CountDownLatch gate = block();
+            assertTrue(mHandler.sendMessageCoalesced(mHandler.obtainMessage(1, 1, 0), TIMEOUT, Handler.COALESCE_KEEP_EARLIER_TIME));
+            assertTrue(mHandler.sendMessageCoalesced(mHandler.obtainMessage(1, 2, 0), 0, Handler.COALESCE_KEEP_EARLIER_TIME));
+            mHandler.expect(1);
+            gate.countDown();
+            // The message is dispatched right away with the arguments of the most recent one.
+            assertEquals(List.of(1), mHandler.await(TIMEOUT / 2));
+            assertEquals(List.of(2), mHandler.getArguments());
+            assertFalse(mHandler.hasMessages(1));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testCoalescingKeepsLaterTime() {
+        try {
+            final long delay = 100;
+            CountDownLatch gate = block();
+            final long startTime = SystemClock.uptimeMillis();
+            assertTrue(mHandler.sendMessageCoalesced(mHandler.obtainMessage(1, 1, 0), 0, Handler.COALESCE_KEEP_LATER_TIME));
+            assertTrue(mHandler.sendMessageCoalesced(mHandler.obtainMessage(1, 2, 0), delay, Handler.COALESCE_KEEP_LATER_TIME));
+            mHandler.expect(1);
+            gate.countDown();
+            assertEquals(List.of(1), mHandler.await());
+            assertTrue(mHandler.mDispatchTime - startTime >= delay);
+            assertEquals(List.of(2), mHandler.getArguments());
+            assertFalse(mHandler.hasMessages(1));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testNanosecondOrder() {
+        // Delivery times within the same millisecond keep their order.
+        try {
+            final long when = SystemClock.uptimeNanos() + TimeUnit.MILLISECONDS.toNanos(50);
+            mHandler.expect(5);
+            for (int i = 1; i <= 5; i++) {
+                assertTrue(mHandler.sendMessageAtTimeNanos(mHandler.obtainMessage(i), when + 5 - i));
+            }
+            assertEquals(List.of(5, 4, 3, 2, 1), mHandler.await());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Blocks the looper thread until the returned latch is counted down, so that the messages sent
+     * in the meantime stay pending.
+     */
+    private CountDownLatch block() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        mHandler.post(() -> {
+            blocked.countDown();
+            try {
+                gate.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignore) {
+            }
+        });
+        assertTrue(blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        return gate;
+    }
+
+    private static class TestHandler extends Handler {
+        private final List<Integer> mMessages = new ArrayList<>();
+        private final List<Integer> mArguments = new ArrayList<>();
+        private volatile CountDownLatch mLatch = new CountDownLatch(0);
+        volatile long mDispatchTime;
+
+        TestHandler(HandlerThread thread) {
+            super(thread.getLooper());
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            mDispatchTime = SystemClock.uptimeMillis();
+            synchronized (mMessages) {
+                mMessages.add(msg.what);
+                mArguments.add(msg.arg1);
+            }
+            mLatch.countDown();
+        }
+
+        void expect(int count) {
+            synchronized (mMessages) {
+                mMessages.clear();
+                mArguments.clear();
+            }
+            mLatch = new CountDownLatch(count);
+        }
+
+        List<Integer> await() throws InterruptedException {
+            return await(TIMEOUT);
+        }
+
+        List<Integer> await(long timeout) throws InterruptedException {
+            assertTrue(mLatch.await(timeout, TimeUnit.MILLISECONDS));
+            synchronized (mMessages) {
+                return new ArrayList<>(mMessages);
+            }
+        }
+
+        List<Integer> getArguments() {
+            synchronized (mMessages) {
+                return new ArrayList<>(mArguments);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import mindroid.runtime.system.io.SharedMemoryAddress;
+import mindroid.runtime.system.io.SharedMemoryServerSocket;
+import mindroid.runtime.system.io.SharedMemorySocket;
+
+/**
+ * Round trips through the rings of two shared memory channels, each echoed by its own server
+ * thread.
+ */
+public class SharedMemoryChannels {
+    private static final int TIMEOUT = 10000;
+
+    private Path mDirectory;
+    private SharedMemoryServerSocket mServerSocket;
+    private Thread mServerThread;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("mindroid-shm");
+        mServerSocket = new SharedMemoryServerSocket();
+        mServerSocket.bind(new SharedMemoryAddress(mDirectory));
+        mServerThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = mServerSocket.accept();
+                    Thread thread = new Thread(() -> echo(socket), "SharedMemoryEcho");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException ignore) {
+                // The server socket has been closed.
+            }
+        }, "SharedMemoryServer");
+        mServerThread.setDaemon(true);
+        mServerThread.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException, InterruptedException {
+        mServerSocket.close();
+        mServerThread.join(TIMEOUT);
+        try (Stream<Path> paths = Files.list(mDirectory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+        Files.deleteIfExists(mDirectory);
+    }
+
+    @Test
+    void testRoundTrips() {
+        try (Socket socket1 = connect(); Socket socket2 = connect()) {
+            // Both directions of both channels wrap around their rings several times.
+            for (int size : new int[] { 1, 100, 64 * 1024, 3 * 1024 * 1024 + 7 }) {
+                roundTrip(socket1, size);
+                roundTrip(socket2, size);
+            }
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testRoundTripAfterIdleTime() {
+        try (Socket socket = connect()) {
+            roundTrip(socket, 100);
+            // The reading sides are idle after about a second and park for longer.
+            Thread.sleep(1500);
+            roundTrip(socket, 100);
+            roundTrip(socket, 100);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testEndOfStream() {
+        try (Socket socket = connect()) {
+            roundTrip(socket, 100);
+            socket.shutdownOutput();
+            assertEquals(-1, socket.getInputStream().read());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testHalfClose() {
+        // The server still sends its data after the client has shut down its output.
+        try (Socket socket = connect()) {
+            byte[] payload = new byte[64 * 1024 + 1];
+            new Random(payload.length).nextBytes(payload);
+            socket.getOutputStream().write(payload);
+            socket.shutdownOutput();
+            byte[] echo = new byte[payload.length];
+            new DataInputStream(socket.getInputStream()).readFully(echo);
+            assertArrayEquals(payload, echo);
+            assertEquals(-1, socket.getInputStream().read());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private Socket connect() throws IOException {
+        SharedMemorySocket socket = new SharedMemorySocket();
+        socket.connect(new SharedMemoryAddress(mDirectory), TIMEOUT);
+        return socket;
+    }
+
+    private static void roundTrip(Socket socket, int size) throws Exception {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        // Write from another thread, so that payloads larger than the rings do not block.
+        Thread writer = new Thread(() -> {
+            try {
+                OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(payload);
+                outputStream.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "SharedMemoryWriter");
+        writer.start();
+        byte[] echo = new byte[size];
+        new DataInputStream(socket.getInputStream()).readFully(echo);
+        writer.join(TIMEOUT);
+        assertArrayEquals(payload, echo);
+    }
+
+    private static void echo(Socket socket) {
+        try (Socket s = socket) {
+            InputStream inputStream = s.getInputStream();
+            OutputStream outputStream = s.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int size;
+            while ((size = inputStream.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, size);
+                if (inputStream.available() == 0) {
+                    outputStream.flush();
+                }
+            }
+            outputStream.flush();
+            s.shutdownOutput();
+        } catch (IOException ignore) {
+            // The client has closed the connection.
+        }
+    }
+}
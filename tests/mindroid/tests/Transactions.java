@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2018 Daniel Himmelein
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mindroid.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import mindroid.os.Binder;
+import mindroid.os.Bundle;
+import mindroid.os.HandlerThread;
+import mindroid.os.IBinder;
+import mindroid.os.Parcel;
+import mindroid.os.RemoteException;
+import mindroid.testing.IntegrationTest;
+import mindroid.util.concurrent.ExecutionException;
+import mindroid.util.concurrent.Promise;
+
+/**
+ * Round trips through the mindroid plugin. The proxy refers to a binder of this node by its
+ * remote URI, so each transaction is sent over a connection to the server of this node, see
+ * res/MindroidRuntimeSystem.xml.
+ */
+public class Transactions extends IntegrationTest {
+    private static final String INTERFACE = "mindroid/tests/ITransactions";
+    private static final String SERVER_HOST = "localhost";
+    private static final int SERVER_PORT = 12345;
+    private static final long TIMEOUT = 10000;
+    private static final int MSG_ECHO = 1;
+    private static final int MSG_STREAM = 2;
+    private static final int MSG_IGNORE_STREAM = 3;
+    private static final int MSG_FAIL = 4;
+    private static final int MSG_COUNT = 5;
+
+    private static HandlerThread sThread;
+    private static TestBinder sBinder;
+    private static IBinder sProxy;
+
+    @BeforeAll
+    public static void setUpBinder() {
+        sThread = new HandlerThread("Transactions");
+        sThread.start();
+        sBinder = new TestBinder(sThread);
+        sProxy = new Binder.Proxy(URI.create(sBinder.getUri() + "/if=" + INTERFACE));
+    }
+
+    @AfterAll
+    public static void tearDownBinder() {
+        sProxy.dispose();
+        sBinder.dispose();
+        sThread.quit();
+    }
+
+    @Test
+    void testTransaction() {
+        try {
+            for (boolean compact : new boolean[] { false, true }) {
+                Parcel data = compact ? Parcel.obtainCompact() : Parcel.obtain();
+                data.putString("Hello");
+                data.putInt(42);
+                Parcel reply = sProxy.transact(MSG_ECHO, data, 0).get(TIMEOUT);
+                assertEquals(compact, reply.isCompact());
+                assertEquals("Hello", reply.getString());
+                assertEquals(42, reply.getInt());
+            }
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testRepeatedHeaders() {
+        // The URI and the exception class name are sent once and then referenced by the headers.
+        try {
+            for (int i = 0; i < 10; i++) {
+                Parcel data = Parcel.obtain();
+                data.putString("Message " + i);
+                data.putInt(i);
+                Parcel reply = sProxy.transact(MSG_ECHO, data, 0).get(TIMEOUT);
+                assertEquals("Message " + i, reply.getString());
+                assertEquals(i, reply.getInt());
+
+                ExecutionException e = assertThrows(ExecutionException.class, () -> sProxy.transact(MSG_FAIL, Parcel.obtain(), 0).get(TIMEOUT));
+                assertTrue(hasCause(e, IllegalStateException.class), e.toString());
+            }
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testPlainHeaders() {
+        // A client that does not announce its capabilities gets replies without the dictionary.
+        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT)) {
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            final String uri = sProxy.getUri().toString();
+            for (int i = 1; i <= 3; i++) {
+                Parcel data = Parcel.obtain();
+                data.putString("Hello");
+                data.putInt(i);
+                byte[] bytes = data.getByteArray();
+                outputStream.writeInt(1);
+                outputStream.writeUTF(uri);
+                outputStream.writeInt(i);
+                outputStream.writeInt(MSG_ECHO);
+                outputStream.writeInt(bytes.length);
+                outputStream.write(bytes);
+                outputStream.flush();
+
+                assertEquals(1, inputStream.readInt());
+                assertEquals(uri, inputStream.readUTF());
+                assertEquals(i, inputStream.readInt());
+                assertEquals(MSG_ECHO, inputStream.readInt());
+                byte[] buffer = new byte[inputStream.readInt()];
+                inputStream.readFully(buffer);
+                Parcel reply = Parcel.obtain(buffer);
+                assertEquals("Hello", reply.getString());
+                assertEquals(i, reply.getInt());
+            }
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testLightweightTransaction() {
+        try {
+            Bundle extras = new Bundle();
+            extras.putString("greeting", "Hello");
+            Promise<String> result = new Promise<>();
+            sProxy.transact(MSG_ECHO, 42, "World", extras, result, 0);
+            assertEquals("Hello World 42", result.get(TIMEOUT));
+
+            Promise<String> failure = new Promise<>();
+            sProxy.transact(MSG_FAIL, 0, null, null, failure, 0);
+            assertThrows(ExecutionException.class, () -> failure.get(TIMEOUT));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testBatchTransaction() {
+        try {
+            for (boolean compact : new boolean[] { false, true }) {
+                final int count = 16;
+                sBinder.mLatch = new CountDownLatch(count);
+                sBinder.mSum = 0;
+                IBinder.Batch batch = new IBinder.Batch(count);
+                for (int i = 1; i <= count; i++) {
+                    Parcel data = compact ? Parcel.obtainCompact() : Parcel.obtain();
+                    data.putInt(i);
+                    batch.add(MSG_COUNT, data);
+                }
+                sProxy.transactBatch(batch);
+                assertTrue(sBinder.mLatch.await(TIMEOUT, TimeUnit.MILLISECONDS));
+                assertEquals(count * (count + 1) / 2, sBinder.mSum);
+            }
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testStreams() {
+        try {
+            // Larger than the window of a stream, so the sender has to wait for acknowledgements.
+            for (int size : new int[] { 0, 100, 1024 * 1024 + 1 }) {
+                byte[] payload = new byte[size];
+                new Random(size).nextBytes(payload);
+                Parcel data = Parcel.obtain();
+                data.putStream(new ByteArrayInputStream(payload));
+                Parcel reply = sProxy.transact(MSG_STREAM, data, 0).get(TIMEOUT);
+                assertEquals(size, reply.getInt());
+                try (InputStream stream = reply.getStream()) {
+                    assertArrayEquals(payload, readFully(stream));
+                }
+            }
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testUnopenedStream() {
+        // The stream of a transaction that has not been opened is cancelled when the transaction
+        // completes, instead of stalling the sender.
+        try {
+            CountDownLatch closed = new CountDownLatch(1);
+            InputStream stream = new ByteArrayInputStream(new byte[1024 * 1024]) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    closed.countDown();
+                }
+            };
+            Parcel data = Parcel.obtain();
+            data.putStream(stream);
+            Parcel reply = sProxy.transact(MSG_IGNORE_STREAM, data, 0).get(TIMEOUT);
+            assertTrue(reply.getBoolean());
+            assertTrue(closed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int size;
+        while ((size = stream.read(buffer)) >= 0) {
+            outputStream.write(buffer, 0, size);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static boolean hasCause(Throwable throwable, Class<? extends Throwable> type) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class TestBinder extends Binder {
+        volatile CountDownLatch mLatch;
+        volatile int mSum;
+
+        TestBinder(HandlerThread thread) {
+            super(thread.getLooper());
+            attachInterface(null, "mindroid://interfaces/" + INTERFACE);
+        }
+
+        @Override
+        protected void onTransact(int what, Parcel data, Promise<Parcel> result) throws RemoteException {
+            switch (what) {
+            case MSG_ECHO: {
+                Parcel reply = data.isCompact() ? Parcel.obtainCompact() : Parcel.obtain();
+                reply.putString(data.getString());
+                reply.putInt(data.getInt());
+                result.complete(reply);
+                break;
+            }
+            case MSG_STREAM: {
+                byte[] payload;
+                try (InputStream stream = data.getStream()) {
+                    payload = readFully(stream);
+                } catch (IOException e) {
+                    throw new RemoteException(e);
+                }
+                Parcel reply = Parcel.obtain();
+                reply.putInt(payload.length);
+                reply.putStream(new ByteArrayInputStream(payload));
+                result.complete(reply);
+                break;
+            }
+            case MSG_IGNORE_STREAM: {
+                Parcel reply = Parcel.obtain();
+                reply.putBoolean(true);
+                result.complete(reply);
+                break;
+            }
+            case MSG_FAIL:
+                result.completeWith(new IllegalStateException());
+                break;
+            case MSG_COUNT:
+                mSum += data.getInt();
+                mLatch.countDown();
+                break;
+            default:
+                super.onTransact(what, data, result);
+            }
+        }
+
+        @Override
+        protected void onTransact(int what, int num, Object obj, Bundle data, Promise<?> result) throws RemoteException {
+            switch (what) {
+            case MSG_ECHO: {
+                @SuppressWarnings("unchecked") Promise<String> reply = (Promise<String>) result;
+                reply.complete(data.getString("greeting") + " " + obj + " " + num);
+                break;
+            }
+            case MSG_FAIL:
+                result.completeWith(new IllegalStateException());
+                break;
+            default:
+                super.onTransact(what, num, obj, data, result);
+            }
+        }
+    }
+}